@@ -8,31 +8,91 @@
 package cc.obrien.lbd;
 
 import java.io.IOException;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
 import cc.obrien.lbd.layer.ExpandableFile;
+import cc.obrien.lbd.layer.Extent;
+import cc.obrien.lbd.layer.FlatFile;
 import cc.obrien.lbd.layer.Layer;
 import cc.obrien.lbd.layer.NullLayer;
 import cc.obrien.lbd.manager.Manager;
 import cc.obrien.lbd.server.Server;
+import cc.obrien.lbd.util.BlockCache;
+import cc.obrien.lbd.util.Futures;
+import cc.obrien.lbd.util.RangeLocks;
 
 
 /**
  * A virtual device may be composed of several {@link Layer}s
  * and have one or more {@link Server}s.
+ *
+ * <p>
+ * Requests from all clients are carried out concurrently.  Reads take no locks at all: each goes through whichever
+ * stack of layers was current when it started (see {@link #layers}).  Writes, zeroings and trims lock just the blocks
+ * they cover (see {@link #rangeLocks}), so only those touching the same blocks wait for one another.
+ * </p>
  * @author sobrien
  */
 public class Device
 {
-	/** total virtual size, in 512-byte blocks */
+	/** the usual block size, and the smallest allowed */
+	public static final int MINIMUM_BLOCK_SIZE = 512;
+	
+	
+	/** the largest block size allowed */
+	public static final int MAXIMUM_BLOCK_SIZE = 65536;
+	
+	
+	/** total virtual size, in blocks of {@link #blockSize} bytes */
 	public final long size;
 	
+	
+	/** size of each block, in bytes; a power of two from {@link #MINIMUM_BLOCK_SIZE} to {@link #MAXIMUM_BLOCK_SIZE} */
+	public final int blockSize;
+	
+	
+	/** log2 of {@link #blockSize}, for converting between blocks and bytes */
+	public final int blockShift;
+	
 
-	/** the layers in this device; tries to issue a read/write command to each layer in list order (so "bottom" layer is last) */
-	private final LinkedList<Layer> layers = new LinkedList<Layer> ();
+	/**
+	 * the layers in this device; tries to issue a read/write command to each layer in array order (so "bottom" layer is last).
+	 * An array is never changed once it's here; {@link #addLayer(Layer)} puts a new one in its place, so requests can go through it without locking.
+	 * Each request takes this up once, and uses that stack throughout; writes take it up only once they hold their range (see {@link #rangeLocks}).
+	 */
+	private volatile Layer layers[];
+
+	
+	/**
+	 * serializes changes to the layer stack, and stopping.
+	 * A lock rather than this object's monitor, so that virtual threads blocked in layer I/O don't pin their carrier thread.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+	
+	
+	/**
+	 * which layer holds which blocks, so reads needn't ask every layer above it.
+	 * Set before {@link #layers} when it has to be replaced, so whoever sees a new stack sees its index too.
+	 */
+	private volatile OwnershipIndex index;
+	
+	
+	/** number of stripes in {@link #rangeLocks} */
+	private static final int RANGE_LOCK_STRIPES = 256;
+	
+	
+	/** keeps writes (and zeroings and trims) of the same blocks from being carried out at once; reads don't take these */
+	private final RangeLocks rangeLocks = new RangeLocks(RANGE_LOCK_STRIPES);
 
 	
-	/** server endpoint; a ways for clients to access data in this device */
-	private volatile Server server = null;
+	/** server endpoints; ways for clients to access data in this device */
+	private final CopyOnWriteArrayList<Server> servers = new CopyOnWriteArrayList<Server> ();
 
 	
 	/** the manager daemon */
@@ -40,20 +100,20 @@ public class Device
 	
 	
 	/**
-	 * @return server
+	 * @return servers, in the order they were added
 	 */
-	public Server getServer()
+	public List<Server> getServers()
 	{
-		return server;
+		return Collections.unmodifiableList(servers);
 	}
 
 
 	/**
-	 * @param server
+	 * @param server another endpoint serving this device; stopped along with the device
 	 */
-	public void setServer(Server server)
+	public void addServer(Server server)
 	{
-		this.server = server;
+		this.servers.add(server);
 	}
 
 
@@ -83,14 +143,29 @@ public class Device
 	 * @param size total virtual size, in 512-byte blocks
 	 */
 	public Device(long size)
+	{
+		this(size, MINIMUM_BLOCK_SIZE);
+	}
+	
+	
+	/**
+	 * @param size total virtual size, in blocks
+	 * @param blockSize size of each block, in bytes; a power of two from {@link #MINIMUM_BLOCK_SIZE} to {@link #MAXIMUM_BLOCK_SIZE}
+	 */
+	public Device(long size, int blockSize)
 	{
 		if(size < 0)
 			throw new IllegalArgumentException("negative block count");
+		if(blockSize < MINIMUM_BLOCK_SIZE || blockSize > MAXIMUM_BLOCK_SIZE || Integer.bitCount(blockSize) != 1)
+			throw new IllegalArgumentException(String.format("block size must be a power of two from %d to %d", MINIMUM_BLOCK_SIZE, MAXIMUM_BLOCK_SIZE));
 		
 		this.size = size;
+		this.blockSize = blockSize;
+		this.blockShift = Integer.numberOfTrailingZeros(blockSize);
 		
 		// a fail-safe readable bottom layer.  Reads result in null-bytes; writes fail.
-		this.layers.add(new NullLayer(this));
+		this.layers = new Layer[] { new NullLayer(this) };
+		this.index = new OwnershipIndex(size, 1);
 
 		Runtime.getRuntime().addShutdownHook(new Thread() {
 			@Override
@@ -114,51 +189,71 @@ public class Device
 	/**
 	 * add a layer to this virtual device; gets added on top.
 	 * Note that if there was a layer which was writable, it is forced
-	 * to be read-only and flushed before adding this layer.
+	 * to be read-only and flushed after adding this layer.
 	 * (This special case is to support live-adding of new top layers.)
+	 * Doesn't hold up I/O: requests starting after the new stack is in place go through it (and new writes to the new top),
+	 * and the old top is only made read-only once the writes still going through the old stack are done.
 	 * @param layer a layer
 	 * @throws IOException if during this special case new-top-layer addition, the previous writable top layer could not be committed (see {@link Layer#commit()})
 	 */
-	synchronized public void addLayer(Layer layer) throws IOException
+	public void addLayer(Layer layer) throws IOException
 	{
-		// former top element
-		if(! this.layers.isEmpty())
+		lock.lock();
+		try
 		{
-			Layer oldTop = this.layers.getFirst();
+			// add to the top
+			Layer oldLayers[] = this.layers;
+			Layer newLayers[] = new Layer[oldLayers.length + 1];
+			newLayers[0] = layer;
+			System.arraycopy(oldLayers, 0, newLayers, 1, oldLayers.length);
+			
+			// a layer with blocks already in it takes them over, so what's known of the old stack is no good;
+			// an empty one (the usual case, live-adding a new file) only takes blocks as they're written, which keeps the index up to date
+			if(this.mayHoldAnything(layer))
+				this.index = new OwnershipIndex(this.size, newLayers.length);
+			this.layers = newLayers;
+			
+			// former top element; until now, writes may have been headed for it.
+			// writes take up the stack once they hold their range, so those still in progress are waited for here, and no later ones come along
+			Layer oldTop = oldLayers[0];
 			if(oldTop.isWritable())
 			{
+				rangeLocks.awaitUnlocked();
 				oldTop.setReadOnly();
 			}
 		}
-		
-		// add to the top
-		this.layers.add(0, layer);
+		finally
+		{
+			lock.unlock();
+		}
 	}
 	
 		
 	/**
 	 * @return true iff topmost layer is writable
 	 */
-	synchronized public boolean isWritable()
+	public boolean isWritable()
 	{
-		return this.layers.getFirst().isWritable();
+		return this.layers[0].isWritable();
 	}
 	
 	
 	/**
 	 * @return spit out info about this device
 	 */
-	synchronized public String getInfoString()
+	public String getInfoString()
 	{
+		Layer layers[] = this.layers;
 		StringBuilder ret = new StringBuilder();
 		
-		ret.append(String.format("device size: %d blocks (%d bytes / %f GB)\n", this.size, (((long)size)<<9), ((double)(((long)size)<<9)) / ((double)(1<<30))));
-		ret.append(String.format("server type: %s\n", this.server));
+		ret.append(String.format("device size: %d blocks of %d bytes (%d bytes / %f GB)\n", this.size, this.blockSize, size<<blockShift, ((double)(size<<blockShift)) / ((double)(1<<30))));
+		for(Server server : this.servers)
+			ret.append(String.format("server type: %s\n", server));
 		ret.append(String.format("management port: %d\n", this.manager.listenSocket.getLocalPort()));
 		ret.append(String.format("layers:\n"));
-		for(int i=0; i<layers.size(); i++)
+		for(int i=0; i<layers.length; i++)
 		{
-			Layer layer = layers.get(i);
+			Layer layer = layers[i];
 			
 			String param = null;
 			if(layer instanceof ExpandableFile)
@@ -166,7 +261,38 @@ public class Device
 				param = ((ExpandableFile)layer).fileObject.getAbsolutePath();
 			}
 
-			ret.append(String.format("   %2d: type=%18s, writable=%5s, param=%s\n", layers.size()-i-1, layer.getClass().getSimpleName(), layer.isWritable(), param));
+			ret.append(String.format("   %2d: type=%18s, writable=%5s, param=%s\n", layers.length-i-1, layer.getClass().getSimpleName(), layer.isWritable(), param));
+		}
+		ret.append('\n');
+		return ret.toString();
+	}
+
+	
+	/**
+	 * @return totals for this device's share of the block cache, then each cached layer's, numbered as in {@link #getInfoString()}
+	 */
+	public String getCacheInfoString()
+	{
+		Layer layers[] = this.layers;
+		StringBuilder ret = new StringBuilder();
+		
+		long bytesHeld = 0, hits = 0, misses = 0;
+		for(Layer layer : layers)
+		{
+			if(layer.cacheEnabled)
+			{
+				bytesHeld += layer.blockCache.getBytesHeld();
+				hits += layer.blockCache.getHits();
+				misses += layer.blockCache.getMisses();
+			}
+		}
+		ret.append(String.format("device cache: %s\n", BlockCache.describe(bytesHeld, hits, misses)));
+		ret.append(String.format("cached layers:\n"));
+		for(int i=0; i<layers.length; i++)
+		{
+			Layer layer = layers[i];
+			if(layer.cacheEnabled)
+				ret.append(String.format("   %2d: type=%18s, %s\n", layers.length-i-1, layer.getClass().getSimpleName(), layer.blockCache));
 		}
 		ret.append('\n');
 		return ret.toString();
@@ -188,55 +314,198 @@ public class Device
 	 * @param startBlock starting block number
 	 * @param blockCount number of blocks to read
 	 * @param arrayOffset startBlock into the bytes array to write these data into
-	 * @param bytes receives the requested blocks in order; array size (blockCount)*512
+	 * @param bytes receives the requested blocks in order; array size (blockCount)*{@link #blockSize}
 	 * @return whether the write was successful in at least some layer
 	 * @throws IOException if error occurred reading from this layer
 	 */
-	synchronized public boolean read(long startBlock, int blockCount, int arrayOffset, byte bytes[]) throws IOException
+	public boolean read(long startBlock, int blockCount, int arrayOffset, byte bytes[]) throws IOException
+	{
+		return Futures.await(this.readAsync(startBlock, blockCount, arrayOffset, bytes));
+	}
+	
+	
+	/**
+	 * Start a read, as {@link #read(long, int, int, byte[])}, without waiting for it.
+	 * Layers which can complete reads from their own threads (like {@link cc.obrien.lbd.layer.NBD}) don't tie up the caller meanwhile;
+	 * runs of blocks held by different layers, and the holes each layer leaves, are all read at once.
+	 * {@code bytes} mustn't be touched until the future completes.
+	 * @param startBlock starting block number
+	 * @param blockCount number of blocks to read
+	 * @param arrayOffset startBlock into the bytes array to write these data into
+	 * @param bytes receives the requested blocks in order; array size (blockCount)*{@link #blockSize}
+	 * @return completes with whether every block was read, or fails with the IOException from some layer
+	 * @throws IllegalStateException if the device isn't running
+	 * @throws IllegalArgumentException if {@code bytes} is too short
+	 */
+	public CompletableFuture<Boolean> readAsync(long startBlock, int blockCount, final int arrayOffset, final byte bytes[])
 	{
 		if(! this.isRunning())
 			throw new IllegalStateException("not running");
 
-		if( ! (bytes.length >= arrayOffset + (blockCount * 512)) )
+		if( ! (bytes.length >= arrayOffset + ((long) blockCount << blockShift)) )
 			throw new IllegalArgumentException("insufficient bytes");
 
 		if(startBlock < 0)
-			return false;
+			return CompletableFuture.completedFuture(false);
 		if(blockCount < 0)
-			return false;
-		if(blockCount >= (1<<22))	// max 2**22-1 blocks at a time (a little under 2GB)
-			return false;
+			return CompletableFuture.completedFuture(false);
+		if(blockCount >= (1 << (31 - blockShift)))	// a little under 2GB at a time (2**22-1 blocks of 512 bytes)
+			return CompletableFuture.completedFuture(false);
 		if(startBlock+blockCount > size)
-			return false;
+			return CompletableFuture.completedFuture(false);
+		if(blockCount == 0)
+			return CompletableFuture.completedFuture(true);
 
-		for(long i=0; i<blockCount; i++)
+		// start each run of blocks at the layer holding it; if this stack is older than the index, at its top
+		Layer layers[] = this.layers;
+		List<long[]> runs;
+		try
 		{
-			long block = startBlock + i;
-
-			boolean readSuccess = false;
-			for(Layer layer : layers)
-			{
-				boolean result = layer.readBlock(block, (int)(arrayOffset + (i * 512)), bytes);
-				if(result)
-				{
-					// the read was a success; move on to next block
-					readSuccess = true;
-					break;
-				}
-
-				// else unhandled read error
-				continue;
+			runs = this.index.owners(layers, startBlock, blockCount);
+		}
+		catch(IOException e)
+		{
+			return Futures.failed(e);
+		}
+		
+		final List<CompletableFuture<Boolean>> reads = new ArrayList<CompletableFuture<Boolean>> ();
+		for(long run[] : runs)
+		{
+			int top = (int) Math.max(0, layers.length - 1 - run[2]);
+			List<Extent> missing = Collections.singletonList(new Extent(run[0], run[1], Extent.Status.ABSENT));
+			reads.add(this.readDown(layers, top, missing, startBlock, arrayOffset, bytes));
+		}
+		if(reads.size() == 1)
+			return reads.get(0);
+		if(Futures.succeeded(reads))
+			return CompletableFuture.completedFuture(allTrue(reads));
+		
+		return Futures.all(reads).thenApply(new Function<Void, Boolean>() {
+			@Override
+			public Boolean apply(Void done) {
+				return allTrue(reads);
 			}
-			
-			if(! readSuccess)
-			{
-				// couldn't read a block; abort
+		});
+	}
+	
+	
+	/**
+	 * @param reads completed reads
+	 * @return true iff all of them read every block
+	 */
+	private static boolean allTrue(List<CompletableFuture<Boolean>> reads)
+	{
+		for(CompletableFuture<Boolean> read : reads)
+		{
+			if(! read.join())
 				return false;
+		}
+		return true;
+	}
+	
+	
+	/**
+	 * read blocks from a layer, and from the layers below it whatever it doesn't hold
+	 * @param layers the layer stack, as when the request started
+	 * @param top position in {@code layers} of the layer to read from
+	 * @param missing the blocks to read, as extents in order
+	 * @param startBlock the request's first block, which goes at {@code arrayOffset}
+	 * @param arrayOffset where in {@code bytes} the request's blocks go
+	 * @param bytes receives the blocks
+	 * @return completes with true if every block was read
+	 */
+	private CompletableFuture<Boolean> readDown(final Layer layers[], final int top, List<Extent> missing, final long startBlock, final int arrayOffset, final byte bytes[])
+	{
+		// the bottom layer (NullLayer) holds every block, so nothing should be left after it
+		if(missing.isEmpty())
+			return CompletableFuture.completedFuture(true);
+		if(top == layers.length)
+			return CompletableFuture.completedFuture(false);
+		
+		// the layer fills in what it holds of what's still missing; the holes it leaves go on down
+		final List<CompletableFuture<List<Extent>>> reads = new ArrayList<CompletableFuture<List<Extent>>> ();
+		for(Extent extent : missing)
+		{
+			int offset = (int) (arrayOffset + ((extent.start - startBlock) << blockShift));
+			reads.add(layers[top].readRangeAsync(extent.start, (int) (extent.end - extent.start), offset, bytes));
+		}
+		
+		if(Futures.succeeded(reads))
+			return this.readDown(layers, top + 1, holesOf(reads), startBlock, arrayOffset, bytes);
+		
+		return Futures.all(reads).thenCompose(new Function<Void, CompletionStage<Boolean>>() {
+			@Override
+			public CompletionStage<Boolean> apply(Void done) {
+				return readDown(layers, top + 1, holesOf(reads), startBlock, arrayOffset, bytes);
 			}
+		});
+	}
+	
+	
+	/**
+	 * @param reads completed reads from one layer, in order
+	 * @return the holes they left, in order
+	 */
+	private static List<Extent> holesOf(List<CompletableFuture<List<Extent>>> reads)
+	{
+		if(reads.size() == 1)
+			return reads.get(0).join();
+		
+		List<Extent> holes = new ArrayList<Extent> ();
+		for(CompletableFuture<List<Extent>> read : reads)
+			holes.addAll(read.join());
+		return holes;
+	}
+	
+	
+	/**
+	 * @param layer a layer
+	 * @return false only if it certainly holds no blocks at all
+	 * @throws IOException if error occurred while consulting the layer
+	 */
+	private boolean mayHoldAnything(Layer layer) throws IOException
+	{
+		for(long block=0; block<this.size; block+=Integer.MAX_VALUE)
+		{
+			if(layer.mayHoldBlocks(block, (int) Math.min(Integer.MAX_VALUE, this.size - block)))
+				return true;
 		}
 		
-		// all blocks completed
-		return true;
+		return false;
+	}
+	
+	
+	/**
+	 * Find out whether a read of this range would be served entirely by one {@link FlatFile} layer,
+	 * i.e. no layer above it holds any of these blocks.  If so the caller can send the blocks
+	 * straight from that file (see {@link FlatFile#transferTo(long, long, java.nio.channels.WritableByteChannel)})
+	 * instead of reading them through {@link #read(long, int, int, byte[])}.
+	 * @param startBlock starting block number
+	 * @param blockCount number of blocks to read
+	 * @return the flat file layer holding the range, or null if the range must be read the usual way
+	 * @throws IOException if error occurred while consulting some layer
+	 */
+	public FlatFile getFlatFileFor(long startBlock, int blockCount) throws IOException
+	{
+		if(! this.isRunning())
+			throw new IllegalStateException("not running");
+
+		if(startBlock < 0 || blockCount <= 0 || startBlock+blockCount > size)
+			return null;
+
+		for(Layer layer : this.layers)
+		{
+			if(layer instanceof FlatFile)
+			{
+				FlatFile flatFile = (FlatFile) layer;
+				return flatFile.canTransfer(startBlock, blockCount) ? flatFile : null;
+			}
+
+			if(layer.mayHoldBlocks(startBlock, blockCount))
+				return null;
+		}
+
+		return null;
 	}
 	
 	
@@ -244,52 +513,253 @@ public class Device
 	 * @param startBlock starting block number
 	 * @param blockCount number of blocks to write
 	 * @param arrayOffset startBlock into the bytes array to read these data into
-	 * @param bytes the blocks to write, in order; array size (blockCount)*512
+	 * @param bytes the blocks to write, in order; array size (blockCount)*{@link #blockSize}
 	 * @return whether the write was successful in at least some layer
 	 * @throws IOException if error occurred writing to this layer
 	 */
-	synchronized public boolean write(long startBlock, int blockCount, int arrayOffset, byte bytes[]) throws IOException
+	public boolean write(long startBlock, int blockCount, int arrayOffset, byte bytes[]) throws IOException
 	{
-		if(! this.isRunning())
-			throw new IllegalStateException("not running");
-		
-		if( ! (bytes.length >= arrayOffset + (blockCount * 512L)) )
+		if( ! (bytes.length >= arrayOffset + ((long) blockCount << blockShift)) )
 			throw new IllegalArgumentException("insufficient bytes");
 
 		if(startBlock < 0)
 			return false;
 		if(blockCount < 0)
 			return false;
-		if(blockCount >= (1<<22))	// max 2**22-1 blocks at a time (a little under 2GB)
+		if(blockCount >= (1 << (31 - blockShift)))	// a little under 2GB at a time (2**22-1 blocks of 512 bytes)
 			return false;
 		if(startBlock+blockCount > size)
 			return false;
 		
-		for(long i=0; i<blockCount; i++)
+		rangeLocks.lock(startBlock, blockCount);
+		try
 		{
-			long block = startBlock + i;
-			
-			for(Layer layer : layers)
+			// checked under the range lock, so nothing is written once stop() has waited for writes in progress
+			if(! this.isRunning())
+				throw new IllegalStateException("not running");
+		
+			// the blocks all go to the topmost writable layer, in one go, so it can write runs of them at once
+			Layer layers[] = this.layers;
+			for(int i=0; i<layers.length; i++)
 			{
-				if(! layer.isWritable())
+				if(! layers[i].isWritable())
 					continue;
-
-				boolean result = layer.writeBlock(block, (int)(arrayOffset + (i * 512)), bytes);
-				if(result)
+				
+				if(! layers[i].writeBlocks(startBlock, blockCount, arrayOffset, bytes))
 				{
-					// the write was a success; move on to next block
-					break;
+					// unhandled write error; give up
+					return false;
 				}
-				else
+				
+				// now that the blocks are there, reads can go straight to them
+				this.index.claim(startBlock, blockCount, layers.length - 1 - i);
+				break;
+			}
+		
+			// all blocks completed
+			return true;
+		}
+		finally
+		{
+			rangeLocks.unlock(startBlock, blockCount);
+		}
+	}
+	
+	
+	/**
+	 * Describe how the device holds a range: which blocks are data, and which are zeroes with no data behind them
+	 * (never written, or zeroed or trimmed in a layer that can record that).
+	 * Answers from each layer's index, going down the stack where a layer doesn't hold blocks; no data blocks are read.
+	 * @param startBlock starting block number
+	 * @param blockCount number of blocks
+	 * @param maxExtents most extents to return
+	 * @return extents, all either {@link Extent.Status#DATA} or {@link Extent.Status#ZERO}, in order and contiguous from {@code startBlock};
+	 *   they cover at least the first block, but may stop short of the end of the range (ask again for the rest).
+	 *   Null if the range is invalid.
+	 * @throws IOException if error occurred while consulting some layer
+	 */
+	public List<Extent> getExtents(long startBlock, long blockCount, int maxExtents) throws IOException
+	{
+		if(! this.isRunning())
+			throw new IllegalStateException("not running");
+
+		if(startBlock < 0 || blockCount <= 0 || startBlock+blockCount > size || maxExtents < 1)
+			return null;
+		
+		List<Extent> extents = new ArrayList<Extent> ();
+		this.resolveExtents(this.layers, 0, startBlock, startBlock + blockCount, extents, maxExtents);
+		return extents;
+	}
+	
+	
+	/**
+	 * add extents for a range, as held by a layer, or by the layers below it where it doesn't hold blocks
+	 * @param layers the layer stack, as when the request started
+	 * @param index the layer's position in {@code layers}
+	 * @param start first block
+	 * @param limit block after the last one
+	 * @param extents receives the extents, merged where possible
+	 * @param maxExtents most extents to add
+	 * @return true if the range was covered; false if some layer stopped short, or there were too many extents
+	 * @throws IOException if error occurred while consulting some layer
+	 */
+	private boolean resolveExtents(Layer layers[], int index, long start, long limit, List<Extent> extents, int maxExtents) throws IOException
+	{
+		long end = start;
+		for(Extent extent : layers[index].getExtents(start, limit))
+		{
+			// the bottom layer (NullLayer) holds every block, so this doesn't run off the end
+			if(extent.status == Extent.Status.ABSENT)
+			{
+				if(! this.resolveExtents(layers, index + 1, extent.start, extent.end, extents, maxExtents))
+					return false;
+			}
+			else
+			{
+				Extent.append(extents, extent);
+				if(extents.size() > maxExtents)
 				{
-					// unhandled write error; give up
+					extents.remove(extents.size() - 1);
 					return false;
 				}
 			}
+			end = extent.end;
 		}
 		
-		// all blocks completed
-		return true;
+		return end == limit;
+	}
+	
+	
+	/**
+	 * Make blocks read as zeroes.
+	 * Unless {@code allocate}, the top writable layer is asked to just record them as zero, freeing their space
+	 * (see {@link Layer#discardBlocks(long, int, boolean)}); layers which can't do that get zero blocks written.
+	 * @param startBlock starting block number
+	 * @param blockCount number of blocks to zero
+	 * @param allocate write real zero blocks, so that later writes there don't need new space
+	 * @return whether the zeroing was successful in some layer
+	 * @throws IOException if error occurred writing to some layer
+	 */
+	public boolean writeZeroes(long startBlock, int blockCount, boolean allocate) throws IOException
+	{
+		if(startBlock < 0 || blockCount < 0 || startBlock+blockCount > size)
+			return false;
+		
+		rangeLocks.lock(startBlock, blockCount);
+		try
+		{
+			if(! this.isRunning())
+				throw new IllegalStateException("not running");
+			
+			Layer layers[] = this.layers;
+			for(int i=0; i<layers.length; i++)
+			{
+				Layer layer = layers[i];
+				if(! layer.isWritable())
+					continue;
+				
+				boolean success = (! allocate && layer.discardBlocks(startBlock, blockCount, this.lowerLayersMayHold(layers, i, startBlock, blockCount)))
+					|| layer.writeZeroBlocks(startBlock, blockCount);
+				
+				// reads of the blocks go to this layer now (if it just dropped them, it passes reads on down)
+				this.index.claim(startBlock, blockCount, layers.length - 1 - i);
+				return success;
+			}
+			
+			// nothing writable
+			return false;
+		}
+		finally
+		{
+			rangeLocks.unlock(startBlock, blockCount);
+		}
+	}
+	
+	
+	/**
+	 * Tell the top writable layer that the contents of these blocks are no longer needed, so it can free their space.
+	 * Advisory: layers which can't free space ignore this, and the blocks keep their contents.
+	 * Layers which can leave the blocks reading as zeroes.
+	 * @param startBlock starting block number
+	 * @param blockCount number of blocks to trim
+	 * @return whether the range was valid and there's a writable layer
+	 * @throws IOException if error occurred in some layer
+	 */
+	public boolean trim(long startBlock, int blockCount) throws IOException
+	{
+		if(startBlock < 0 || blockCount < 0 || startBlock+blockCount > size)
+			return false;
+		
+		rangeLocks.lock(startBlock, blockCount);
+		try
+		{
+			if(! this.isRunning())
+				throw new IllegalStateException("not running");
+			
+			Layer layers[] = this.layers;
+			for(int i=0; i<layers.length; i++)
+			{
+				Layer layer = layers[i];
+				if(! layer.isWritable())
+					continue;
+				
+				layer.discardBlocks(startBlock, blockCount, this.lowerLayersMayHold(layers, i, startBlock, blockCount));
+				this.index.claim(startBlock, blockCount, layers.length - 1 - i);
+				return true;
+			}
+			
+			// nothing writable
+			return false;
+		}
+		finally
+		{
+			rangeLocks.unlock(startBlock, blockCount);
+		}
+	}
+	
+	
+	/**
+	 * @param layers the layer stack, as when the request started
+	 * @param index a layer's position in {@code layers}
+	 * @param startBlock starting block number
+	 * @param blockCount number of blocks
+	 * @return whether any layer below that one might hold data for the range, other than the {@link NullLayer}, whose blocks are all zero anyway
+	 * @throws IOException if error occurred while consulting some layer
+	 */
+	private boolean lowerLayersMayHold(Layer layers[], int index, long startBlock, int blockCount) throws IOException
+	{
+		for(int i=index+1; i<layers.length; i++)
+		{
+			Layer layer = layers[i];
+			if(layer instanceof NullLayer)
+				continue;
+			
+			if(layer.mayHoldBlocks(startBlock, blockCount))
+				return true;
+		}
+		
+		return false;
+	}
+	
+	
+	/**
+	 * Make all writes completed so far durable: commit every layer's dirty cached blocks, then sync every layer.
+	 * Takes no locks of its own, so reads and writes carry on meanwhile; each layer commits one caller at a time,
+	 * and concurrent flushes share syncs (see {@link Layer#flush()}).
+	 * @throws IOException if error occurred committing or syncing some layer
+	 */
+	public void flush() throws IOException
+	{
+		if(! this.isRunning())
+			throw new IllegalStateException("not running");
+		
+		// includes layers demoted to read-only since, whose last writes may not have been synced
+		Layer layers[] = this.layers;
+		for(Layer layer : layers)
+			layer.commit();
+		
+		for(Layer layer : layers)
+			layer.flush();
 	}
 	
 	
@@ -297,35 +767,48 @@ public class Device
 	 * stop the device; disable all activity, shut down server, flush all unwritten blocks in the cache
 	 * @throws IOException 
 	 */
-	synchronized public void stop() throws IOException
+	public void stop() throws IOException
 	{
-		// de-initialization steps; do these BEFORE stopping the server
-		// (because the server may be the only thread running, keeping the JVM alive, depending on how this is being run)
+		lock.lock();
+		try
+		{
+			// de-initialization steps; do these BEFORE stopping the server
+			// (because the server may be the only thread running, keeping the JVM alive, depending on how this is being run)
 		
-		// disable
-		this.running = false;
+			// disable, and wait for writes in progress; later ones see this and fail
+			this.running = false;
+			rangeLocks.awaitUnlocked();
 
-		// flush blocks
-		this.layers.getFirst().commit();
+			// flush blocks
+			this.layers[0].commit();
 
-		// layer-specific shutdown procedures
-		for(Layer layer : this.layers)
-		{
-			layer.stop();
-		}
+			// layer-specific shutdown procedures
+			for(Layer layer : this.layers)
+			{
+				layer.stop();
+			}
 		
-		// stop the server
-		this.server.stopServer();
+			// stop the servers
+			for(Server server : this.servers)
+				server.stopServer();
 
-		// wait for the server thread to die
-		while(true)
-		{
-			try
+			// wait for the server threads to die
+			for(Server server : this.servers)
 			{
-				this.server.join();
-				break;
+				while(true)
+				{
+					try
+					{
+						server.join();
+						break;
+					}
+					catch(InterruptedException e) { }
+				}
 			}
-			catch(InterruptedException e) { }
+		}
+		finally
+		{
+			lock.unlock();
 		}
 	}
 }
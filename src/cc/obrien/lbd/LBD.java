@@ -10,11 +10,18 @@ package cc.obrien.lbd;
 import gnu.getopt.Getopt;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
 import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
 import cc.obrien.lbd.layer.*;
 import cc.obrien.lbd.manager.Manager;
 import cc.obrien.lbd.manager.Request;
 import cc.obrien.lbd.server.*;
+import cc.obrien.lbd.util.BlockCache;
+import cc.obrien.lbd.util.BufferPool;
+import cc.obrien.lbd.util.Threads;
+import cc.obrien.lbd.util.UnixSockets;
 
 
 /**
@@ -47,6 +54,20 @@ public final class LBD
 	}
 	
 	
+	@SuppressWarnings("javadoc")
+	private static final class ExportArg
+	{
+		public final String name;
+		public Long blockCount = null;
+		public Long byteCount = null;
+		public int blockSize = Device.MINIMUM_BLOCK_SIZE;
+		public final LinkedList<LayerArg> layerArgs = new LinkedList<LayerArg> ();
+		public ExportArg(String name) {
+			this.name = name;
+		}
+	}
+	
+	
 	/**
 	 * @param args pased into {@link Getopt}; see {@link #shortOptions}
 	 * @throws Exception any exception that can occur is thrown: I/O, etc.
@@ -55,67 +76,54 @@ public final class LBD
 	{
 		System.err.printf("LBD version %d.%d.%d\n", Version.MAJOR, Version.MINOR, Version.PATCH);
 
-		Long deviceBlockCount = null;
+		// device options apply to the latest export; without any -x, the one export is the default, named ""
+		LinkedList<ExportArg> exportArgs = new LinkedList<ExportArg> ();
+		ExportArg export = new ExportArg("");
+		exportArgs.add(export);
 		InetSocketAddress serverBindOn = new InetSocketAddress(NBDServer.DEFAULT_PORT);
 		InetSocketAddress managerBindOn = new InetSocketAddress(InetAddress.getByName("localhost"), Manager.DEFAULT_PORT);
-		LinkedList<LayerArg> layerArgs = new LinkedList<LayerArg> ();
+		String serverMode = "blocking";
+		int eventLoopCount = 0;
+		int workerCount = Server.DEFAULT_WORKER_COUNT;
+		int queueDepth = Server.DEFAULT_QUEUE_DEPTH;
+		boolean oldStyleHandshake = false;
+		String unixSocketPath = null;
+		long cacheSize = BlockCache.DEFAULT_SIZE_BYTES;
 
 		String parts[];
 		InetAddress bindAddress;
 		Integer bindPort;
 
-		Getopt getOpt = new Getopt("LBD", args, "hb:s:l:a:e:E:f:F:n:N:X:");
+		Getopt getOpt = new Getopt("LBD", args, "hx:b:s:B:l:a:U:m:w:q:Oc:e:E:f:F:n:N:X:");
 		int opt;
 		while((opt = getOpt.getopt()) != -1)
 		{
 			switch(opt)
 			{
+			case 'x':
+				// the first -x names the initial export, unless that was already given options
+				if(exportArgs.size() == 1 && export.name.isEmpty() && export.blockCount == null && export.byteCount == null && export.layerArgs.isEmpty())
+					exportArgs.clear();
+				export = new ExportArg(getOpt.getOptarg());
+				exportArgs.add(export);
+				break;
+			
 			case 'b':
-				deviceBlockCount = Long.parseLong(getOpt.getOptarg());
+				export.blockCount = Long.parseLong(getOpt.getOptarg());
+				export.byteCount = null;
 				break;
 
 			case 's':
-				Character suffix = null;
-				String arg = getOpt.getOptarg().toLowerCase();
-				if(! arg.matches("^[0-9]+[kmgt]?$"))
-					throw new IllegalArgumentException("bad format for -s");
-				suffix = arg.charAt(arg.length() - 1);
-				long numPart;
-				long multiplier = 1L;
-				if(Character.isLetter(suffix))
-				{
-					switch(suffix)
-					{
-					case 'k':
-						multiplier = 1L<<10;
-						break;
-					case 'm':
-						multiplier = 1L<<20;
-						break;
-					case 'g':
-						multiplier = 1L<<30;
-						break;
-					case 't':
-						multiplier = 1L<<40;
-						break;
-					default:
-						// doesn't reach here
-						break;
-					}
-				
-					numPart = Long.parseLong(arg.substring(0, arg.length()-1));
-				}
-				else
-				{
-					numPart = Long.parseLong(arg);
-				}
-
-				long byteCount = numPart * multiplier;
-				if(byteCount % 512 != 0)
-					throw new IllegalArgumentException("device size must be a multiple of 512");
-
-				deviceBlockCount = byteCount >> 9;
+				// converted to blocks once the block size is known
+				export.byteCount = parseByteCount(getOpt.getOptarg(), 's');
+				export.blockCount = null;
+				break;
 				
+			case 'B':
+				long blockSize = parseByteCount(getOpt.getOptarg(), 'B');
+				if(blockSize < Device.MINIMUM_BLOCK_SIZE || blockSize > Device.MAXIMUM_BLOCK_SIZE || Long.bitCount(blockSize) != 1)
+					throw new IllegalArgumentException(String.format("block size must be a power of two from %d to %d", Device.MINIMUM_BLOCK_SIZE, Device.MAXIMUM_BLOCK_SIZE));
+				export.blockSize = (int) blockSize;
 				break;
 				
 			case 'l':
@@ -160,32 +168,72 @@ public final class LBD
 				}
 				break;
 			
+			case 'm':
+				parts = getOpt.getOptarg().split(":");
+				serverMode = parts[0];
+				if(serverMode.equals("blocking") && parts.length == 1)
+					break;
+				if(serverMode.equals("virtual") && parts.length == 1)
+					break;
+				if(serverMode.equals("nio") && parts.length == 1)
+					break;
+				if(serverMode.equals("nio") && parts.length == 2)
+				{
+					eventLoopCount = Integer.parseInt(parts[1]);
+					break;
+				}
+				throw new IllegalArgumentException("bad format for -m");
+			
+			case 'w':
+				workerCount = Integer.parseInt(getOpt.getOptarg());
+				if(workerCount < 1)
+					throw new IllegalArgumentException("need at least one worker");
+				break;
+			
+			case 'q':
+				queueDepth = Integer.parseInt(getOpt.getOptarg());
+				if(queueDepth < 1)
+					throw new IllegalArgumentException("queue depth must be at least 1");
+				break;
+				
+			case 'O':
+				oldStyleHandshake = true;
+				break;
+				
+			case 'U':
+				unixSocketPath = getOpt.getOptarg();
+				break;
+			
+			case 'c':
+				cacheSize = parseByteCount(getOpt.getOptarg(), 'c');
+				break;
+			
 			case 'e':
-				layerArgs.add(new LayerArg(LayerArg.Type.EXPANDABLE_FILE, false, true, getOpt.getOptarg()));
+				export.layerArgs.add(new LayerArg(LayerArg.Type.EXPANDABLE_FILE, false, true, getOpt.getOptarg()));
 				break;
 				
 			case 'E':
-				layerArgs.add(new LayerArg(LayerArg.Type.EXPANDABLE_FILE, true, false,getOpt.getOptarg()));
+				export.layerArgs.add(new LayerArg(LayerArg.Type.EXPANDABLE_FILE, true, false, getOpt.getOptarg()));
 				break;
 				
 			case 'f':
-				layerArgs.add(new LayerArg(LayerArg.Type.FLAT_FILE, false, false, getOpt.getOptarg()));
+				export.layerArgs.add(new LayerArg(LayerArg.Type.FLAT_FILE, false, false, getOpt.getOptarg()));
 				break;
 				
 			case 'F':
-				layerArgs.add(new LayerArg(LayerArg.Type.FLAT_FILE, true, false, getOpt.getOptarg()));
+				export.layerArgs.add(new LayerArg(LayerArg.Type.FLAT_FILE, true, false, getOpt.getOptarg()));
 				break;
 				
 			case 'n':
-				layerArgs.add(new LayerArg(LayerArg.Type.NBD, false, true, getOpt.getOptarg()));
+				export.layerArgs.add(new LayerArg(LayerArg.Type.NBD, false, true, getOpt.getOptarg()));
 				break;
 				
 			case 'N':
-				layerArgs.add(new LayerArg(LayerArg.Type.NBD, true, false, getOpt.getOptarg()));
+				export.layerArgs.add(new LayerArg(LayerArg.Type.NBD, true, false, getOpt.getOptarg()));
 				break;
 				
 			case 'X':
-				layerArgs.add(new LayerArg(LayerArg.Type.NBD, true, true, getOpt.getOptarg()));
+				export.layerArgs.add(new LayerArg(LayerArg.Type.NBD, true, true, getOpt.getOptarg()));
 				break;
 				
 			case '?':
@@ -193,104 +241,254 @@ public final class LBD
 				System.err.println();
 				System.err.println("general options:");
 				System.err.println("    -h                this help");
+				System.err.println("    -x name           start defining another export, served by the same");
+				System.err.println("                      listeners, workers and manager; the -b/-s and layer");
+				System.err.println("                      options after it apply to that export (optional;");
+				System.err.println("                      default is one export, named \"\")");
 				System.err.println("    -b blockcount     (-b or -s required) the size of the virtual device,");
-				System.err.println("                      in blocks (1 block = 512 bytes)");
+				System.err.println("                      in blocks (see -B)");
 				System.err.println("    -s bytecount      (-b or -s required) the size of the virtual device,");
 				System.err.println("                      in bytes; can use suffix like K, M, G, T");
+				System.err.println("    -B blocksize      the device's block size in bytes: a power of two from");
+				System.err.println("                      " + Device.MINIMUM_BLOCK_SIZE + " to " + (Device.MAXIMUM_BLOCK_SIZE >> 10) + "K; can use suffix K.  Layers' files");
+				System.err.println("                      must have been made with the same block size");
+				System.err.println("                      (optional; default is " + Device.MINIMUM_BLOCK_SIZE + ")");
 				System.err.println();
 				System.err.println("server options:");
 				System.err.println("    -l [ip:]port      the TCP ip/port to listen on for NBD clients");
 				System.err.println("                      (optional; default is 0.0.0.0:" + NBDServer.DEFAULT_PORT + ")");
 				System.err.println("    -a [ip:]port      the TCP ip/port to listen on for manager commands");
 				System.err.println("                      (optional; default is localhost:" + Manager.DEFAULT_PORT + ")");
+				System.err.println("    -U path           also listen for NBD clients on this Unix domain socket,");
+				System.err.println("                      for clients on the same machine; served by event loops");
+				System.err.println("                      as in 'nio' mode (optional; needs Java 16+)");
+				System.err.println("    -m mode[:loops]   NBD server implementation: 'blocking' (thread per client),");
+				System.err.println("                      'virtual' (virtual thread per client and per request;");
+				System.err.println("                      needs Java 21+; -w is ignored), or 'nio' (selector");
+				System.err.println("                      event loops; default one loop per core)");
+				System.err.println("                      (optional; default is blocking)");
+				System.err.println("    -w count          number of worker threads carrying out requests");
+				System.err.println("                      (optional; default is " + Server.DEFAULT_WORKER_COUNT + ")");
+				System.err.println("    -q depth          max requests in flight per client connection");
+				System.err.println("                      (optional; default is " + Server.DEFAULT_QUEUE_DEPTH + ")");
+				System.err.println("    -O                greet clients with the old-style handshake, for clients");
+				System.err.println("                      predating newstyle (default is fixed newstyle)");
 				System.err.println();
 				System.err.println("to specify layers: (at least one is required)");
 				System.err.println("    -e filename       readonly expandable file");
 				System.err.println("    -E filename       writable expandable file");
 				System.err.println("    -f filename       readonly flat file (file size must == device size)");
 				System.err.println("    -F filename       writable flat file (file size must == device size)");
-				System.err.println("    -n ip:port        readonly remote NBD device (read cache enabled)");
-				System.err.println("    -N ip:port        writable remote NBD host (caching disabled)");
-				System.err.println("    -X ip:port        writable remote NBD host w/ assumed exclusive access");
+				System.err.println("    -n ip:port[:name] readonly remote NBD device (read cache enabled)");
+				System.err.println("    -N ip:port[:name] writable remote NBD host (caching disabled)");
+				System.err.println("    -X ip:port[:name] writable remote NBD host w/ assumed exclusive access");
 				System.err.println("                      (since exclusive access assumed, cache is enabled)");
+				System.err.println("                      name is the export to use; default is the server's default");
+				System.err.println("    -c bytecount      size of the block cache shared by every cached layer");
+				System.err.println("                      (-e, -n, -X) of every export; kept off the Java heap");
+				System.err.println("                      (see the JVM's -XX:MaxDirectMemorySize); can use suffix");
+				System.err.println("                      like K, M, G; 0 for no cache");
+				System.err.println("                      (optional; default is " + (BlockCache.DEFAULT_SIZE_BYTES >> 20) + "M)");
 				System.err.println();
 				return;
 			}
 		}
 		
-		if(layerArgs.size() == 0)
-			throw new RuntimeException("no layers specified; see -h for help");
+		// check every export before opening anything
+		for(ExportArg exportArg : exportArgs)
+		{
+			String which = exportArg.name.isEmpty() ? "" : String.format(" for export '%s'", exportArg.name);
+			
+			if(exportArg.layerArgs.size() == 0)
+				throw new RuntimeException("no layers specified" + which + "; see -h for help");
+
+			if(exportArg.byteCount != null)
+			{
+				if(exportArg.byteCount % exportArg.blockSize != 0)
+					throw new IllegalArgumentException(String.format("device size must be a multiple of the block size, %d%s", exportArg.blockSize, which));
+				exportArg.blockCount = exportArg.byteCount / exportArg.blockSize;
+			}
+			
+			if(exportArg.blockCount == null)
+				throw new RuntimeException("no device size specified" + which + "; see -h for help");
+			
+			// writable layer check: only the topmost layer may be writable
+			for(LayerArg arg : exportArg.layerArgs)
+			{
+				// top can be writable or read-only, either is ok
+				if(arg == exportArg.layerArgs.getLast())
+					continue;
+				
+				// but layers underneath should not be writable
+				if(arg.writable)
+					throw new IllegalArgumentException("only topmost layer may be writable" + which);
+			}
+		}
 
-		if(deviceBlockCount == null)
-			throw new RuntimeException("no device size specified; see -h for help");
+		// the devices, one per export
+		Exports exports = new Exports();
+		for(ExportArg exportArg : exportArgs)
+			exports.add(exportArg.name, new Device(exportArg.blockCount, exportArg.blockSize));
 		
-		// writable layer check: only the topmost layer may be writable
-		for(LayerArg arg : layerArgs)
+		// one block cache for all cached layers, in units of the smallest block size among them
+		BlockCache cache = null;
+		int cacheUnitSize = Device.MAXIMUM_BLOCK_SIZE + 1;
+		for(ExportArg exportArg : exportArgs)
 		{
-			// top can be writable or read-only, either is ok
-			if(arg == layerArgs.getLast())
-				continue;
-			
-			// but layers underneath should not be writable
-			if(arg.writable)
-				throw new IllegalArgumentException("only topmost layer may be writable");
+			for(LayerArg arg : exportArg.layerArgs)
+			{
+				if(arg.cacheEnabled)
+					cacheUnitSize = Math.min(cacheUnitSize, exportArg.blockSize);
+			}
+		}
+		if(cacheSize > 0 && cacheUnitSize <= Device.MAXIMUM_BLOCK_SIZE)
+		{
+			if(cacheSize < cacheUnitSize)
+				throw new IllegalArgumentException(String.format("cache size must be at least one block, %d bytes", cacheUnitSize));
+			cache = new BlockCache(cacheSize, cacheUnitSize);
 		}
 
-		// the device
-		Device device = new Device(deviceBlockCount);
+		// threads for client handlers and for carrying out requests, and their payload buffers; shared by all exports and servers
+		boolean virtualThreads = serverMode.equals("virtual");
+		ExecutorService workers = virtualThreads ? Server.newVirtualWorkerPool() : Server.newWorkerPool(workerCount);
+		BufferPool buffers = new BufferPool(Server.RETAINED_BUFFER_BYTES);
+		ThreadFactory handlerThreads = virtualThreads ? Threads.virtualFactory("nbd-handler-") : Threads.daemonFactory("nbd-handler-");
+		ThreadFactory managerThreads = virtualThreads ? Threads.virtualFactory("manager-handler-") : Threads.daemonFactory("manager-handler-");
 
-		// NBD server daemon
-		ServerSocket serverSocket = new ServerSocket();
-		serverSocket.bind(serverBindOn);
-		Server server = new NBDServer(device, serverSocket);
-		device.setServer(server);
+		// NBD server daemon; clients pick an export by name during negotiation
+		Server server;
+		if(serverMode.equals("nio"))
+		{
+			ServerSocketChannel serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(serverBindOn);
+			server = new NIONBDServer(exports, serverChannel, eventLoopCount, workers, buffers, queueDepth);
+		}
+		else
+		{
+			// a channel's socket, so that accepted sockets have channels too (lets reads be sent straight from flat files)
+			ServerSocket serverSocket = ServerSocketChannel.open().socket();
+			serverSocket.bind(serverBindOn);
+			server = new NBDServer(exports, serverSocket, workers, buffers, queueDepth, handlerThreads);
+		}
+		server.setOldStyleHandshake(oldStyleHandshake);
+		
+		// local clients can skip the TCP stack; the same handling (and workers and buffers) as the TCP server, over a Unix domain socket
+		Server unixServer = null;
+		if(unixSocketPath != null)
+		{
+			unixServer = new NIONBDServer(exports, UnixSockets.bind(unixSocketPath), eventLoopCount, workers, buffers, queueDepth);
+			unixServer.setOldStyleHandshake(oldStyleHandshake);
+		}
 		
 		// management server daemon
 		ServerSocket managerSocket = new ServerSocket();
 		managerSocket.bind(managerBindOn);
-		Manager manager = new Manager(device, managerSocket);
-		device.setManager(manager);
+		Manager manager = new Manager(exports, cache, managerSocket, managerThreads);
 
-		for(LayerArg arg : layerArgs)
+		for(ExportArg exportArg : exportArgs)
 		{
-			Layer layer;
-
-			switch(arg.type)
-			{
-			case FLAT_FILE:
-				layer = new FlatFile(new File(arg.spec), device, arg.writable, arg.cacheEnabled);
-				break;
+			Device device = exports.lookup(exportArg.name);
+			device.addServer(server);
+			if(unixServer != null)
+				device.addServer(unixServer);
+			device.setManager(manager);
 			
-			case EXPANDABLE_FILE:
-				layer = new ExpandableFile(new File(arg.spec), device, arg.writable, arg.cacheEnabled);
-				break;
+			for(LayerArg arg : exportArg.layerArgs)
+			{
+				Layer layer;
+
+				switch(arg.type)
+				{
+				case FLAT_FILE:
+					layer = new FlatFile(new File(arg.spec), device, arg.writable, arg.cacheEnabled ? cache : null);
+					break;
 				
-			case NBD:
-				parts = arg.spec.split(":");
-				if(parts.length != 2)
-					throw new IllegalArgumentException("for NBD layer, format is hostnameorIP:portnumber");
-				InetAddress host = InetAddress.getByName(parts[0]);
-				int port = Integer.parseInt(parts[1]);
-				layer = new NBD(device, arg.writable, arg.cacheEnabled, host, port, null);  // no path support yet
-				break;
-			
-			default:
-				throw new RuntimeException(String.format("sorry, can't handle %s yet", arg.type));
+				case EXPANDABLE_FILE:
+					layer = new ExpandableFile(new File(arg.spec), device, arg.writable, arg.cacheEnabled ? cache : null);
+					break;
+					
+				case NBD:
+					parts = arg.spec.split(":", 3);
+					if(parts.length != 2 && parts.length != 3)
+						throw new IllegalArgumentException("for NBD layer, format is hostnameorIP:portnumber[:exportname]");
+					InetAddress host = InetAddress.getByName(parts[0]);
+					int port = Integer.parseInt(parts[1]);
+					String exportName = (parts.length == 3) ? parts[2] : null;
+					layer = new NBD(device, arg.writable, arg.cacheEnabled ? cache : null, host, port, exportName);
+					break;
+				
+				default:
+					throw new RuntimeException(String.format("sorry, can't handle %s yet", arg.type));
+				}
+				
+				device.addLayer(layer);
 			}
 			
-			device.addLayer(layer);
+			runningDevices.add(device);
 		}
 		
-		// device complete
+		// devices complete
 		
 		// start up services
 		server.start();
+		if(unixServer != null)
+			unixServer.start();
 		manager.start();
 		
 		// dump info to stdout
-		device.dumpInfo();
+		for(ExportArg exportArg : exportArgs)
+		{
+			if(exportArgs.size() > 1)
+				System.err.printf("export: '%s'\n", exportArg.name);
+			exports.lookup(exportArg.name).dumpInfo();
+		}
 
 		// run until NBD server termination
 		server.join();
 	}
+	
+	
+	/**
+	 * @param arg a number of bytes, with an optional suffix K, M, G or T
+	 * @param option the option it was given for, for complaining about it
+	 * @return the number of bytes
+	 */
+	private static long parseByteCount(String arg, char option)
+	{
+		arg = arg.toLowerCase();
+		if(! arg.matches("^[0-9]+[kmgt]?$"))
+			throw new IllegalArgumentException("bad format for -" + option);
+		char suffix = arg.charAt(arg.length() - 1);
+		long numPart;
+		long multiplier = 1L;
+		if(Character.isLetter(suffix))
+		{
+			switch(suffix)
+			{
+			case 'k':
+				multiplier = 1L<<10;
+				break;
+			case 'm':
+				multiplier = 1L<<20;
+				break;
+			case 'g':
+				multiplier = 1L<<30;
+				break;
+			case 't':
+				multiplier = 1L<<40;
+				break;
+			default:
+				// doesn't reach here
+				break;
+			}
+		
+			numPart = Long.parseLong(arg.substring(0, arg.length()-1));
+		}
+		else
+		{
+			numPart = Long.parseLong(arg);
+		}
+
+		return numPart * multiplier;
+	}
 }
@@ -0,0 +1,353 @@
+/*
+ * (C) 2012 Steve O'Brien.  BSD licensed.
+ * see http://www.opensource.org/licenses/BSD-2-Clause
+ * and see LICENSE in the root of this project.
+ */
+
+
+package cc.obrien.lbd;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import cc.obrien.lbd.layer.Extent;
+import cc.obrien.lbd.layer.Layer;
+
+
+/**
+ * Remembers, for runs of blocks, which layer of a {@link Device} is the topmost one holding them,
+ * so a read can go straight to that layer instead of asking every layer above it.
+ * Layers are identified by position counted from the bottom (the {@link cc.obrien.lbd.layer.NullLayer} is 0),
+ * which doesn't change when layers are added on top.
+ *
+ * <p>
+ * The device is cut into regions of {@link #REGION_BLOCKS} blocks.  A region is worked out the first time it's read,
+ * from the layers' {@link Layer#getExtents(long, long)}, and kept as a short list of runs, replaced as a whole when it changes.
+ * Writes then keep it up to date (see {@link #claim(long, long, int)}).
+ * </p>
+ *
+ * <p>
+ * An owner may be too high (the layer it names doesn't actually hold the block; reads just go on down from there)
+ * but is never too low, which would hide newer data:
+ * writes raise owners only after the data is in the layer, and a region being worked out while a write touches it
+ * isn't kept.  An index belongs with a certain stack of layers; see {@link #layerCount}.
+ * </p>
+ * @author sobrien
+ */
+final class OwnershipIndex
+{
+	/** blocks in one region; 2MB */
+	static final int REGION_BLOCKS = 4096;
+
+
+	/**
+	 * a region's owners, as runs; never changed once made
+	 * @author sobrien
+	 */
+	private static final class Region
+	{
+		/** end of each run, as a block offset into the region (exclusive), ascending; null if the region hasn't been worked out yet */
+		final int ends[];
+
+
+		/** each run's owner */
+		final int owners[];
+
+
+		/**
+		 * a region not worked out yet; each one is a different placeholder, so whoever works the region out can tell whether it's been written meanwhile
+		 */
+		Region()
+		{
+			this(null, null);
+		}
+
+
+		/**
+		 * @param ends end of each run
+		 * @param owners each run's owner
+		 */
+		Region(int ends[], int owners[])
+		{
+			this.ends = ends;
+			this.owners = owners;
+		}
+
+
+		/**
+		 * @param owners each block's owner
+		 * @param length number of blocks
+		 * @return a region with those owners, as runs
+		 */
+		static Region of(int owners[], int length)
+		{
+			Runs runs = new Runs(length);
+			for(int i=0; i<length; i++)
+				runs.add(i + 1, owners[i]);
+			return runs.region();
+		}
+
+
+		/**
+		 * @param from first block offset
+		 * @param to offset after the last one
+		 * @param owner a layer now holding those blocks
+		 * @return a copy of this region, with the blocks' owners raised to {@code owner} where they were lower;
+		 *   this region itself if none were
+		 */
+		Region claim(int from, int to, int owner)
+		{
+			// rewriting blocks where they already are is the usual case; nothing changes then
+			boolean raises = false;
+			int start = 0;
+			for(int run=0; run<this.ends.length && start < to && ! raises; run++)
+			{
+				raises = (this.ends[run] > from && this.owners[run] < owner);
+				start = this.ends[run];
+			}
+			if(! raises)
+				return this;
+
+			// each run splits into the part before the blocks, the part among them, and the part after
+			Runs runs = new Runs(this.ends.length + 2);
+			start = 0;
+			for(int run=0; run<this.ends.length; run++)
+			{
+				int end = this.ends[run];
+				int low = Math.max(start, from);
+				int high = Math.min(end, to);
+				if(low < high)
+				{
+					if(low > start)
+						runs.add(low, this.owners[run]);
+					runs.add(high, Math.max(this.owners[run], owner));
+				}
+				runs.add(end, this.owners[run]);
+				start = end;
+			}
+			return runs.region();
+		}
+	}
+
+
+	/**
+	 * builds a {@link Region}'s runs, front to back, merging neighbours with the same owner
+	 * @author sobrien
+	 */
+	private static final class Runs
+	{
+		/** ends of the runs so far */
+		private final int ends[];
+
+
+		/** owners of the runs so far */
+		private final int owners[];
+
+
+		/** number of runs so far */
+		private int count = 0;
+
+
+		/**
+		 * @param capacity most runs there can be
+		 */
+		Runs(int capacity)
+		{
+			this.ends = new int[capacity];
+			this.owners = new int[capacity];
+		}
+
+
+		/**
+		 * @param end end of the next run; not before the last one's (if the same, nothing is added)
+		 * @param owner its owner
+		 */
+		void add(int end, int owner)
+		{
+			if(this.count > 0 && this.ends[this.count - 1] == end)
+				return;
+			if(this.count > 0 && this.owners[this.count - 1] == owner)
+			{
+				this.ends[this.count - 1] = end;
+				return;
+			}
+			this.ends[this.count] = end;
+			this.owners[this.count] = owner;
+			this.count++;
+		}
+
+
+		/**
+		 * @return a region of the runs so far
+		 */
+		Region region()
+		{
+			int ends[] = new int[this.count];
+			int owners[] = new int[this.count];
+			System.arraycopy(this.ends, 0, ends, 0, this.count);
+			System.arraycopy(this.owners, 0, owners, 0, this.count);
+			return new Region(ends, owners);
+		}
+	}
+
+
+	/**
+	 * the number of layers in the stack this index was started for.
+	 * It holds for that stack and any made from it by adding empty layers;
+	 * whoever reads through a stack with fewer layers doesn't put what it works out here.
+	 */
+	final int layerCount;
+
+
+	/** the device's size, in blocks */
+	private final long size;
+
+
+	/** regions by number; those never read are missing */
+	private final ConcurrentHashMap<Long, Region> regions = new ConcurrentHashMap<Long, Region> ();
+
+
+	/**
+	 * @param size the device's size, in blocks
+	 * @param layerCount the number of layers in the stack this is for
+	 */
+	OwnershipIndex(long size, int layerCount)
+	{
+		this.size = size;
+		this.layerCount = layerCount;
+	}
+
+
+	/**
+	 * Say which layer to start reading a range from, for each run of it.
+	 * @param layers the stack being read, top first
+	 * @param startBlock first block
+	 * @param blockCount number of blocks
+	 * @return runs covering the range in order, each as {first block, block after the last, owner's position from the bottom}
+	 * @throws IOException if error occurred while consulting some layer
+	 */
+	List<long[]> owners(Layer layers[], long startBlock, long blockCount) throws IOException
+	{
+		List<long[]> ret = new ArrayList<long[]> ();
+		long limit = startBlock + blockCount;
+		long block = startBlock;
+		while(block < limit)
+		{
+			long number = block / REGION_BLOCKS;
+			long base = number * REGION_BLOCKS;
+			Region region = this.regions.get(number);
+			if(region == null || region.ends == null)
+				region = this.workOut(layers, number, region);
+
+			for(int run=0; run<region.ends.length && block < limit; run++)
+			{
+				long end = base + region.ends[run];
+				if(end > block)
+				{
+					long to = Math.min(end, limit);
+					long last[] = ret.isEmpty() ? null : ret.get(ret.size() - 1);
+					if(last != null && last[1] == block && last[2] == region.owners[run])
+						last[1] = to;
+					else
+						ret.add(new long[] { block, to, region.owners[run] });
+					block = to;
+				}
+			}
+		}
+
+		return ret;
+	}
+
+
+	/**
+	 * Record that a layer now holds some blocks, once the data is there.
+	 * Regions not worked out yet are left for whoever does; anyone working one out right now has to start over.
+	 * @param startBlock first block
+	 * @param blockCount number of blocks
+	 * @param owner the layer's position from the bottom
+	 */
+	void claim(long startBlock, long blockCount, int owner)
+	{
+		long limit = startBlock + blockCount;
+		long block = startBlock;
+		while(block < limit)
+		{
+			long number = block / REGION_BLOCKS;
+			long base = number * REGION_BLOCKS;
+			long to = Math.min(limit, base + REGION_BLOCKS);
+
+			while(true)
+			{
+				Region region = this.regions.get(number);
+				if(region == null)
+					break;  // whoever works it out will see the data
+
+				Region replacement = (region.ends == null) ? new Region() : region.claim((int) (block - base), (int) (to - base), owner);
+				if(replacement == region || this.regions.replace(number, region, replacement))
+					break;
+			}
+
+			block = to;
+		}
+	}
+
+
+	/**
+	 * find out a region's owners from the layers themselves
+	 * @param layers the stack being read, top first
+	 * @param number the region's number
+	 * @param region what the index had for it: null or a placeholder
+	 * @return the region
+	 * @throws IOException if error occurred while consulting some layer
+	 */
+	private Region workOut(Layer layers[], long number, Region region) throws IOException
+	{
+		// a placeholder first: any write from now on replaces it, and then what's worked out below isn't kept
+		if(region == null)
+		{
+			Region placeholder = new Region();
+			region = this.regions.putIfAbsent(number, placeholder);
+			if(region == null)
+				region = placeholder;
+		}
+
+		long base = number * REGION_BLOCKS;
+		long limit = Math.min(base + REGION_BLOCKS, this.size);
+		int owners[] = new int[(int) (limit - base)];
+
+		// each layer claims what it holds of what the layers above it don't
+		List<Extent> missing = new ArrayList<Extent> ();
+		missing.add(new Extent(base, limit, Extent.Status.ABSENT));
+		for(int i=0; i<layers.length && ! missing.isEmpty(); i++)
+		{
+			int position = layers.length - 1 - i;
+			List<Extent> holes = new ArrayList<Extent> ();
+			for(Extent range : missing)
+			{
+				long block = range.start;
+				while(block < range.end)
+				{
+					// a layer may describe less than asked for; ask again for the rest
+					for(Extent extent : layers[i].getExtents(block, range.end))
+					{
+						if(extent.status == Extent.Status.ABSENT)
+							Extent.append(holes, extent);
+						else
+						{
+							for(long b=extent.start; b<extent.end; b++)
+								owners[(int) (b - base)] = position;
+						}
+						block = extent.end;
+					}
+				}
+			}
+			missing = holes;
+		}
+
+		Region worked = Region.of(owners, owners.length);
+		if(layers.length >= this.layerCount)
+			this.regions.replace(number, region, worked);
+		return worked;
+	}
+}
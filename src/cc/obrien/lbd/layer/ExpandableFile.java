@@ -7,14 +7,16 @@
 
 package cc.obrien.lbd.layer;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import cc.obrien.lbd.Device;
+import cc.obrien.lbd.util.BlockCache;
 
 
 /**
@@ -29,6 +31,26 @@ import cc.obrien.lbd.Device;
  * Each node in the tree contains 64 references to either other nodes (if at level 0 through 4)
  * or a list of block locations (level 5).  This means (2**(6 * 6)) = (2**36) sectors are addressable,
  * which means (2**45) == 32TB are possible here.
+ * That's for 512-byte blocks; a table is always one block, so with bigger blocks each has more entries,
+ * and there are only as many levels as it takes to address (2**36) blocks (4 levels of 512 entries for 4KB blocks, 3 of 8192 for 64KB).
+ * </p>
+ * 
+ * <p>
+ * Version 2 files can also record a block as zero, without storing any data for it ({@link #ZERO_ENTRY}),
+ * and keep a free list of data blocks that were given up that way, for reuse.  The free list is threaded through the
+ * free blocks themselves (each starts with the location of the next), starting from entry {@link #freeListEntry}
+ * of the root table.  Version 1 files are upgraded the first time either is needed.
+ * </p>
+ * 
+ * <p>
+ * Version 3 files are version 2 files for devices whose blocks aren't 512 bytes (see {@link Device#blockSize});
+ * the entry of the root table just before the free list records the block size, so a file isn't opened with the wrong one.
+ * Files for 512-byte blocks are never version 3.
+ * </p>
+ * 
+ * <p>
+ * Reads share {@link #indexLock}; writes, and anything else that changes the index, take it alone.
+ * Data blocks are read and written at their positions in the file, so readers don't queue up for the file pointer.
  * </p>
  * 
  * @author sobrien
@@ -36,54 +58,141 @@ import cc.obrien.lbd.Device;
 public final class ExpandableFile extends FileStorage
 {
 	/**
-	 * magic value expected at bytes 504 thru 511 (big endian) in the expandable file,
+	 * magic value expected in the last 8 bytes of the first block (bytes 504 thru 511, for 512-byte blocks; big endian) in the expandable file,
 	 * to pass validation (empty files are also valid).
 	 * This is OR'ed with {@link #FILE_FORMAT_VERSION} to produce the real magic bytes written to the file.
 	 */
 	public static final long FILE_MAGIC = 0x4c42445801010100L;   // LBDX(01 01 01)N where N is the file format version number
 
 	
-	/** we only write version 1 files */
-	public static final int FILE_FORMAT_VERSION = 1;
+	/**
+	 * the newest file format version; files for 512-byte blocks start out as version 1, and are upgraded only when they need something newer.
+	 * Files for other block sizes are version 3 from the start.
+	 */
+	public static final int FILE_FORMAT_VERSION = 3;
+	
+	
+	/** a leaf entry meaning the block is all zeroes, rather than a block location (which are multiples of the block size); version 2 and up */
+	private static final long ZERO_ENTRY = 1;
+	
+	
+	/** in version 2, root table entries 62 and 63 are reserved, which limits the size to 32TB * (62.0/64.0) = 31TB; version 3 reserves 3 entries of its bigger root table */
+	private static final long VERSION_2_MAX_BLOCKS = 62L << 30;
+	
+	
+	/** log2 of the number of blocks the index can address, whatever the block size */
+	private static final int ADDRESS_BITS = 36;
+	
+	
+	/** most index tables read by one call to {@link #mapExtents(long, long)} */
+	private static final int MAX_TABLES_PER_MAP = 4096;
+	
+	
+	/** most data blocks {@link #deallocate(long, int, boolean)} gathers (at least a leaf table's worth) before syncing and putting them on the free list */
+	private static final int MAX_BLOCKS_PER_FREE = 4096;
+	
+	
+	/** format version of this file */
+	private int version;
+	
+	
+	/** log2 of the number of entries in each table; a table is one block of 8-byte entries */
+	private final int tableBits;
+	
+	
+	/** number of entries in each table */
+	private final int tableEntries;
+	
+	
+	/** number of levels of tables; the last level (the leaves) holds block locations */
+	private final int levels;
+	
+	
+	/** entry of the root table which heads the free list, in version 2 and up; the last entry has the magic */
+	private final int freeListEntry;
+	
+	
+	/** entry of the root table which records the block size, in version 3 */
+	private final int blockSizeEntry;
+	
+	
+	/**
+	 * shared by lookups in the index (and the data reads that follow them);
+	 * held alone while the index changes, so nobody follows an entry to a data block that is being freed or reused
+	 */
+	private final ReentrantReadWriteLock indexLock = new ReentrantReadWriteLock();
 		
 	
 	/**
 	 * @param file filesystem file
 	 * @param device device this belongs to
 	 * @param writable writable?
-	 * @param cacheEnabled
+	 * @param cache the block cache to use; <code>null</code> for none
 	 * @throws IOException if file could not be accessed
 	 */
-	public ExpandableFile(File file, Device device, boolean writable, boolean cacheEnabled) throws IOException
+	public ExpandableFile(File file, Device device, boolean writable, BlockCache cache) throws IOException
 	{
-		super(file, device, writable, cacheEnabled);
+		super(file, device, writable, cache);
+		
+		this.tableBits = device.blockShift - 3;
+		this.tableEntries = 1 << this.tableBits;
+		this.levels = (ADDRESS_BITS + this.tableBits - 1) / this.tableBits;
+		this.freeListEntry = this.tableEntries - 2;
+		this.blockSizeEntry = this.tableEntries - 3;
+		this.version = (device.blockSize == Device.MINIMUM_BLOCK_SIZE) ? 1 : 3;
 		
 		// check magic (if empty file, then ok; skip)
 		if(this.file.length() > 0)
 		{
-			if(file.length() % 512 != 0)
-				throw new IllegalArgumentException("file length not a multiple of 512");
+			if(file.length() % device.blockSize != 0)
+				throw new IllegalArgumentException("file length not a multiple of " + device.blockSize);
 
-			if(this.file.length() < 512)
+			if(this.file.length() < device.blockSize)
 				throw new IllegalArgumentException("bad file size: " + file.length());
 			
-			this.file.seek(512 - 8);
+			this.file.seek(device.blockSize - 8);
 			long magic = this.file.readLong();
 			if((magic & ~0xff) != (FILE_MAGIC & ~0xff))
-				throw new IllegalArgumentException("bad file magic");
+			{
+				// files for 512-byte blocks have it at the end of their first 512 bytes instead
+				this.file.seek(Device.MINIMUM_BLOCK_SIZE - 8);
+				if(device.blockSize != Device.MINIMUM_BLOCK_SIZE && (this.file.readLong() & ~0xff) == (FILE_MAGIC & ~0xff))
+					throw new IllegalArgumentException(String.format("file was made with 512-byte blocks, not %d", device.blockSize));
+				throw new IllegalArgumentException("bad file magic; or the file was made with a different block size than " + device.blockSize);
+			}
 			
-			int version = (int)(magic & 0xff);
-			if(version == 1)
+			this.version = (int)(magic & 0xff);
+			if(this.version < 3 && device.blockSize != Device.MINIMUM_BLOCK_SIZE)
+			{
+				throw new IllegalArgumentException(String.format("file was made with 512-byte blocks, not %d", device.blockSize));
+			}
+			else if(this.version == 1)
 			{
 				if(device.size >= 0x1F8000000000L)		// last entry (#63) of the 64-entry root table is reserved, which limits the size to 32.0TB * (63.0/64.0) = 31.5TB
 					throw new IllegalArgumentException("virtual device too big; 31.5TB limit");
 			}
+			else if(this.version == 2)
+			{
+				if(device.size > VERSION_2_MAX_BLOCKS)
+					throw new IllegalArgumentException("virtual device too big; 31TB limit");
+			}
+			else if(this.version == 3)
+			{
+				this.file.seek(device.blockSize - (8 * (this.tableEntries - this.blockSizeEntry)));
+				long blockSize = this.file.readLong();
+				if(blockSize != device.blockSize)
+					throw new IllegalArgumentException(String.format("file was made with %d-byte blocks, not %d", blockSize, device.blockSize));
+			}
 			else
 			{
-				throw new IllegalArgumentException("only version 1 expandable files supported");
+				throw new IllegalArgumentException("only version 1, 2 and 3 expandable files supported");
 			}
 		}
 		
+		// the last 3 root table entries are reserved in version 3
+		if(this.version == 3 && device.size > ((long) (this.tableEntries - 3) << (this.tableBits * (this.levels - 1))))
+			throw new IllegalArgumentException("virtual device too big for an expandable file with this block size");
+		
 		this.lockFile();
 	}
 
@@ -98,24 +207,102 @@ public final class ExpandableFile extends FileStorage
 	@Override
 	public boolean fetchBlock(long block, int arrayOffset, byte[] contents) throws IOException
 	{
-		long fileOffset = this.getFileOffsetForBlock(block, false);
-		if(fileOffset == 0)
+		indexLock.readLock().lock();
+		try
 		{
-			// unmapped block; let the next layer try to handle it
-			return false;
+			Table leaf = this.getLeafTable(block, false);
+			long fileOffset = (leaf == null) ? 0 : leaf.entries[this.entryIndex(block)];
+			if(fileOffset == 0)
+			{
+				// unmapped block; let the next layer try to handle it
+				return false;
+			}
+			else if(fileOffset == ZERO_ENTRY)
+			{
+				Arrays.fill(contents, arrayOffset, arrayOffset + device.blockSize, (byte) 0);
+				return true;
+			}
+			else
+			{
+				// read from this block
+				int result = this.readAt(fileOffset, contents, arrayOffset, device.blockSize);
+				if(result != device.blockSize)
+					throw new RuntimeException(String.format("failed to read %d bytes at %d", device.blockSize, fileOffset));
+				return true;
+			}
 		}
-		else
+		finally
 		{
-			// read from this block
-			file.seek(fileOffset);
-			int result = file.read(contents, arrayOffset, 512);
-			if(result != 512)
-				throw new RuntimeException("failed to read 512 bytes at " + fileOffset);
-			return true;
+			indexLock.readLock().unlock();
 		}
 	}
 	
 
+	/**
+	 * Looks up each leaf table once, rather than walking the index for every block,
+	 * and reads each run of blocks stored one after another in the file with one read.
+	 */
+	@Override
+	protected List<Extent> fetchRange(long startBlock, int blockCount, int arrayOffset, byte[] contents) throws IOException
+	{
+		List<Extent> holes = new ArrayList<Extent> ();
+		long limit = startBlock + blockCount;
+		int blockSize = device.blockSize;
+		
+		indexLock.readLock().lock();
+		try
+		{
+			long block = startBlock;
+			while(block < limit)
+			{
+				long leafLimit = Math.min(limit, (block | (this.tableEntries - 1)) + 1);
+				Table leaf = this.getLeafTable(block, false);
+				if(leaf == null)
+				{
+					// unmapped blocks; let the next layer try to handle them
+					Extent.append(holes, new Extent(block, leafLimit, Extent.Status.ABSENT));
+					block = leafLimit;
+					continue;
+				}
+				
+				while(block < leafLimit)
+				{
+					long fileOffset = leaf.entries[this.entryIndex(block)];
+					int offset = (int) (arrayOffset + ((block - startBlock) * blockSize));
+					if(fileOffset == 0)
+					{
+						Extent.append(holes, new Extent(block, block + 1, Extent.Status.ABSENT));
+						block++;
+					}
+					else if(fileOffset == ZERO_ENTRY)
+					{
+						Arrays.fill(contents, offset, offset + blockSize, (byte) 0);
+						block++;
+					}
+					else
+					{
+						// as many of the following blocks as are stored right after this one
+						int run = 1;
+						while(block + run < leafLimit && leaf.entries[this.entryIndex(block + run)] == fileOffset + ((long) blockSize * run))
+							run++;
+						
+						int result = this.readAt(fileOffset, contents, offset, blockSize * run);
+						if(result != blockSize * run)
+							throw new RuntimeException(String.format("failed to read %d bytes at %d", blockSize * run, fileOffset));
+						block += run;
+					}
+				}
+			}
+		}
+		finally
+		{
+			indexLock.readLock().unlock();
+		}
+		
+		return holes;
+	}
+	
+
 	/**
 	 * @param block
 	 * @param arrayOffset
@@ -126,13 +313,118 @@ public final class ExpandableFile extends FileStorage
 	@Override
 	public boolean commitBlock(long block, int arrayOffset, byte[] contents) throws IOException
 	{
-		long fileOffset = this.getFileOffsetForBlock(block, true);
-
-		if(fileOffset == 0)
-			return false;
+		// alone, even to overwrite in place: finding that out under a shared lock first would mean walking the index twice for new blocks
+		indexLock.writeLock().lock();
+		try
+		{
+			Table leaf = this.getLeafTable(block, true);
+			int index = this.entryIndex(block);
+			long fileOffset = leaf.entries[index];
+	
+			if(fileOffset == 0 || fileOffset == ZERO_ENTRY)
+			{
+				long reused = this.takeFreeDataBlock();
+				if(reused != 0)
+				{
+					// a reused block still holds some other block's old data, so it gets this block's, durably, before the leaf points at it;
+					// a crash before the leaf is saved just leaks it
+					this.writeAt(reused, contents, arrayOffset, device.blockSize);
+					this.sync();
+					leaf.entries[index] = reused;
+					leaf.save();
+					return true;
+				}
+				
+				// a new block reads as zeroes until written
+				fileOffset = this.extend();
+				leaf.entries[index] = fileOffset;
+				leaf.save();
+			}
+			
+			this.writeAt(fileOffset, contents, arrayOffset, device.blockSize);
+			return true;
+		}
+		finally
+		{
+			indexLock.writeLock().unlock();
+		}
+	}
+	
+	
+	/**
+	 * Record the blocks as zero (or absent) in the index, and put the data blocks they had on the free list.
+	 * Each leaf table is saved once (covering 64 blocks, for 512-byte blocks); the data blocks they let go of are then synced,
+	 * linked and put on the free list in batches of up to {@link #MAX_BLOCKS_PER_FREE}.
+	 */
+	@Override
+	protected boolean deallocateBlocks(long startBlock, int blockCount, boolean shadow) throws IOException
+	{
+		indexLock.writeLock().lock();
+		try
+		{
+			return this.deallocate(startBlock, blockCount, shadow);
+		}
+		finally
+		{
+			indexLock.writeLock().unlock();
+		}
+	}
+	
+	
+	/**
+	 * {@link #deallocateBlocks(long, int, boolean)}, with {@link #indexLock} held alone
+	 * @param startBlock first block
+	 * @param blockCount number of blocks
+	 * @param shadow whether to record the blocks as zero rather than absent
+	 * @return true if done; false if the file format can't say "zero"
+	 * @throws IOException if error occurred while reading/writing the file
+	 */
+	private boolean deallocate(long startBlock, int blockCount, boolean shadow) throws IOException
+	{
+		if(shadow && ! this.upgrade())
+			return false;  // file format can't say "zero"
+		
+		long entry = shadow ? ZERO_ENTRY : 0;
+		long limit = startBlock + blockCount;
+		long block = startBlock;
+		long freed[] = new long[Math.min(blockCount, Math.max(MAX_BLOCKS_PER_FREE, this.tableEntries))];
+		int freedCount = 0;
+		while(block < limit)
+		{
+			long leafLimit = Math.min(limit, (block | (this.tableEntries - 1)) + 1);
+			if(freedCount + (leafLimit - block) > freed.length)
+			{
+				this.freeDataBlocks(freed, freedCount);
+				freedCount = 0;
+			}
+			
+			// blocks that must read as zero need a table to say so; absent ones don't
+			Table leaf = this.getLeafTable(block, shadow);
+			if(leaf != null)
+			{
+				boolean changed = false;
+				for(; block < leafLimit; block++)
+				{
+					int index = this.entryIndex(block);
+					long old = leaf.entries[index];
+					if(old == entry)
+						continue;
+					
+					if(old != 0 && old != ZERO_ENTRY)
+						freed[freedCount++] = old;
+					leaf.entries[index] = entry;
+					changed = true;
+				}
+				
+				// the leaf lets go of the data blocks before they go on the free list (see freeDataBlocks)
+				if(changed)
+					leaf.save();
+			}
+			
+			block = leafLimit;
+		}
+		this.freeDataBlocks(freed, freedCount);
 		
-		file.seek(fileOffset);
-		file.write(contents, arrayOffset, 512);
 		return true;
 	}
 
@@ -142,37 +434,262 @@ public final class ExpandableFile extends FileStorage
 	 * 432109876543210987654321098765432109876543210
 	 * AAAAAABBBBBBCCCCCCDDDDDDEEEEEEFFFFFFooooooooo
 	 * A - F are L0-L5 indexes; o = startBlock into block.
-	 * supports up to 45-bit addresses (32TB)
+	 * supports up to 45-bit addresses (32TB), for 512-byte blocks; bigger blocks have wider indexes, and fewer of them
 	 * @param blockNumber virtual starting block
-	 * @param allocateIfNotFound if block for this virtual region not yet present in this expandable file, build it
-	 * @return the startBlock into the file for that block (block-aligned); or zero if not found and <code>(! allocateIfNotFound)</code>
+	 * @param allocateIfNotFound if the tables for this virtual region are not yet present in this expandable file, build them
+	 * @return the leaf table holding the entry for that block (entry {@link #entryIndex(long)}); or null if not found and <code>(! allocateIfNotFound)</code>
 	 * @throws IOException if error occurred while reading/writing file
 	 */
-	private long getFileOffsetForBlock(long blockNumber, boolean allocateIfNotFound) throws IOException
+	private Table getLeafTable(long blockNumber, boolean allocateIfNotFound) throws IOException
 	{
+		if(! allocateIfNotFound && this.file.length() == 0)
+			return null;  // nothing written yet, not even the root table
+		
 		Table table = new Table(0);  // root table at location 0
-		long ret = 0;
-		for(int level=0; level<6; level++)
+		for(int level=0; level<this.levels-1; level++)
 		{
-			int shift = (6 - level - 1) * 6;
-			int index = (int) ((blockNumber >> shift) & 0x3f);
+			int shift = (this.levels - level - 1) * this.tableBits;
+			int index = this.entryIndex(blockNumber >> shift);
 
-			if(level < 5)
+			table = table.getTableEntry(index, allocateIfNotFound);
+			if(table == null)
+				return null;
+		}
+
+		return table;
+	}
+	
+	
+	/**
+	 * @param block a block number, or (for tables above the leaves) the block number shifted right by the bits the levels below take care of
+	 * @return the entry for it in the table covering it
+	 */
+	private int entryIndex(long block)
+	{
+		return (int) (block & (this.tableEntries - 1));
+	}
+	
+	
+	/**
+	 * upgrade to version 2, if not already
+	 * @return true if the file is now version 2; false if the device is too big for version 2 (see {@link #VERSION_2_MAX_BLOCKS})
+	 * @throws IOException if error occurred while writing the file
+	 */
+	private boolean upgrade() throws IOException
+	{
+		if(this.version >= 2)
+			return true;
+		
+		if(this.device.size > VERSION_2_MAX_BLOCKS)
+			return false;
+		
+		this.version = 2;
+		new Table(0).save();  // rewrites the magic
+		return true;
+	}
+	
+	
+	/**
+	 * Take a data block off the free list, if there is one.
+	 * That's made durable before returning, since writing the block overwrites its link to the next:
+	 * a crash afterwards leaks the block, rather than leaving the free list leading into data.
+	 * @return location of the data block; 0 if the free list is empty
+	 * @throws IOException if error occurred while reading/writing the file
+	 */
+	private long takeFreeDataBlock() throws IOException
+	{
+		if(this.version < 2)
+			return 0;
+		
+		Table root = new Table(0);
+		long head = root.entries[this.freeListEntry];
+		if(head == 0)
+			return 0;
+		
+		synchronized(file)
+		{
+			file.seek(head);
+			root.entries[this.freeListEntry] = file.readLong();
+		}
+		root.save();
+		this.sync();
+		return head;
+	}
+	
+	
+	/**
+	 * Put data blocks on the free list, for reuse by {@link #takeFreeDataBlock()}; the root table is saved once, after they're all linked.
+	 * The tables that let go of them are synced first, as linking overwrites the blocks: a crash in between leaks them,
+	 * rather than leaving them both in use and free, to be handed out again.
+	 * @param fileOffsets locations of the data blocks, which must no longer be referred to by any saved table
+	 * @param count how many of them there are
+	 * @throws IOException if error occurred while reading/writing the file
+	 */
+	private void freeDataBlocks(long fileOffsets[], int count) throws IOException
+	{
+		if(count == 0)
+			return;
+		if(! this.upgrade())
+			return;  // just leak them; the file format can't keep track of them
+		
+		this.sync();
+		Table root = new Table(0);
+		long head = root.entries[this.freeListEntry];
+		for(int i=0; i<count; i++)
+		{
+			synchronized(file)
 			{
-				table = table.getTableEntry(index, allocateIfNotFound);
-				if(table == null)
-				{
-					ret = 0;
-					break;
-				}
+				file.seek(fileOffsets[i]);
+				file.writeLong(head);
+			}
+			head = fileOffsets[i];
+		}
+		root.entries[this.freeListEntry] = head;
+		root.save();
+	}
+	
+	
+	/**
+	 * Answers from the index alone; no data blocks are read.
+	 */
+	@Override
+	public boolean mayHoldBlocks(long startBlock, int blockCount) throws IOException
+	{
+		if(this.cacheEnabled && this.anyDirty(startBlock, blockCount))
+			return true;
+		
+		indexLock.readLock().lock();
+		try
+		{
+			long limit = startBlock + blockCount;
+			return this.nextMappedBlock(startBlock, limit) < limit;
+		}
+		finally
+		{
+			indexLock.readLock().unlock();
+		}
+	}
+	
+	
+	/**
+	 * Walks the index, skipping whole subtrees that are not allocated.
+	 * Stops early once it has read {@link #MAX_TABLES_PER_MAP} tables, so huge, densely written ranges don't take forever.
+	 */
+	@Override
+	protected List<Extent> mapExtents(long start, long limit) throws IOException
+	{
+		List<Extent> extents = new ArrayList<Extent> ();
+		if(this.file.length() == 0)
+		{
+			// nothing written yet, not even the root table
+			extents.add(new Extent(start, limit, Extent.Status.ABSENT));
+			return extents;
+		}
+		
+		indexLock.readLock().lock();
+		try
+		{
+			int budget[] = { MAX_TABLES_PER_MAP };
+			this.mapTable(new Table(0), 0, 0, start, limit, extents, budget);
+			return extents;
+		}
+		finally
+		{
+			indexLock.readLock().unlock();
+		}
+	}
+	
+	
+	/**
+	 * add extents for the part of a range covered by one table
+	 * @param table the table
+	 * @param level its level; 0 (the root) to {@link #levels} - 1
+	 * @param base first block covered by the table
+	 * @param start first block to describe
+	 * @param limit block after the last one to describe
+	 * @param extents receives the extents, merged where possible
+	 * @param budget number of tables we may still read (a one-element array, so it's shared across the recursion)
+	 * @return true if the range was covered; false if the budget ran out first
+	 * @throws IOException if error occurred while reading the index
+	 */
+	private boolean mapTable(Table table, int level, long base, long start, long limit, List<Extent> extents, int budget[]) throws IOException
+	{
+		int shift = (this.levels - level - 1) * this.tableBits;  // each entry covers 2**shift blocks
+		for(int i = (int) ((Math.max(start, base) - base) >> shift); i < this.tableEntries; i++)
+		{
+			long entryStart = base + ((long) i << shift);
+			if(entryStart >= limit)
+				break;
+			
+			long from = Math.max(entryStart, start);
+			long to = Math.min(entryStart + (1L << shift), limit);
+			long entry = table.entries[i];
+			if(level == this.levels - 1)
+			{
+				Extent.Status status = (entry == 0) ? Extent.Status.ABSENT : (entry == ZERO_ENTRY) ? Extent.Status.ZERO : Extent.Status.DATA;
+				Extent.append(extents, new Extent(from, to, status));
+			}
+			else if(entry == 0)
+			{
+				// nothing beneath this entry
+				Extent.append(extents, new Extent(from, to, Extent.Status.ABSENT));
 			}
 			else
 			{
-				ret = table.getEntry(index, allocateIfNotFound);
+				if(budget[0]-- <= 0)
+					return false;
+				if(! this.mapTable(new Table(entry), level + 1, entryStart, from, to, extents, budget))
+					return false;
 			}
 		}
-
-		return ret;
+		
+		return true;
+	}
+	
+	
+	/**
+	 * Find the first block in a range that is present in this file.
+	 * Skips whole subtrees of the index that are not allocated, so scanning a large sparse range is cheap.
+	 * @param block first block to consider
+	 * @param limit block after the last one to consider
+	 * @return the first mapped block in {@code [block, limit)}, or {@code limit} if there is none
+	 * @throws IOException if error occurred while reading the index
+	 */
+	private long nextMappedBlock(long block, long limit) throws IOException
+	{
+		if(this.file.length() == 0)
+			return limit;  // nothing written yet, not even the root table
+		
+		while(block < limit)
+		{
+			Table table = new Table(0);  // root table at location 0
+			int skipShift = 0;
+			for(int level=0; level<this.levels; level++)
+			{
+				int shift = (this.levels - level - 1) * this.tableBits;
+				int index = this.entryIndex(block >> shift);
+				
+				if(level < this.levels - 1)
+				{
+					table = table.getTableEntry(index, false);
+					if(table == null)
+					{
+						// nothing beneath this entry; skip all the blocks it would have covered
+						skipShift = shift;
+						break;
+					}
+				}
+				else
+				{
+					if(table.getEntry(index, false) != 0)
+						return block;
+				}
+			}
+			
+			block = ((block >> skipShift) + 1) << skipShift;
+		}
+		
+		return limit;
 	}
 	
 	
@@ -186,7 +703,7 @@ public final class ExpandableFile extends FileStorage
 		synchronized(file)
 		{
 			long fileOffset = file.length();
-			file.setLength(fileOffset + 512);
+			file.setLength(fileOffset + device.blockSize);
 			return fileOffset;
 		}
 	}
@@ -194,7 +711,7 @@ public final class ExpandableFile extends FileStorage
 	
 	/**
 	 * a table that refers to other tables, or to sector locations.
-	 * Has 64 entries.  (Not written as a constant; it's a pretty much hard-set number (512 byte sector size / 8 bytes per long)
+	 * Takes up one block, so has {@link ExpandableFile#tableEntries} entries: 64 for 512-byte blocks (512 byte sector size / 8 bytes per long)
 	 * @author sobrien
 	 */
 	private class Table
@@ -202,8 +719,8 @@ public final class ExpandableFile extends FileStorage
 		/** permanent startBlock of this table in the file; if not yet written, then 0 */
 		public final long fileOffset;
 		
-		/** the 64 entries: pointers to sub-tables or block locations */
-		private final long entries[] = new long[64];		// these can be sector startBlocks (if level 5) or startBlocks to sub-tables (if level 0 through 4)
+		/** the entries: pointers to sub-tables or block locations */
+		private final long entries[] = new long[tableEntries];		// these can be sector startBlocks (if the leaf level) or startBlocks to sub-tables (if above it)
 
 	
 		/**
@@ -215,27 +732,21 @@ public final class ExpandableFile extends FileStorage
 		{
 			this.fileOffset = fileOffset;
 			
-			byte block[] = new byte[512];
+			byte block[] = new byte[device.blockSize];
 			
-			synchronized(file)
+			if(file.length() >= (fileOffset + block.length))
 			{
-				if(file.length() >= (fileOffset + 512))
-				{
-					file.seek(fileOffset);
-					int result = file.read(block);
-					if(result != block.length)
-						throw new RuntimeException("incomplete read at " + fileOffset);
-				}
-				else
-				{
-					for(int i=0; i<512; i++)  block[i] = 0;
-					this.save();
-				}
+				int result = readAt(fileOffset, block, 0, block.length);
+				if(result != block.length)
+					throw new RuntimeException("incomplete read at " + fileOffset);
+			}
+			else
+			{
+				// only ever the root table of an empty file, as it's first written to
+				this.save();
 			}
 
-			DataInputStream data = new DataInputStream(new ByteArrayInputStream(block));
-			for(int i=0; i<64; i++)
-				entries[i] = data.readLong();
+			ByteBuffer.wrap(block).asLongBuffer().get(entries);
 		}
 		
 		
@@ -245,23 +756,17 @@ public final class ExpandableFile extends FileStorage
 		 */
 		private void save() throws IOException
 		{
-			ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
-			DataOutputStream data = new DataOutputStream(bytes);
-
 			if(this.fileOffset == 0)
 			{
 				// it's the root table
-				entries[63] = FILE_MAGIC | FILE_FORMAT_VERSION;
+				entries[tableEntries - 1] = FILE_MAGIC | version;
+				if(version >= 3)
+					entries[blockSizeEntry] = device.blockSize;
 			}
 			
-			for(int i=0; i<64; i++)
-				data.writeLong(this.entries[i]);
-
-			synchronized(file)
-			{
-				file.seek(fileOffset);
-				file.write(bytes.toByteArray());
-			}
+			byte block[] = new byte[device.blockSize];
+			ByteBuffer.wrap(block).asLongBuffer().put(this.entries);
+			writeAt(fileOffset, block, 0, block.length);
 		}
 		
 		
@@ -0,0 +1,88 @@
+/*
+ * (C) 2012 Steve O'Brien.  BSD licensed.
+ * see http://www.opensource.org/licenses/BSD-2-Clause
+ * and see LICENSE in the root of this project.
+ */
+
+
+package cc.obrien.lbd.layer;
+
+import java.util.List;
+
+
+/**
+ * A run of blocks which a layer (or the whole device) holds in the same way; see {@link Layer#getExtents(long, long)}.
+ * @author sobrien
+ */
+public final class Extent
+{
+	/**
+	 * how a layer holds some blocks
+	 * @author sobrien
+	 */
+	public static enum Status
+	{
+		/** not held by this layer; reads fall through to the layer below */
+		ABSENT,
+		/** held as data; reads return whatever was stored */
+		DATA,
+		/** held as zeroes, without any data stored for them */
+		ZERO,
+	}
+
+
+	/** first block */
+	public final long start;
+
+
+	/** block after the last one */
+	public final long end;
+
+
+	/** how the blocks are held */
+	public final Status status;
+
+
+	/**
+	 * @param start first block
+	 * @param end block after the last one
+	 * @param status how the blocks are held
+	 */
+	public Extent(long start, long end, Status status)
+	{
+		if(end <= start)
+			throw new IllegalArgumentException(String.format("empty extent [%d, %d)", start, end));
+
+		this.start = start;
+		this.end = end;
+		this.status = status;
+	}
+
+
+	/**
+	 * append to a list of extents, merging with the last one if it's adjacent and has the same status
+	 * @param extents extents so far, in order
+	 * @param extent the next one
+	 */
+	public static void append(List<Extent> extents, Extent extent)
+	{
+		if(! extents.isEmpty())
+		{
+			Extent last = extents.get(extents.size() - 1);
+			if(last.end == extent.start && last.status == extent.status)
+			{
+				extents.set(extents.size() - 1, new Extent(last.start, extent.end, extent.status));
+				return;
+			}
+		}
+		
+		extents.add(extent);
+	}
+
+
+	@Override
+	public String toString()
+	{
+		return String.format("[%d, %d) %s", start, end, status);
+	}
+}
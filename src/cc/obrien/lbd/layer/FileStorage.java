@@ -10,9 +10,12 @@ package cc.obrien.lbd.layer;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 
 import cc.obrien.lbd.Device;
+import cc.obrien.lbd.util.BlockCache;
 
 
 /**
@@ -40,12 +43,12 @@ abstract public class FileStorage extends Layer
 	 * @param file a RW file
 	 * @param device device this belongs to
 	 * @param writable file can be written to? (if not, IOException is thrown during {@link #writeBlock(long, int, byte[])} calls
-	 * @param canCacheReadsIndefinitely ok to cache blocks that we've read?
+	 * @param cache the block cache to use; <code>null</code> for none
 	 * @throws IOException if we couldn't create a RandomAccessFile in the desired mode
 	 */
-	public FileStorage(File file, Device device, boolean writable, boolean canCacheReadsIndefinitely) throws IOException
+	public FileStorage(File file, Device device, boolean writable, BlockCache cache) throws IOException
 	{
-		super(device, writable, canCacheReadsIndefinitely);
+		super(device, writable, cache);
 		
 		this.fileObject = file;
 		this.file = new RandomAccessFile(file, writable ? "rw" : "r");
@@ -63,6 +66,55 @@ abstract public class FileStorage extends Layer
 	}
 	
 	
+	/**
+	 * Read from the file at a position, without using or moving the file pointer, so concurrent readers and writers don't get in each other's way.
+	 * @param position position in the file
+	 * @param bytes receives the data
+	 * @param arrayOffset where in {@code bytes} to start
+	 * @param length number of bytes wanted
+	 * @return number of bytes read; less than {@code length} only if the file ends first
+	 * @throws IOException if error occurred reading the file
+	 */
+	protected int readAt(long position, byte bytes[], int arrayOffset, int length) throws IOException
+	{
+		FileChannel channel = this.file.getChannel();
+		ByteBuffer buffer = ByteBuffer.wrap(bytes, arrayOffset, length);
+		while(buffer.hasRemaining())
+		{
+			if(channel.read(buffer, position + (buffer.position() - arrayOffset)) < 0)
+				break;
+		}
+		return buffer.position() - arrayOffset;
+	}
+	
+	
+	/**
+	 * Write to the file at a position, without using or moving the file pointer; see {@link #readAt(long, byte[], int, int)}.
+	 * @param position position in the file
+	 * @param bytes the data
+	 * @param arrayOffset where in {@code bytes} to start
+	 * @param length number of bytes to write
+	 * @throws IOException if error occurred writing the file
+	 */
+	protected void writeAt(long position, byte bytes[], int arrayOffset, int length) throws IOException
+	{
+		FileChannel channel = this.file.getChannel();
+		ByteBuffer buffer = ByteBuffer.wrap(bytes, arrayOffset, length);
+		while(buffer.hasRemaining())
+			channel.write(buffer, position + (buffer.position() - arrayOffset));
+	}
+	
+	
+	/**
+	 * fsync the file, including its length, which changes for files that grow
+	 */
+	@Override
+	protected void sync() throws IOException
+	{
+		this.file.getChannel().force(true);
+	}
+	
+	
 	@Override
 	public void stop() throws IOException
 	{
@@ -9,14 +9,21 @@ package cc.obrien.lbd.layer;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import cc.obrien.lbd.Device;
+import cc.obrien.lbd.util.BlockCache;
 
 
 /**
  * A big flat file representing a block device's content.
  * The storage instance's span is the size of this file, in blocks.
- * File size must be a multiple of 512 (the block size);
+ * File size must be exactly that of the device: its number of blocks times its block size.
+ * Reads and writes are positional, without the file pointer, so any number of them can go at once,
+ * and a run of blocks is read or written with one call.
  * @author sobrien
  *
  */
@@ -26,15 +33,15 @@ public final class FlatFile extends FileStorage
 	 * @param file file to use for random access
 	 * @param device device this belongs to
 	 * @param writable whether this will be writable into
-	 * @param canCacheReadsIndefinitely ok to cache blocks we've read?
+	 * @param cache the block cache to use; <code>null</code> for none
 	 * @throws IOException error occurred during opening of file
-	 * @throws AssertionError if the file's size is not exactly the size of the device, in bytes (512 * {@link Device#size})
+	 * @throws AssertionError if the file's size is not exactly the size of the device, in bytes ({@link Device#blockSize} * {@link Device#size})
 	 */
-	public FlatFile(File file, Device device, boolean writable, boolean canCacheReadsIndefinitely) throws IOException
+	public FlatFile(File file, Device device, boolean writable, BlockCache cache) throws IOException
 	{
-		super(file, device, writable, canCacheReadsIndefinitely);
+		super(file, device, writable, cache);
 
-		long expectedLength = device.size * 512L;
+		long expectedLength = device.size << device.blockShift;
 		if(file.length() != expectedLength)
 			throw new IllegalArgumentException(String.format("bad file length %d, expected %d", file.length(), expectedLength));
 		
@@ -45,28 +52,75 @@ public final class FlatFile extends FileStorage
 	@Override
 	public boolean commitBlock(long startBlock, int arrayOffset, byte[] contents) throws IOException
 	{
-		synchronized(file)
-		{
-			file.seek(startBlock * 512L);
-			file.write(contents, arrayOffset, 512);
-			file.getFD().sync();
-		}
-		
+		this.writeAt(startBlock << device.blockShift, contents, arrayOffset, device.blockSize);
+		return true;
+	}
+	
+	
+	@Override
+	protected boolean commitRange(long startBlock, int blockCount, int arrayOffset, byte[] contents) throws IOException
+	{
+		this.writeAt(startBlock << device.blockShift, contents, arrayOffset, blockCount * device.blockSize);
 		return true;
 	}
+	
+	
+	/**
+	 * fsync the file's contents; its length never changes, so the metadata needn't be forced
+	 */
+	@Override
+	protected void sync() throws IOException
+	{
+		this.file.getChannel().force(false);
+	}
 
 	
+	/**
+	 * @param startBlock first block
+	 * @param blockCount number of blocks
+	 * @return true iff the file itself holds the current contents of all these blocks, so they can be sent with {@link #transferTo(long, long, WritableByteChannel)};
+	 *   false if some are only in the cache, waiting to be committed
+	 */
+	public boolean canTransfer(long startBlock, int blockCount)
+	{
+		return ! (this.cacheEnabled && this.anyDirty(startBlock, blockCount));
+	}
+	
+	
+	/**
+	 * Send bytes straight from the file to a channel, without copying them through the heap
+	 * (e.g. with sendfile(2) when the target is a socket).
+	 * Does not use or move the file pointer, so needs no synchronization against other reads and writes.
+	 * @param byteOffset position in the file
+	 * @param byteCount maximum number of bytes to send
+	 * @param target where to send them
+	 * @return number of bytes actually sent, which may be less than requested (e.g. if target is non-blocking)
+	 * @throws IOException if error occurred reading the file or writing the channel
+	 * @see #canTransfer(long, int)
+	 */
+	public long transferTo(long byteOffset, long byteCount, WritableByteChannel target) throws IOException
+	{
+		return file.getChannel().transferTo(byteOffset, byteCount, target);
+	}
+	
+	
 	@Override
 	public boolean fetchBlock(long startBlock, int arrayOffset, byte[] contents) throws IOException
 	{
-		int result;
+		return this.readAt(startBlock << device.blockShift, contents, arrayOffset, device.blockSize) == device.blockSize;
+	}
+	
+	
+	@Override
+	protected List<Extent> fetchRange(long startBlock, int blockCount, int arrayOffset, byte[] contents) throws IOException
+	{
+		int read = this.readAt(startBlock << device.blockShift, contents, arrayOffset, blockCount * device.blockSize);
+		if(read == blockCount * device.blockSize)
+			return Collections.emptyList();
 		
-		synchronized(file)
-		{
-			file.seek(startBlock * 512L);
-			result = file.read(contents, arrayOffset, 512);
-		}
-
-		return result == 512;
+		// the file is as long as the device, so this shouldn't happen; but if it ends early, let the next layer try the rest
+		List<Extent> holes = new ArrayList<Extent> ();
+		holes.add(new Extent(startBlock + (read >> device.blockShift), startBlock + blockCount, Extent.Status.ABSENT));
+		return holes;
 	}
 }
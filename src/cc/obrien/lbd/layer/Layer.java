@@ -8,14 +8,31 @@
 package cc.obrien.lbd.layer;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
 
 import cc.obrien.lbd.Device;
-import cc.obrien.lbd.util.FIFOCache;
+import cc.obrien.lbd.util.BlockCache;
+import cc.obrien.lbd.util.Futures;
+import cc.obrien.lbd.util.GroupCommit;
 
 
 /**
+ * One layer of a {@link Device}'s stack.
+ * Layers are called concurrently: reads of any blocks at any time, alongside writes, commits and flushes.
+ * The device never has two writes (or zeroings, or trims) of the same blocks in progress at once
+ * (see {@link cc.obrien.lbd.util.RangeLocks}), but writes of different blocks can be;
+ * implementations must keep whatever state those share (file pointers, indexes) consistent themselves.
  * @author sobrien
  */
 public abstract class Layer
@@ -30,35 +47,93 @@ public abstract class Layer
 	
 	/**
 	 * can reads be cached for an indefinite amount of time (can we avoid asking the server each time)?
-	 * Advisory only; the implementation can choose not to cache for whatever reason.
+	 * True iff the layer was given a cache to use.
 	 */
 	public final boolean cacheEnabled;
 	
 	
-	/** the size of the {@link #blockCache}, in 512-byte blocks */
-	public static final int CACHE_SIZE_BLOCKS = 10240;  // 10k blocks -> 5MB cache
-	
-	
 	/**
-	 * block cache; block number &rarr; the most recent copy of the block
+	 * this layer's share of the process's block cache; block number &rarr; a copy of the block as stored; <code>null</code> if this layer isn't cached.
+	 * Entries can be evicted at any time, so blocks written but not yet committed are kept in {@link #dirtyBlocks} as well.
+	 * A read only caches what it fetched if the block's {@link BlockCache.Share#stamp(long)} hasn't moved meanwhile,
+	 * so a fetch which raced with a write can't leave the old contents in the cache after the new ones are committed.
 	 */
-	public final FIFOCache<Long, byte[]> blockCache = new FIFOCache<Long, byte[]> (CACHE_SIZE_BLOCKS);
+	public final BlockCache.Share blockCache;
+	
+	
+	/** most bytes of {@link #dirtyBlocks} held before writes commit them */
+	private static final int MAXIMUM_DIRTY_BYTES = 5 << 20;
+	
+	
+	/** {@link #MAXIMUM_DIRTY_BYTES}, in the device's blocks (at least one) */
+	private final int maximumDirtyBlocks;
 
 
-	/** blocks numbers, for dirty blocks (blocks that were written in the cache and not yet committed to permanent storage like disk / NBD server / etc.) */
-	public final HashSet<Long> dirtyBlocks = new HashSet<Long> ();
+	/** how many bytes of zeroes {@link #writeZeroBlocks(long, int)} writes at a time (at least one block) */
+	private static final int ZERO_CHUNK_BYTES = 64 << 10;
+	
+	
+	/**
+	 * dirty blocks (blocks that were written in the cache and not yet committed to permanent storage like disk / NBD server / etc.);
+	 * block number &rarr; its contents.  Never evicted, so a write is never lost or hidden before it's committed,
+	 * whichever client connection made it; at most {@link #maximumDirtyBlocks} of them before writes commit them.
+	 */
+	public final ConcurrentHashMap<Long, byte[]> dirtyBlocks = new ConcurrentHashMap<Long, byte[]> ();
+	
+	
+	/**
+	 * one commit at a time, so a block's contents reach storage in the order they were written;
+	 * also keeps discards from being undone by a commit of what they discarded
+	 */
+	private final ReentrantLock commitLock = new ReentrantLock();
+	
+	
+	/** most bytes {@link #commit()} writes out in one {@link #commitRange(long, int, int, byte[])} (at least one block) */
+	private static final int MAXIMUM_COMMIT_BYTES = 128 << 10;
+	
+	
+	/** whether blocks have been committed since the last {@link #sync()}; i.e. a {@link #flush()} has something to do */
+	private volatile boolean unsynced = false;
+	
+	
+	/** coalesces flushes from all clients into as few {@link #sync()} calls as possible */
+	private final GroupCommit groupCommit = new GroupCommit() {
+		@Override
+		protected void syncNow() throws IOException {
+			// cleared before syncing: blocks committed during the sync are left for the next one
+			if(Layer.this.unsynced)
+			{
+				Layer.this.unsynced = false;
+				boolean synced = false;
+				try
+				{
+					Layer.this.sync();
+					synced = true;
+				}
+				finally
+				{
+					// nothing is known to be durable, so the next flush must try again
+					if(! synced)
+						Layer.this.unsynced = true;
+				}
+			}
+		}
+	};
 	
 	
 	/**
 	 * @param device device this belongs to
 	 * @param writable writable?
-	 * @param cacheEnabled
+	 * @param cache the block cache to keep this layer's blocks in, shared with other layers;
+	 *   <code>null</code> for none, for layers whose storage others may change behind our back
 	 */
-	protected Layer(Device device, boolean writable, boolean cacheEnabled)
+	protected Layer(Device device, boolean writable, BlockCache cache)
 	{
 		this.device = device;
 		this.writable = writable;
-		this.cacheEnabled = cacheEnabled;
+		this.cacheEnabled = cache != null;
+		this.blockCache = this.cacheEnabled ? cache.newShare(device.blockSize) : null;
+		this.maximumDirtyBlocks = Math.max(1, MAXIMUM_DIRTY_BYTES >> device.blockShift);
 	}
 
 	
@@ -88,11 +163,83 @@ public abstract class Layer
 	 */
 	public void commit() throws IOException
 	{
-		for(Long blockNumber : this.dirtyBlocks)
+		if(this.dirtyBlocks.isEmpty())
+			return;
+		
+		commitLock.lock();
+		try
+		{
+			// in block order, so runs of adjacent blocks can be written out at once
+			int maximumRun = Math.max(1, MAXIMUM_COMMIT_BYTES >> device.blockShift);
+			List<Map.Entry<Long, byte[]>> run = new ArrayList<Map.Entry<Long, byte[]>> ();
+			for(Map.Entry<Long, byte[]> entry : new TreeMap<Long, byte[]> (this.dirtyBlocks).entrySet())
+			{
+				boolean adjacent = ! run.isEmpty() && entry.getKey() == run.get(run.size() - 1).getKey() + 1;
+				if(! run.isEmpty() && (! adjacent || run.size() == maximumRun))
+				{
+					this.commitRun(run);
+					run.clear();
+				}
+				run.add(entry);
+			}
+			if(! run.isEmpty())
+				this.commitRun(run);
+		}
+		finally
+		{
+			commitLock.unlock();
+		}
+	}
+	
+	
+	/**
+	 * Write out a run of adjacent dirty blocks; called by {@link #commit()}, under {@link #commitLock}.
+	 * Each block stays dirty until it's committed, so if one fails the rest are still pending;
+	 * and one written again meanwhile stays dirty, with its new contents, for next time.
+	 * @param run the blocks, in order, with the contents they had when the commit started
+	 * @throws IOException if error happened during write to the backing storage
+	 */
+	private void commitRun(List<Map.Entry<Long, byte[]>> run) throws IOException
+	{
+		long startBlock = run.get(0).getKey();
+		if(run.size() == 1)
+			this.commitBlock(startBlock, 0, run.get(0).getValue());
+		else
 		{
-			byte val[] = this.blockCache.find(blockNumber);
-			this.commitBlock(blockNumber, 0, val);
+			int blockSize = device.blockSize;
+			byte contents[] = new byte[run.size() * blockSize];
+			for(int i=0; i<run.size(); i++)
+				System.arraycopy(run.get(i).getValue(), 0, contents, i * blockSize, blockSize);
+			this.commitRange(startBlock, run.size(), 0, contents);
 		}
+		
+		for(Map.Entry<Long, byte[]> entry : run)
+			this.dirtyBlocks.remove(entry.getKey(), entry.getValue());
+		this.unsynced = true;
+	}
+	
+	
+	/**
+	 * Make blocks committed so far durable (e.g. fsync), waiting if necessary.
+	 * Doesn't commit the cache; the {@link Device} does that first (see {@link Device#flush()}).
+	 * Concurrent callers share syncs, so this can be called often.
+	 * Other I/O carries on meanwhile; the sync can take a while.
+	 * @throws IOException if the sync failed
+	 */
+	public void flush() throws IOException
+	{
+		this.groupCommit.sync();
+	}
+	
+	
+	/**
+	 * Make everything committed so far durable, e.g. by fsync'ing the backing file.
+	 * Called from {@link #flush()}, one thread at a time, and only when something was committed since last time.
+	 * Default implementation does nothing, for layers without storage of their own.
+	 * @throws IOException if the sync failed
+	 */
+	protected void sync() throws IOException
+	{
 	}
 
 	
@@ -100,8 +247,7 @@ public abstract class Layer
 	 * Write to this storage instance, optionally involving the cache layer.
 	 * Assume all parameters are validated.
 	 * Default implementation consults the cache first if possible, then tries {@link #commitBlock(long, int, byte[])}.
-	 * Shouldn't synchronize; assume the {@link Device} calls like {@link Device#read(long, int, int, byte[])}, {@link Device#write(long, int, int, byte[])}, {@link Device#stop()}
-	 * etc. calls are doing synchronization on the device level.
+	 * The device doesn't write the same block twice at once, but may read it meanwhile.
 	 * @param block virtual startBlock
 	 * @param arrayOffset specifies what startBlock into the contents array to read from into the storage
 	 * @param contents data; should be {@code blockCount} bytes in size
@@ -112,23 +258,29 @@ public abstract class Layer
 	{
 		if(this.cacheEnabled)
 		{
-			byte value[] = Arrays.copyOfRange(contents, arrayOffset, 512);
-			this.blockCache.add(block, value);
-			this.dirtyBlocks.add(block);
+			// bound the write-back: once too much is pending, write it out before taking more
+			if(this.dirtyBlocks.size() >= this.maximumDirtyBlocks && ! this.dirtyBlocks.containsKey(block))
+				this.commit();
+			
+			byte value[] = Arrays.copyOfRange(contents, arrayOffset, arrayOffset + device.blockSize);
+			this.dirtyBlocks.put(block, value);
+			this.blockCache.add(block, value, 0);
 			return true;
 		}
 		else
 		{
-			return this.commitBlock(block, arrayOffset, contents);
+			boolean result = this.commitBlock(block, arrayOffset, contents);
+			this.unsynced = true;  // only after the block is committed; see groupCommit
+			return result;
 		}
 	}
 	
 	
 	/**
 	 * Write several blocks.
-	 * The default implementation is to iteratively call {@link #writeBlock(long, int, byte[])}
-	 * but this can be overridden to write multiple (e.g. for a network device, perhaps
-	 * writing many blocks at a time will perform better).
+	 * With the cache, the default implementation is to iteratively call {@link #writeBlock(long, int, byte[])};
+	 * without it, the blocks go straight to {@link #commitRange(long, int, int, byte[])},
+	 * which layers that can write runs of blocks at once (e.g. with one positional write) override.
 	 * @param startingBlock
 	 * @param blockCount
 	 * @param arrayOffset
@@ -138,9 +290,16 @@ public abstract class Layer
 	 */
 	public boolean writeBlocks(long startingBlock, int blockCount, int arrayOffset, byte contents[]) throws IOException
 	{
+		if(! this.cacheEnabled)
+		{
+			boolean result = this.commitRange(startingBlock, blockCount, arrayOffset, contents);
+			this.unsynced = true;  // only after the blocks are committed; see groupCommit
+			return result;
+		}
+		
 		for(int i=0; i<blockCount; i++)
 		{
-			int arrayBlockOffset = arrayOffset + (512 * i);
+			int arrayBlockOffset = arrayOffset + (device.blockSize * i);
 			long blockNumber = startingBlock + i;
 			if(! this.writeBlock(blockNumber, arrayBlockOffset, contents))
 				return false;
@@ -150,6 +309,84 @@ public abstract class Layer
 	}
 
 	
+	/**
+	 * Write zero blocks, the ordinary way, through {@link #writeBlocks(long, int, int, byte[])}.
+	 * @param startBlock first block
+	 * @param blockCount number of blocks
+	 * @return true iff all blocks writes succeeded
+	 * @throws IOException if error happened in this instance or during write to the backing storage
+	 */
+	final public boolean writeZeroBlocks(long startBlock, int blockCount) throws IOException
+	{
+		int chunkBlocks = Math.max(1, ZERO_CHUNK_BYTES >> device.blockShift);
+		byte zeroes[] = new byte[device.blockSize * Math.min(blockCount, chunkBlocks)];
+		for(long block=startBlock; block<startBlock+blockCount; block+=chunkBlocks)
+		{
+			int count = (int) Math.min(chunkBlocks, startBlock + blockCount - block);
+			if(! this.writeBlocks(block, count, 0, zeroes))
+				return false;
+		}
+		
+		return true;
+	}
+	
+	
+	/**
+	 * Drop the contents of some blocks without writing anything, if this layer can: afterwards they read as zeroes
+	 * (if {@code shadow}) or aren't held by this layer at all, and any space they took up can be reused.
+	 * Takes care of the cache; the work is done by {@link #deallocateBlocks(long, int, boolean)}.
+	 * Assume all parameters are validated.
+	 * @param startBlock first block
+	 * @param blockCount number of blocks
+	 * @param shadow whether lower layers may hold data for these blocks, which mustn't show through
+	 * @return true if done; false if this layer can't do this (nothing was changed; write zeroes instead, or for trims, do nothing)
+	 * @throws IOException if error happened in this instance or in the backing storage
+	 */
+	final public boolean discardBlocks(long startBlock, int blockCount, boolean shadow) throws IOException
+	{
+		commitLock.lock();
+		try
+		{
+			if(! this.deallocateBlocks(startBlock, blockCount, shadow))
+				return false;
+			
+			if(this.cacheEnabled)
+			{
+				// otherwise the old contents would still be read, or committed later
+				for(long block=startBlock; block<startBlock+blockCount; block++)
+				{
+					this.blockCache.remove(block);
+					this.dirtyBlocks.remove(block);
+				}
+			}
+			
+			this.unsynced = true;
+			return true;
+		}
+		finally
+		{
+			commitLock.unlock();
+		}
+	}
+	
+	
+	/**
+	 * Drop the contents of some blocks from the backing storage, recording them as zero (if {@code shadow}) or absent,
+	 * without writing any data.
+	 * This is "below" the cache layer.
+	 * Default implementation can't, and returns false.
+	 * @param startBlock first block
+	 * @param blockCount number of blocks
+	 * @param shadow whether lower layers may hold data for these blocks, so they must be recorded as zero rather than absent
+	 * @return true if done; false if this layer can't (then nothing must have been changed)
+	 * @throws IOException if error happened in this instance or in the backing storage
+	 */
+	protected boolean deallocateBlocks(long startBlock, int blockCount, boolean shadow) throws IOException
+	{
+		return false;
+	}
+	
+	
 	/**
 	 * Write to this storage instance.
 	 * Assume all parameters are validated.
@@ -161,6 +398,30 @@ public abstract class Layer
 	 * @throws IOException if error happened in this instance or during write to the backing storage, e.g. to files or network
 	 */
 	abstract protected boolean commitBlock(long block, int arrayOffset, byte contents[]) throws IOException;
+	
+	
+	/**
+	 * Write a run of blocks to this storage instance.
+	 * Assume all parameters are validated.
+	 * This is "below" the cache layer.
+	 * Default implementation calls {@link #commitBlock(long, int, byte[])} for each block; layers that can write runs of blocks at once should override this.
+	 * @param startBlock first block
+	 * @param blockCount number of blocks
+	 * @param arrayOffset where in {@code contents} the first block is
+	 * @param contents data
+	 * @return true iff all blocks were written
+	 * @throws IOException if error happened during write to the backing storage
+	 */
+	protected boolean commitRange(long startBlock, int blockCount, int arrayOffset, byte contents[]) throws IOException
+	{
+		for(int i=0; i<blockCount; i++)
+		{
+			if(! this.commitBlock(startBlock + i, arrayOffset + (device.blockSize * i), contents))
+				return false;
+		}
+		
+		return true;
+	}
 
 	
 	/**
@@ -175,26 +436,27 @@ public abstract class Layer
 	 */
 	final public boolean readBlock(long block, int arrayOffset, byte contents[]) throws IOException
 	{
+		long stamp = 0;
 		if(this.cacheEnabled)
 		{
-			byte value[] = this.blockCache.find(block);
+			stamp = this.blockCache.stamp(block);
+			byte value[] = this.dirtyBlocks.get(block);
 			if(value != null)
 			{
 				System.arraycopy(value, 0, contents, arrayOffset, value.length);
 				return true;
 			}
+			if(this.blockCache.find(block, contents, arrayOffset))
+				return true;
 		}
 		
 		boolean result = this.fetchBlock(block, arrayOffset, contents);
 		if(! result)
 			return false;
 
+		// not dirty, or it would have been found above; so this is what's stored, unless a write came along meanwhile
 		if(this.cacheEnabled)
-		{
-			byte value[] = Arrays.copyOfRange(contents, arrayOffset, arrayOffset + 512);
-			this.blockCache.add(block, value);
-			this.dirtyBlocks.remove(block);
-		}
+			this.blockCache.addIfUnchanged(block, contents, arrayOffset, stamp);
 
 		return true;
 	}
@@ -202,9 +464,7 @@ public abstract class Layer
 	
 	/**
 	 * Read several blocks.
-	 * The default implementation is to iteratively call {@link #readBlock(long, int, byte[])}
-	 * but this can be overridden to read multiple (e.g. for a network device, perhaps
-	 * reading many blocks at a time will perform better).
+	 * The default implementation reads them with {@link #readRange(long, int, int, byte[])}.
 	 * @param startingBlock
 	 * @param blockCount
 	 * @param arrayOffset
@@ -214,15 +474,206 @@ public abstract class Layer
 	 */
 	public boolean readBlocks(long startingBlock, int blockCount, int arrayOffset, byte contents[]) throws IOException
 	{
+		return this.readRange(startingBlock, blockCount, arrayOffset, contents).isEmpty();
+	}
+	
+	
+	/**
+	 * Read whatever this layer holds of a range, and say what it doesn't, so the {@link Device} can ask the layers below for just those holes.
+	 * Assume all parameters are validated.
+	 * Consults the cache first if possible, then fetches each run of blocks it's missing; waits for {@link #readRangeAsync(long, int, int, byte[])}.
+	 * @param startBlock first block
+	 * @param blockCount number of blocks
+	 * @param arrayOffset where in {@code contents} the first block goes; the rest follow it
+	 * @param contents receives the blocks this layer holds; the parts for the holes are left as they were
+	 * @return the blocks this layer doesn't hold, as {@link Extent.Status#ABSENT} extents in order; empty if it filled the whole range
+	 * @throws IOException if error happened in this instance or during read from the backing storage, e.g. from files or network
+	 */
+	final public List<Extent> readRange(long startBlock, int blockCount, int arrayOffset, byte contents[]) throws IOException
+	{
+		return Futures.await(this.readRangeAsync(startBlock, blockCount, arrayOffset, contents));
+	}
+	
+	
+	/**
+	 * Start a read, as {@link #readRange(long, int, int, byte[])}, without waiting for the backing storage.
+	 * The cache is consulted right away; each run of blocks missing from it is fetched with one {@link #fetchRangeAsync(long, int, int, byte[])},
+	 * all at once.  {@code contents} mustn't be touched until the future completes.
+	 * @param startBlock first block
+	 * @param blockCount number of blocks
+	 * @param arrayOffset where in {@code contents} the first block goes; the rest follow it
+	 * @param contents receives the blocks this layer holds; the parts for the holes are left as they were
+	 * @return completes as {@link #readRange(long, int, int, byte[])} returns, or fails with what it would throw
+	 */
+	final public CompletableFuture<List<Extent>> readRangeAsync(long startBlock, int blockCount, int arrayOffset, byte contents[])
+	{
+		if(! this.cacheEnabled)
+			return this.fetchRangeAsync(startBlock, blockCount, arrayOffset, contents);
+		
+		final List<CompletableFuture<List<Extent>>> fetches = new ArrayList<CompletableFuture<List<Extent>>> ();
+		long stamps[] = new long[blockCount];
+		int missStart = -1;
+		for(int i=0; i<=blockCount; i++)
+		{
+			boolean found = false;
+			if(i < blockCount)
+			{
+				long block = startBlock + i;
+				int offset = arrayOffset + (device.blockSize * i);
+				stamps[i] = this.blockCache.stamp(block);
+				byte value[] = this.dirtyBlocks.get(block);
+				if(value != null)
+				{
+					System.arraycopy(value, 0, contents, offset, value.length);
+					found = true;
+				}
+				else
+					found = this.blockCache.find(block, contents, offset);
+				
+				if(! found && missStart < 0)
+					missStart = i;
+			}
+			
+			// a run of blocks missing from the cache just ended
+			if(missStart >= 0 && (found || i == blockCount))
+			{
+				fetches.add(this.fetchMissing(startBlock, missStart, i, stamps, arrayOffset, contents));
+				missStart = -1;
+			}
+		}
+		
+		if(fetches.isEmpty())
+			return CompletableFuture.completedFuture(Collections.<Extent> emptyList());
+		if(fetches.size() == 1)
+			return fetches.get(0);
+		if(Futures.succeeded(fetches))
+			return CompletableFuture.completedFuture(holesOf(fetches));
+		
+		return Futures.all(fetches).thenApply(new Function<Void, List<Extent>>() {
+			@Override
+			public List<Extent> apply(Void done) {
+				return holesOf(fetches);
+			}
+		});
+	}
+	
+	
+	/**
+	 * @param fetches completed fetches, in order
+	 * @return the holes they left, in order, merged where possible
+	 */
+	private static List<Extent> holesOf(List<CompletableFuture<List<Extent>>> fetches)
+	{
+		List<Extent> holes = new ArrayList<Extent> ();
+		for(CompletableFuture<List<Extent>> fetch : fetches)
+		{
+			for(Extent hole : fetch.join())
+				Extent.append(holes, hole);
+		}
+		return holes;
+	}
+	
+	
+	/**
+	 * fetch a run of blocks that {@link #readRangeAsync(long, int, int, byte[])} didn't find in the cache, and cache what was fetched
+	 * @param startBlock the range's first block
+	 * @param from index of the run's first block in the range
+	 * @param to index of the block after its last one
+	 * @param stamps each block's {@link BlockCache.Share#stamp(long)}, from before the cache was consulted
+	 * @param arrayOffset where in {@code contents} the range's first block goes
+	 * @param contents receives the blocks
+	 * @return completes with the blocks not held, once what was fetched is cached
+	 */
+	private CompletableFuture<List<Extent>> fetchMissing(final long startBlock, final int from, final int to, final long stamps[], final int arrayOffset, final byte contents[])
+	{
+		return this.fetchRangeAsync(startBlock + from, to - from, arrayOffset + (device.blockSize * from), contents).thenApply(new Function<List<Extent>, List<Extent>>() {
+			@Override
+			public List<Extent> apply(List<Extent> holes) {
+				cacheFetched(startBlock, from, to, stamps, arrayOffset, contents, holes);
+				return holes;
+			}
+		});
+	}
+	
+	
+	/**
+	 * cache the blocks of a run that {@link #fetchMissing(long, int, int, long[], int, byte[])} fetched
+	 * @param startBlock the range's first block
+	 * @param from index of the run's first block in the range
+	 * @param to index of the block after its last one
+	 * @param stamps each block's {@link BlockCache.Share#stamp(long)}, from before the cache was consulted
+	 * @param arrayOffset where in {@code contents} the range's first block goes
+	 * @param contents holds the blocks fetched
+	 * @param runHoles the blocks the storage didn't hold, in order
+	 */
+	private void cacheFetched(long startBlock, int from, int to, long stamps[], int arrayOffset, byte contents[], List<Extent> runHoles)
+	{
+		Iterator<Extent> nextHole = runHoles.iterator();
+		Extent hole = nextHole.hasNext() ? nextHole.next() : null;
+		for(int i=from; i<to; i++)
+		{
+			long block = startBlock + i;
+			while(hole != null && hole.end <= block)
+				hole = nextHole.hasNext() ? nextHole.next() : null;
+			if(hole != null && hole.start <= block)
+				continue;
+			
+			// as in readBlock: only if no write came along meanwhile
+			this.blockCache.addIfUnchanged(block, contents, arrayOffset + (device.blockSize * i), stamps[i]);
+		}
+	}
+	
+	
+	/**
+	 * Read whatever the backing storage holds of a range.
+	 * Assume all parameters are validated.
+	 * This is "below" the cache layer.
+	 * Default implementation calls {@link #fetchBlock(long, int, byte[])} for each block; layers that can read runs of blocks at once should override this.
+	 * @param startBlock first block
+	 * @param blockCount number of blocks
+	 * @param arrayOffset where in {@code contents} the first block goes
+	 * @param contents receives the blocks held
+	 * @return as for {@link #readRange(long, int, int, byte[])}
+	 * @throws IOException if error happened during read from the backing storage
+	 */
+	protected List<Extent> fetchRange(long startBlock, int blockCount, int arrayOffset, byte contents[]) throws IOException
+	{
+		List<Extent> holes = new ArrayList<Extent> ();
 		for(int i=0; i<blockCount; i++)
 		{
-			int arrayBlockOffset = arrayOffset + (512 * i);
-			long blockNumber = startingBlock + i;
-			if(! this.readBlock(blockNumber, arrayBlockOffset, contents))
-				return false;
+			long block = startBlock + i;
+			if(! this.fetchBlock(block, arrayOffset + (device.blockSize * i), contents))
+				Extent.append(holes, new Extent(block, block + 1, Extent.Status.ABSENT));
 		}
 		
-		return true;
+		return holes;
+	}
+	
+	
+	/**
+	 * Start reading whatever the backing storage holds of a range, without waiting for it.
+	 * Default implementation just calls {@link #fetchRange(long, int, int, byte[])}, and so waits after all;
+	 * layers whose I/O completes on threads of their own (e.g. network replies) should override this, and may have fetchRange wait on it.
+	 * @param startBlock first block
+	 * @param blockCount number of blocks
+	 * @param arrayOffset where in {@code contents} the first block goes
+	 * @param contents receives the blocks held
+	 * @return completes as {@link #fetchRange(long, int, int, byte[])} returns, or fails with what it would throw
+	 */
+	protected CompletableFuture<List<Extent>> fetchRangeAsync(long startBlock, int blockCount, int arrayOffset, byte contents[])
+	{
+		try
+		{
+			return CompletableFuture.completedFuture(this.fetchRange(startBlock, blockCount, arrayOffset, contents));
+		}
+		catch(IOException e)
+		{
+			return Futures.failed(e);
+		}
+		catch(RuntimeException e)
+		{
+			return Futures.failed(e);
+		}
 	}
 
 	
@@ -239,12 +690,128 @@ public abstract class Layer
 	abstract protected boolean fetchBlock(long block, int arrayOffset, byte contents[]) throws IOException;
 	
 	
+	/**
+	 * Whether this layer might answer reads of any of these blocks, from its cache or its storage.
+	 * Lets the {@link Device} find out that reads of a range would fall straight through to some lower layer, without reading anything.
+	 * Default implementation conservatively says yes; layers that can cheaply tell otherwise should override this.
+	 * @param startBlock first block
+	 * @param blockCount number of blocks
+	 * @return false only if reads of every one of these blocks would certainly return false from {@link #readBlock(long, int, byte[])}
+	 * @throws IOException if error happened while consulting the backing storage
+	 */
+	public boolean mayHoldBlocks(long startBlock, int blockCount) throws IOException
+	{
+		return true;
+	}
+	
+	
+	/**
+	 * Describe how this layer holds a range of blocks: as data, as zeroes, or not at all.
+	 * Answers from the index (or whatever the layer has) alone; no data blocks are read.
+	 * The work is done by {@link #mapExtents(long, long)}; this takes care of the cache, whose dirty blocks are data.
+	 * @param start first block
+	 * @param limit block after the last one to describe
+	 * @return extents in order, contiguous from {@code start}; they cover at least the first block, and may stop short of {@code limit}
+	 *   if describing the whole range would take too long (ask again for the rest)
+	 * @throws IOException if error happened while consulting the backing storage
+	 */
+	final public List<Extent> getExtents(long start, long limit) throws IOException
+	{
+		// dirty blocks are looked for first: one committed meanwhile is then either dirty here or in the storage below
+		if(! this.cacheEnabled || ! this.anyDirtyIn(start, limit))
+			return this.mapExtents(start, limit);
+		
+		TreeSet<Long> dirty = new TreeSet<Long> ();
+		for(Long block : this.dirtyBlocks.keySet())
+		{
+			if(block >= start && block < limit)
+				dirty.add(block);
+		}
+		
+		// overlay the dirty blocks, which are data whatever the storage says
+		List<Extent> extents = this.mapExtents(start, limit);
+		List<Extent> ret = new ArrayList<Extent> ();
+		for(Extent extent : extents)
+		{
+			long block = extent.start;
+			for(Long dirtyBlock : dirty.subSet(extent.start, extent.end))
+			{
+				if(dirtyBlock > block)
+					Extent.append(ret, new Extent(block, dirtyBlock, extent.status));
+				Extent.append(ret, new Extent(dirtyBlock, dirtyBlock + 1, Extent.Status.DATA));
+				block = dirtyBlock + 1;
+			}
+			if(block < extent.end)
+				Extent.append(ret, new Extent(block, extent.end, extent.status));
+		}
+		return ret;
+	}
+	
+	
+	/**
+	 * Describe how the backing storage holds a range of blocks.
+	 * This is "below" the cache layer.
+	 * Default implementation says it's all data, which is right for layers that hold every block (like {@link FlatFile})
+	 * or can't tell (like {@link NBD}).
+	 * @param start first block
+	 * @param limit block after the last one to describe
+	 * @return as for {@link #getExtents(long, long)}
+	 * @throws IOException if error happened while consulting the backing storage
+	 */
+	protected List<Extent> mapExtents(long start, long limit) throws IOException
+	{
+		return Collections.singletonList(new Extent(start, limit, Extent.Status.DATA));
+	}
+	
+	
+	/**
+	 * @param startBlock first block
+	 * @param blockCount number of blocks
+	 * @return true iff any of these blocks is dirty (written to the cache but not yet committed)
+	 */
+	protected boolean anyDirty(long startBlock, int blockCount)
+	{
+		return this.anyDirtyIn(startBlock, startBlock + blockCount);
+	}
+	
+	
+	/**
+	 * @param start first block
+	 * @param limit block after the last one
+	 * @return true iff any of these blocks is dirty (written to the cache but not yet committed)
+	 */
+	private boolean anyDirtyIn(long start, long limit)
+	{
+		if(this.dirtyBlocks.isEmpty())
+			return false;
+		
+		// whichever is smaller: the range, or the set of dirty blocks
+		if(limit - start <= this.dirtyBlocks.size())
+		{
+			for(long block=start; block<limit; block++)
+			{
+				if(this.dirtyBlocks.containsKey(block))
+					return true;
+			}
+		}
+		else
+		{
+			for(Long block : this.dirtyBlocks.keySet())
+			{
+				if(block >= start && block < limit)
+					return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	
 	/**
 	 * Cleanups for this layer.
-	 * Default implementation commits (if writable).
+	 * Default implementation commits and syncs (if writable), and gives up its blocks in the cache.
 	 * Recommended that subclasses override this but also call {@code super.stop()}.
-	 * Shouldn't synchronize; assume the {@link Device} calls like {@link Device#read(long, int, int, byte[])}, {@link Device#write(long, int, int, byte[])}, {@link Device#stop()}
-	 * etc. calls are doing synchronization on the device level.
+	 * The device has stopped taking requests, and waited for writes in progress, before calling this.
 	 * @throws IOException if I/O problem occurred while closing, flushing, etc.
 	 */
 	public void stop() throws IOException
@@ -252,6 +819,10 @@ public abstract class Layer
 		if(this.writable)
 		{
 			this.commit();
+			this.flush();
 		}
+		
+		if(this.cacheEnabled)
+			this.blockCache.release();
 	}
 }
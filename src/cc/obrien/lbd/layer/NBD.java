@@ -9,8 +9,14 @@ package cc.obrien.lbd.layer;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 
 import cc.obrien.lbd.Device;
+import cc.obrien.lbd.util.BlockCache;
+import cc.obrien.lbd.util.Futures;
 import cc.obrien.lbd.util.NBDSession;
 
 
@@ -24,21 +30,27 @@ final public class NBD extends Layer
 	private final NBDSession session;
 	
 	
+	/** most bytes asked of the NBD server in one read (at least one block); a longer range is asked for in pieces, all at once, which the server can work on in parallel */
+	private static final int MAX_FETCH_BYTES = 128 << 10;
+	
+	
 	/**
 	 * @param device device this belongs to
 	 * @param writable writable?
-	 * @param canCacheReadsIndefinitely ok to cache blocks that we already read?
+	 * @param cache the block cache to use; <code>null</code> for none (needed unless we have the server to ourselves)
 	 * @param host NBD host
 	 * @param port NBD port
-	 * @param path (optional) the file on the NBD server, if the host:port specifies a directory
+	 * @param path (optional) the name of the export on the NBD server; null for the server's default export
 	 * @throws IOException if error occurred while trying to establish connection
 	 */
-	public NBD(Device device, boolean writable, boolean canCacheReadsIndefinitely, InetAddress host, int port, String path) throws IOException
+	public NBD(Device device, boolean writable, BlockCache cache, InetAddress host, int port, String path) throws IOException
 	{
-		super(device, writable, canCacheReadsIndefinitely);
-		this.session = new NBDSession(host, port, writable);
-		if(this.session.getBlockCount() != this.device.size)
-			throw new IllegalArgumentException(String.format("NBD device block count of %d does not match virtual device block count of %d", this.session.getBlockCount(), this.device.size));
+		super(device, writable, cache);
+		this.session = new NBDSession(host, port, path, writable);
+		if(this.session.getByteCount() != this.device.size << this.device.blockShift)
+			throw new IllegalArgumentException(String.format("NBD device size of %d bytes does not match virtual device size of %d bytes", this.session.getByteCount(), this.device.size << this.device.blockShift));
+		if(this.session.getMinimumBlockSize() > this.device.blockSize)
+			throw new IllegalArgumentException(String.format("NBD device's %d-byte blocks are bigger than the virtual device's %d-byte blocks", this.session.getMinimumBlockSize(), this.device.blockSize));
 	}
 	
 	
@@ -49,20 +61,19 @@ final public class NBD extends Layer
 	@Override
 	public boolean commitBlock(long startBlock, int arrayOffset, byte[] contents) throws IOException
 	{
-		long deviceOffset = ((long) startBlock) * 512L;
-		return this.session.writeBytes(deviceOffset, 512, arrayOffset, contents);
+		long deviceOffset = startBlock << device.blockShift;
+		return this.session.writeBytes(deviceOffset, device.blockSize, arrayOffset, contents);
 	}
 
 	
 	/**
 	 * read the requested block from the NBD server and reply
-	 * XXX chatty; should allow for long runs of sectors to be read by way of {@link Layer#readBlocks(long, int, int, byte[])}
 	 */
 	@Override
 	public boolean fetchBlock(long startBlock, int arrayOffset, byte[] contents) throws IOException
 	{
-		long deviceOffset = startBlock * 512L;
-		boolean result = this.session.readBytes(deviceOffset, 512, arrayOffset, contents);
+		long deviceOffset = startBlock << device.blockShift;
+		boolean result = this.session.readBytes(deviceOffset, device.blockSize, arrayOffset, contents);
 		if(! result)
 			return false;
 
@@ -71,7 +82,71 @@ final public class NBD extends Layer
 	
 	
 	/**
-	 * note: not synchronizing here, assume there's a lock at the device level
+	 * wait for {@link #fetchRangeAsync(long, int, int, byte[])}
+	 */
+	@Override
+	protected List<Extent> fetchRange(long startBlock, int blockCount, int arrayOffset, byte[] contents) throws IOException
+	{
+		return Futures.await(this.fetchRangeAsync(startBlock, blockCount, arrayOffset, contents));
+	}
+	
+	
+	/**
+	 * read the whole range with a few large requests to the NBD server, rather than one per block, all outstanding at once;
+	 * any part the server fails to read is left for the next layer
+	 */
+	@Override
+	protected CompletableFuture<List<Extent>> fetchRangeAsync(final long startBlock, int blockCount, int arrayOffset, byte[] contents)
+	{
+		final int pieceBlocks = Math.max(1, MAX_FETCH_BYTES >> device.blockShift);
+		final List<CompletableFuture<Boolean>> pieces = new ArrayList<CompletableFuture<Boolean>> ();
+		for(int i=0; i<blockCount; i+=pieceBlocks)
+		{
+			int count = Math.min(pieceBlocks, blockCount - i);
+			pieces.add(this.session.readBytesAsync((startBlock + i) << device.blockShift, count * device.blockSize, arrayOffset + (device.blockSize * i), contents));
+		}
+		
+		final int lastCount = blockCount - ((pieces.size() - 1) * pieceBlocks);
+		return Futures.all(pieces).thenApply(new Function<Void, List<Extent>>() {
+			@Override
+			public List<Extent> apply(Void done) {
+				List<Extent> holes = new ArrayList<Extent> ();
+				for(int i=0; i<pieces.size(); i++)
+				{
+					long block = startBlock + ((long) i * pieceBlocks);
+					int count = (i == pieces.size() - 1) ? lastCount : pieceBlocks;
+					if(! pieces.get(i).join())
+						Extent.append(holes, new Extent(block, block + count, Extent.Status.ABSENT));
+				}
+				return holes;
+			}
+		});
+	}
+	
+	
+	/**
+	 * have the NBD server zero the blocks, if it can do that without being sent the zeroes
+	 */
+	@Override
+	protected boolean deallocateBlocks(long startBlock, int blockCount, boolean shadow) throws IOException
+	{
+		return this.session.writeZeroes(startBlock << device.blockShift, blockCount * device.blockSize);
+	}
+	
+	
+	/**
+	 * pass the flush on to the NBD server
+	 */
+	@Override
+	protected void sync() throws IOException
+	{
+		if(! this.session.flush())
+			throw new IOException("NBD server failed to flush");
+	}
+	
+	
+	/**
+	 * note: the device has stopped taking requests first
 	 */
 	@Override
 	public void stop() throws IOException
@@ -8,6 +8,9 @@
 package cc.obrien.lbd.layer;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import cc.obrien.lbd.Device;
 
 
@@ -23,7 +26,7 @@ public final class NullLayer extends Layer
 	 */
 	public NullLayer(Device device)
 	{
-		super(device, false, false);
+		super(device, false, null);
 	}
 	
 	
@@ -37,9 +40,23 @@ public final class NullLayer extends Layer
 	@Override
 	public boolean fetchBlock(long startBlock, int arrayOffset, byte[] contents) throws IOException
 	{
-		for(int i=0; i<512; i++)
-			contents[arrayOffset + i] = 0;
+		Arrays.fill(contents, arrayOffset, arrayOffset + device.blockSize, (byte) 0);
 		
 		return true;
 	}
+	
+	
+	@Override
+	protected List<Extent> fetchRange(long startBlock, int blockCount, int arrayOffset, byte[] contents) throws IOException
+	{
+		Arrays.fill(contents, arrayOffset, arrayOffset + (device.blockSize * blockCount), (byte) 0);
+		return Collections.emptyList();
+	}
+	
+	
+	@Override
+	protected List<Extent> mapExtents(long start, long limit) throws IOException
+	{
+		return Collections.singletonList(new Extent(start, limit, Extent.Status.ZERO));
+	}
 }
@@ -42,12 +42,20 @@ public class Control
 		if(args[1].equals("add"))
 		{
 			
-			request = new Request(Request.Type.LIVE_ADD_LAYER, 0, args[2]);
+			// optional export name; otherwise the default export
+			if(args.length > 3)
+				request = new Request(Request.Type.LIVE_ADD_LAYER, 0, args[2], args[3]);
+			else
+				request = new Request(Request.Type.LIVE_ADD_LAYER, 0, args[2]);
 			out.writeObject(request);
 			out.flush();
 			
 			response = (Response) in.readObject();
-			assert(response.status);
+			if(! response.status)
+			{
+				System.err.println(response.args.get(0));
+				return;
+			}
 			
 			request = new Request(Request.Type.DEVICE_INFO_STRINGS, 0);
 			out.writeObject(request);
@@ -55,7 +63,29 @@ public class Control
 	
 			response = (Response) in.readObject();
 			assert(response.status);
-			System.out.println(response.args.get(0));
+			for(Object info : response.args)
+				System.out.println(info);
+		}
+		else if(args[1].equals("limit"))
+		{
+			// client, requests per second, bytes per second; 0 for no limit
+			request = new Request(Request.Type.SET_CLIENT_LIMIT, 0, args[2], Long.parseLong(args[3]), Long.parseLong(args[4]));
+			out.writeObject(request);
+			out.flush();
+			
+			response = (Response) in.readObject();
+			assert(response.status);
+		}
+		else if(args[1].equals("cache"))
+		{
+			request = new Request(Request.Type.CACHE_STATS, 0);
+			out.writeObject(request);
+			out.flush();
+			
+			response = (Response) in.readObject();
+			assert(response.status);
+			for(Object info : response.args)
+				System.out.println(info);
 		}
 		else if(args[1].equals("stop"))
 		{
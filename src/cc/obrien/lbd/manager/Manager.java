@@ -15,10 +15,15 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.concurrent.ThreadFactory;
 import cc.obrien.lbd.Device;
 import cc.obrien.lbd.layer.ExpandableFile;
 import cc.obrien.lbd.layer.Layer;
+import cc.obrien.lbd.server.Exports;
+import cc.obrien.lbd.server.Server;
+import cc.obrien.lbd.util.BlockCache;
 
 
 /**
@@ -30,24 +35,36 @@ final public class Manager extends Thread
 	public static final int DEFAULT_PORT = 6666;
 
 	
-	/** device this is managing */
-	public final Device device;
+	/** devices this is managing, by export name */
+	public final Exports exports;
+	
+	
+	/** the block cache shared by the cached layers of all of them; <code>null</code> if there's none */
+	public final BlockCache blockCache;
 	
 	
 	/** listen on this socket for connections */
 	public final ServerSocket listenSocket;
+	
+	
+	/** makes the thread each {@link Handler} runs on; platform daemon threads, or virtual threads */
+	private final ThreadFactory handlerThreads;
 
 	
 	/**
 	 * listen on default port
-	 * @param device 
+	 * @param exports 
+	 * @param blockCache the block cache shared by their layers; <code>null</code> if none
 	 * @param listenSocket 
+	 * @param handlerThreads makes the thread each client's handler runs on
 	 * @throws IOException 
 	 */
-	public Manager(Device device, ServerSocket listenSocket) throws IOException
+	public Manager(Exports exports, BlockCache blockCache, ServerSocket listenSocket, ThreadFactory handlerThreads) throws IOException
 	{
-		this.device = device;
+		this.exports = exports;
+		this.blockCache = blockCache;
 		this.listenSocket = listenSocket;
+		this.handlerThreads = handlerThreads;
 		this.setDaemon(true);
 	}
 		
@@ -62,7 +79,7 @@ final public class Manager extends Thread
 				Socket clientSocket = this.listenSocket.accept();
 				clientSocket.setKeepAlive(true);
 				clientSocket.setTcpNoDelay(true);
-				new Handler(clientSocket).start();
+				handlerThreads.newThread(new Handler(clientSocket)).start();
 			}
 		}
 		catch(RuntimeException e)
@@ -77,10 +94,10 @@ final public class Manager extends Thread
 	
 	
 	/**
-	 * client handler daemon
+	 * client handler; runs on a daemon thread from {@link Manager#handlerThreads}
 	 * @author sobrien
 	 */
-	public class Handler extends Thread
+	public class Handler implements Runnable
 	{
 		/** socket to client */
 		private final Socket clientSocket;
@@ -100,8 +117,6 @@ final public class Manager extends Thread
 		 */
 		public Handler(Socket clientSocket) throws IOException
 		{
-			super();
-			this.setDaemon(true);
 			this.clientSocket = clientSocket;
 			this.out = new ObjectOutputStream(clientSocket.getOutputStream());
 			this.out.flush();
@@ -127,27 +142,60 @@ final public class Manager extends Thread
 						break;
 				
 					case SHUTDOWN:
-						System.err.printf("stop %s: ", device.toString());
-						device.stop();
-						System.err.println();
-						System.err.flush();
+						for(Device device : exports.devices())
+						{
+							System.err.printf("stop %s: ", device.toString());
+							device.stop();
+							System.err.println();
+							System.err.flush();
+						}
 								
 						response = new Response(request.serial, true);
 						break;
 						
 					case DEVICE_INFO_STRINGS:
-						LinkedList<String> result = new LinkedList<String> ();
-						result.add(device.getInfoString());
-						response = new Response(request.serial, true, device.getInfoString());
+						LinkedList<Object> result = new LinkedList<Object> ();
+						for(String name : exports.names())
+							result.add(String.format("export: '%s'\n%s", name, exports.lookup(name).getInfoString()));
+						response = new Response(request.serial, true, result);
+						break;
+						
+					case CACHE_STATS:
+						LinkedList<Object> stats = new LinkedList<Object> ();
+						stats.add((blockCache != null) ? blockCache.toString() : "no block cache");
+						for(String name : exports.names())
+							stats.add(String.format("export: '%s'\n%s", name, exports.lookup(name).getCacheInfoString()));
+						response = new Response(request.serial, true, stats);
 						break;
 						
 					case LIVE_ADD_LAYER:
+						// optional second arg names the export; default export otherwise
+						String exportName = (request.args.size() > 1) ? (String) request.args.get(1) : "";
+						Device device = exports.lookup(exportName);
+						if(device == null)
+						{
+							response = new Response(request.serial, false, String.format("no export '%s'", exportName));
+							break;
+						}
 						File expandableFile = new File((String) request.args.get(0));
-						Layer expandableLayer = new ExpandableFile(expandableFile, device, true, false);
+						Layer expandableLayer = new ExpandableFile(expandableFile, device, true, null);
 						device.addLayer(expandableLayer);
 						response = new Response(request.serial, true);
 						break;
 						
+					case SET_CLIENT_LIMIT:
+						// every listener keeps its own caps; set them all
+						String client = (String) request.args.get(0);
+						long requestsPerSecond = ((Number) request.args.get(1)).longValue();
+						long bytesPerSecond = ((Number) request.args.get(2)).longValue();
+						HashSet<Server> servers = new HashSet<Server> ();
+						for(Device each : exports.devices())
+							servers.addAll(each.getServers());
+						for(Server server : servers)
+							server.setClientLimit(client, requestsPerSecond, bytesPerSecond);
+						response = new Response(request.serial, true);
+						break;
+						
 					default:
 						throw new RuntimeException("don't know request type " + request.type);
 					}
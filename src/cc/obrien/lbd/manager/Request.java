@@ -36,12 +36,18 @@ public class Request implements Serializable
 		/** terminate all running devices; see {@link LBD#runningDevices} */
 		SHUTDOWN,
 
-		/** get each running device's {@link Device#toString()} */
+		/** get each running device's {@link Device#getInfoString()}, one arg per export */
 		DEVICE_INFO_STRINGS,
 		
-		/** add a layer to a running device; currently only writable expandable files supported */
+		/** get the block cache's totals, then each running device's {@link Device#getCacheInfoString()}, one arg per export */
+		CACHE_STATS,
+		
+		/** add a layer to a running device; args are the file and, optionally, the export name.  currently only writable expandable files supported */
 		LIVE_ADD_LAYER,
 		
+		/** cap a client's NBD requests; args are the client (IP address, "local", or "*" for the default), requests per second, and bytes per second (0 for no limit) */
+		SET_CLIENT_LIMIT,
+		
 		;
 	}
 	
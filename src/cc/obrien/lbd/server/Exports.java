@@ -0,0 +1,88 @@
+/*
+ * (C) 2012 Steve O'Brien.  BSD licensed.
+ * see http://www.opensource.org/licenses/BSD-2-Clause
+ * and see LICENSE in the root of this project.
+ */
+
+
+package cc.obrien.lbd.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import cc.obrien.lbd.Device;
+
+
+/**
+ * The devices one process serves, by export name.
+ * Shared by all of the process's {@link Server}s (and its manager), so every export is reachable through every listener,
+ * and all exports share the servers' event loops and worker pool.
+ * Lookups don't lock: the map is replaced, never changed, when an export is added.
+ * @author sobrien
+ */
+final public class Exports
+{
+	/** export name &rarr; device, in the order added */
+	private volatile Map<String, Device> devices = Collections.emptyMap();
+
+
+	/**
+	 * @param name export name; may be empty
+	 * @param device the device to serve under that name
+	 * @throws IllegalArgumentException if the name is taken
+	 */
+	public synchronized void add(String name, Device device)
+	{
+		if(this.devices.containsKey(name))
+			throw new IllegalArgumentException(String.format("export '%s' defined twice", name));
+
+		LinkedHashMap<String, Device> devices = new LinkedHashMap<String, Device> (this.devices);
+		devices.put(name, device);
+		this.devices = Collections.unmodifiableMap(devices);
+	}
+
+
+	/**
+	 * @param name export name chosen by a client; empty for the default export
+	 * @return the device exported under that name, or null if none.
+	 *   The default export is the one named "", if there is one, else the first one added.
+	 *   A process with just the one unnamed export (no names given) serves it under any name, as it always has.
+	 */
+	public Device lookup(String name)
+	{
+		Map<String, Device> devices = this.devices;
+		Device ret = devices.get(name);
+		if(ret == null && devices.size() == 1 && devices.containsKey(""))
+			ret = devices.get("");
+		if(ret == null && name.isEmpty() && ! devices.isEmpty())
+			ret = devices.values().iterator().next();
+		return ret;
+	}
+
+
+	/**
+	 * @return export names, in the order added
+	 */
+	public List<String> names()
+	{
+		return new ArrayList<String> (this.devices.keySet());
+	}
+
+
+	/**
+	 * @return the devices, in the order added
+	 */
+	public List<Device> devices()
+	{
+		return new ArrayList<Device> (this.devices.values());
+	}
+
+
+	@Override
+	public String toString()
+	{
+		return String.format("[exports %s]", this.devices.keySet());
+	}
+}
@@ -0,0 +1,447 @@
+/*
+ * (C) 2012 Steve O'Brien.  BSD licensed.
+ * see http://www.opensource.org/licenses/BSD-2-Clause
+ * and see LICENSE in the root of this project.
+ */
+
+
+package cc.obrien.lbd.server;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import cc.obrien.lbd.util.Threads;
+import cc.obrien.lbd.util.NBDUtil.Request;
+
+
+/**
+ * Decides which connection's waiting requests the workers carry out next, so that one client streaming
+ * big requests can't crowd out others whose requests are few and small.
+ * Connections with waiting requests take turns, deficit round robin by bytes: each turn a connection is credited
+ * {@link #QUANTUM} bytes, and may have requests carried out until it has spent its credit.
+ * Each request costs its payload plus {@link #REQUEST_COST}, so floods of tiny requests pay their way too.
+ *
+ * <p>
+ * Clients (by address; all local socket clients are one client) may also be capped to some requests and bytes per second;
+ * see {@link #setLimit(String, long, long)}.  A capped client's requests wait, without holding a worker, until its budget refills.
+ * </p>
+ *
+ * <p>
+ * As with a plain executor, the server calls {@link Flow#submit(Request)} once per request;
+ * each call schedules one worker task, which carries out whichever requests are due next, from any connection.
+ * </p>
+ * @author sobrien
+ */
+final class FairScheduler
+{
+	/** bytes each connection is credited per turn */
+	public static final int QUANTUM = 256 << 10;
+
+
+	/** cost of a request, on top of its payload */
+	public static final int REQUEST_COST = 4096;
+
+
+	/** client name under which local (Unix domain socket) clients are limited */
+	public static final String LOCAL_CLIENT = "local";
+
+
+	/** client name whose limits apply to every client without limits of its own */
+	public static final String DEFAULT_CLIENT = "*";
+
+
+	/**
+	 * carries out requests for one connection, on a worker, and sends their responses;
+	 * implemented by each server's connection handling
+	 * @author sobrien
+	 */
+	static interface Sink
+	{
+		/**
+		 * carry out requests and answer them; must not throw (a failure should close the connection)
+		 * @param batch requests from the connection's {@link SubmissionQueue}, as from {@link SubmissionQueue#take()}
+		 */
+		void carryOut(List<Request> batch);
+	}
+
+
+	/**
+	 * one connection's waiting requests, and its place in the rotation
+	 * @author sobrien
+	 */
+	final class Flow
+	{
+		/** received requests waiting for a worker */
+		private final SubmissionQueue queue;
+
+
+		/** carries out this connection's requests */
+		private final Sink sink;
+
+
+		/** the connection's client's caps */
+		private final Throttle throttle;
+
+
+		/** bytes this flow may still spend this turn; guarded by {@link FairScheduler#lock} */
+		private long deficit = 0;
+
+
+		/** true while in {@link FairScheduler#ring}; guarded by {@link FairScheduler#lock} */
+		private boolean active = false;
+
+
+		/**
+		 * @param sink carries out this connection's requests
+		 * @param throttle the connection's client's caps
+		 * @param blockSize block size of the connection's export
+		 */
+		private Flow(Sink sink, Throttle throttle, int blockSize)
+		{
+			this.queue = new SubmissionQueue(Server.MAXIMUM_MERGE, blockSize);
+			this.sink = sink;
+			this.throttle = throttle;
+		}
+
+
+		/**
+		 * @param request a request just received; it'll be carried out, along with others, by some later worker task
+		 */
+		public void submit(Request request)
+		{
+			this.queue.submit(request);
+
+			lock.lock();
+			try
+			{
+				if(! this.active)
+				{
+					this.active = true;
+					ring.add(this);
+				}
+			}
+			finally
+			{
+				lock.unlock();
+			}
+
+			workers.execute(dispatch);
+		}
+	}
+
+
+	/**
+	 * a client's caps, as token buckets holding up to a second's worth.
+	 * The buckets may go into debt, so a request bigger than a second's worth can still go through, and is paid for afterwards.
+	 * Guarded by {@link FairScheduler#lock}.
+	 * @author sobrien
+	 */
+	private static final class Throttle
+	{
+		/** most requests per second; 0 for no limit */
+		private long requestsPerSecond = 0;
+
+
+		/** most payload bytes per second; 0 for no limit */
+		private long bytesPerSecond = 0;
+
+
+		/** requests that may go now */
+		private double requestTokens = 0;
+
+
+		/** bytes that may go now */
+		private double byteTokens = 0;
+
+
+		/** when the buckets were last topped up ({@link System#nanoTime()}) */
+		private long refilled = System.nanoTime();
+
+
+		/**
+		 * @param requestsPerSecond most requests per second; 0 for no limit
+		 * @param bytesPerSecond most payload bytes per second; 0 for no limit
+		 */
+		public void setRates(long requestsPerSecond, long bytesPerSecond)
+		{
+			// newly capped buckets start full; otherwise keep what's left (or owed), up to the new size
+			this.requestTokens = (this.requestsPerSecond == 0) ? requestsPerSecond : Math.min(this.requestTokens, requestsPerSecond);
+			this.byteTokens = (this.bytesPerSecond == 0) ? bytesPerSecond : Math.min(this.byteTokens, bytesPerSecond);
+			this.requestsPerSecond = requestsPerSecond;
+			this.bytesPerSecond = bytesPerSecond;
+		}
+
+
+		/**
+		 * @param now {@link System#nanoTime()}
+		 * @return nanoseconds until more requests may go; 0 if they may go now
+		 */
+		public long delay(long now)
+		{
+			double seconds = (now - this.refilled) / 1e9;
+			this.refilled = now;
+			if(this.requestsPerSecond > 0)
+				this.requestTokens = Math.min(this.requestsPerSecond, this.requestTokens + seconds * this.requestsPerSecond);
+			if(this.bytesPerSecond > 0)
+				this.byteTokens = Math.min(this.bytesPerSecond, this.byteTokens + seconds * this.bytesPerSecond);
+
+			double wait = 0;
+			if(this.requestsPerSecond > 0 && this.requestTokens < 1)
+				wait = Math.max(wait, (1 - this.requestTokens) / this.requestsPerSecond);
+			if(this.bytesPerSecond > 0 && this.byteTokens <= 0)
+				wait = Math.max(wait, (1 - this.byteTokens) / this.bytesPerSecond);
+			return (long) Math.ceil(wait * 1e9);
+		}
+
+
+		/**
+		 * @param requests number of requests just let through
+		 * @param bytes their payload bytes
+		 */
+		public void charge(int requests, long bytes)
+		{
+			if(this.requestsPerSecond > 0)
+				this.requestTokens -= requests;
+			if(this.bytesPerSecond > 0)
+				this.byteTokens -= bytes;
+		}
+	}
+
+
+	/** carries out requests */
+	private final ExecutorService workers;
+
+
+	/** puts off worker tasks while the only requests waiting are over their clients' caps; made when first needed */
+	private ScheduledExecutorService timer = null;
+
+
+	/** guards the rotation, the flows' credit and the throttles */
+	private final ReentrantLock lock = new ReentrantLock();
+
+
+	/** flows with waiting requests, the one whose turn it is first */
+	private final LinkedList<Flow> ring = new LinkedList<Flow> ();
+
+
+	/** each client's caps, by client name */
+	private final Map<String, Throttle> throttles = new HashMap<String, Throttle> ();
+
+
+	/** limits set for particular clients (and {@link #DEFAULT_CLIENT}), by client name: requests per second, then bytes per second */
+	private final Map<String, long[]> limits = new HashMap<String, long[]> ();
+
+
+	/** one worker task: carry out whatever's due next */
+	private final Runnable dispatch = new Runnable() {
+		@Override
+		public void run() {
+			dispatch();
+		}
+	};
+
+
+	/**
+	 * @param workers pool that requests are carried out on
+	 */
+	FairScheduler(ExecutorService workers)
+	{
+		this.workers = workers;
+	}
+
+
+	/**
+	 * @param client the connection's client: its address, or {@link #LOCAL_CLIENT}
+	 * @param sink carries out the connection's requests
+	 * @param blockSize block size of the connection's export
+	 * @return a new flow, for the connection to submit its requests to
+	 */
+	Flow open(String client, Sink sink, int blockSize)
+	{
+		lock.lock();
+		try
+		{
+			Throttle throttle = this.throttles.get(client);
+			if(throttle == null)
+			{
+				throttle = new Throttle();
+				long limit[] = this.limitFor(client);
+				throttle.setRates(limit[0], limit[1]);
+				this.throttles.put(client, throttle);
+			}
+			return new Flow(sink, throttle, blockSize);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * cap a client; applies right away, to connections already open too
+	 * @param client a client address, {@link #LOCAL_CLIENT}, or {@link #DEFAULT_CLIENT} for every client without caps of its own
+	 * @param requestsPerSecond most requests per second; 0 for no limit
+	 * @param bytesPerSecond most payload bytes per second; 0 for no limit
+	 */
+	void setLimit(String client, long requestsPerSecond, long bytesPerSecond)
+	{
+		if(requestsPerSecond < 0 || bytesPerSecond < 0)
+			throw new IllegalArgumentException("limits can't be negative");
+
+		lock.lock();
+		try
+		{
+			this.limits.put(client, new long[] { requestsPerSecond, bytesPerSecond });
+			for(Map.Entry<String, Throttle> entry : this.throttles.entrySet())
+			{
+				long limit[] = this.limitFor(entry.getKey());
+				entry.getValue().setRates(limit[0], limit[1]);
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		// requests put off under the old caps may be due now
+		workers.execute(dispatch);
+	}
+
+
+	/**
+	 * @param client a client name
+	 * @return its caps: its own, else the default ones, else none; requests per second, then bytes per second
+	 */
+	private long[] limitFor(String client)
+	{
+		long limit[] = this.limits.get(client);
+		if(limit == null)
+			limit = this.limits.get(DEFAULT_CLIENT);
+		if(limit == null)
+			limit = new long[] { 0, 0 };
+		return limit;
+	}
+
+
+	/**
+	 * @param request a request
+	 * @return what it costs a flow's credit
+	 */
+	private static long cost(Request request)
+	{
+		return REQUEST_COST + payloadBytes(request);
+	}
+
+
+	/**
+	 * @param request a request
+	 * @return bytes it moves to or from the device; trims, zeroing and block status move none
+	 */
+	private static long payloadBytes(Request request)
+	{
+		if(request.type == Request.Type.READ || request.type == Request.Type.WRITE)
+			return request.length;
+		return 0;
+	}
+
+
+	/**
+	 * carry out the next requests due, if any
+	 */
+	private void dispatch()
+	{
+		Flow flow = null;
+		List<Request> batch = null;
+		long wait = Long.MAX_VALUE;
+
+		lock.lock();
+		try
+		{
+			// visit flows in turn until one has the credit for its next request; skip over capped ones.
+			// every visit either finds a flow something to do, adds to its credit, or finds it capped, so this ends
+			long now = System.nanoTime();
+			int capped = 0;
+			while(! this.ring.isEmpty() && capped < this.ring.size())
+			{
+				Flow next = this.ring.getFirst();
+				Request head = next.queue.peek();
+				if(head == null)
+				{
+					this.retire(next);
+					continue;
+				}
+
+				long delay = next.throttle.delay(now);
+				if(delay > 0)
+				{
+					wait = Math.min(wait, delay);
+					this.ring.addLast(this.ring.removeFirst());
+					capped++;
+					continue;
+				}
+
+				if(next.deficit < cost(head))
+				{
+					// out of credit: top up, and it's the next flow's turn
+					next.deficit += QUANTUM;
+					this.ring.addLast(this.ring.removeFirst());
+					capped = 0;
+					continue;
+				}
+
+				// this flow's turn goes on while it has credit
+				flow = next;
+				batch = next.queue.take();
+				long bytes = 0;
+				for(Request request : batch)
+				{
+					next.deficit -= cost(request);
+					bytes += payloadBytes(request);
+				}
+				next.throttle.charge(batch.size(), bytes);
+				if(next.queue.peek() == null)
+					this.retire(next);
+				break;
+			}
+
+			// nothing due yet, but capped requests are waiting: try again once some should be
+			if(flow == null && wait != Long.MAX_VALUE)
+			{
+				if(this.timer == null)
+					this.timer = Executors.newSingleThreadScheduledExecutor(Threads.daemonFactory("nbd-throttle-"));
+				this.timer.schedule(new Runnable() {
+					@Override
+					public void run() {
+						workers.execute(dispatch);
+					}
+				}, wait, TimeUnit.NANOSECONDS);
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		if(flow != null)
+			flow.sink.carryOut(batch);
+	}
+
+
+	/**
+	 * take a flow with nothing waiting out of the rotation; it starts afresh, without credit, when more requests arrive
+	 * @param flow the flow at the front of {@link #ring}
+	 */
+	private void retire(Flow flow)
+	{
+		this.ring.removeFirst();
+		flow.active = false;
+		flow.deficit = 0;
+	}
+}
@@ -14,9 +14,18 @@ import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
-import cc.obrien.lbd.Device;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import cc.obrien.lbd.layer.FlatFile;
+import cc.obrien.lbd.util.BufferPool;
 import cc.obrien.lbd.util.NBDUtil;
 import cc.obrien.lbd.util.NBDUtil.Request;
 import cc.obrien.lbd.util.NBDUtil.Response;
@@ -51,19 +60,32 @@ final public class NBDServer extends Server
 	private final Set<NBDHandler> handlers = new HashSet<NBDHandler> ();
 
 
+	/** makes the thread each handler runs on; platform daemon threads, or virtual threads */
+	private final ThreadFactory handlerThreads;
+
+
 	/** blocking network calls (accept, recv) timeout after this many ms.  Not as an error, it's just in the polling loop so we can see whether the thread should be terminated; see run() method in NBDEndpoint and NBDHandler */
 	private static final int TIMEOUT_MS = 1500;
 	
 	
+	/** during the handshake, a read timing out is an error; clients get this long to send each thing */
+	private static final int HANDSHAKE_TIMEOUT_MS = 30000;
+	
+	
 	/**
-	 * @param device the device this endpoint serves for
+	 * @param exports the devices this endpoint serves, by export name
 	 * @param socket socket to listen on
+	 * @param workers pool that requests are processed on
+	 * @param buffers pool that payload buffers are leased from
+	 * @param queueDepth maximum number of requests each client may have in flight at once
+	 * @param handlerThreads makes the thread each client's handler runs on
 	 * @throws IOException if couldn't bind to this local port
 	 */
-	public NBDServer(Device device, ServerSocket socket) throws IOException
+	public NBDServer(Exports exports, ServerSocket socket, ExecutorService workers, BufferPool buffers, int queueDepth, ThreadFactory handlerThreads) throws IOException
 	{
-		super(device);
+		super(exports, workers, buffers, queueDepth);
 		
+		this.handlerThreads = handlerThreads;
 		this.listeningSocket = socket;
 		listeningSocket.setSoTimeout(TIMEOUT_MS);
 
@@ -120,7 +142,7 @@ final public class NBDServer extends Server
 				
 				NBDHandler handler = new NBDHandler(clientSocket);
 				addHandler(handler);
-				handler.start();
+				handlerThreads.newThread(handler).start();
 			}
 		}
 		catch(RuntimeException e)
@@ -165,13 +187,19 @@ final public class NBDServer extends Server
 
 	
 	/**
-	 * A handler thread.
-	 * Is a daemon thread; in case the listening daemon thread crashes,
+	 * A handler, running on its own thread (see {@link #handlerThreads}).
+	 * Runs on a daemon thread; in case the listening daemon thread crashes,
 	 * the other handler daemon threads can continue to run.
 	 * Exits upon error or when session complete.
+	 * This thread only receives requests; each is carried out on the server's worker pool
+	 * (up to {@link Server#queueDepth} at once) and its response is handed to the connection's {@link #writer} as soon as it completes,
+	 * so responses can go out in a different order than their requests came in.
+	 * Workers never write to the socket themselves: a client that stops reading holds up only its own threads, not the pool.
+	 * Requests wait for a worker in a {@link SubmissionQueue}, so adjacent ones that pile up can be carried out together,
+	 * and take turns with other clients' (see {@link FairScheduler}).
 	 * @author sobrien
 	 */
-	final private class NBDHandler extends Thread
+	final private class NBDHandler implements Runnable, FairScheduler.Sink
 	{
 		/** connection to client */
 		private final Socket socket;
@@ -185,6 +213,44 @@ final public class NBDServer extends Server
 		private final DataOutputStream output;
 		
 		
+		/**
+		 * the one thread that writes to {@link #output}, from {@link #handlerThreads}: sends responses in the order workers hand them over.
+		 * Reads served straight from the device to the socket (zero-copy and streamed ones) are carried out on it whole.
+		 */
+		private final ExecutorService writer;
+		
+		
+		/** one permit per request that may still be sent to the workers */
+		private final Semaphore inFlight = new Semaphore(queueDepth);
+		
+		
+		/** sends pieces of streamed reads; call on the {@link #writer} */
+		private final PieceSender sender = new PieceSender() {
+			@Override
+			public void send(ByteBuffer piece[]) throws IOException {
+				SocketChannel channel = socket.getChannel();
+				if(channel != null)
+				{
+					while(piece[piece.length - 1].hasRemaining())
+						channel.write(piece);
+				}
+				else
+				{
+					for(ByteBuffer buffer : piece)
+						output.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+				}
+			}
+		};
+		
+		
+		/** outcome of the client's handshake, once done */
+		private volatile Negotiation negotiation;
+		
+		
+		/** each request's header is received into this; only touched by the handler thread */
+		private final ByteBuffer header = ByteBuffer.allocate(Request.HEADER_SIZE);
+		
+		
 		/**
 		 * @param socket connection to client
 		 * @throws IOException if couldn't get I/O streams
@@ -194,9 +260,9 @@ final public class NBDServer extends Server
 			this.socket = socket;
 			this.input = new DataInputStream(socket.getInputStream());
 			this.output = new DataOutputStream(socket.getOutputStream());
-			this.setDaemon(true);
 			
 			socket.setSoTimeout(TIMEOUT_MS);
+			this.writer = Executors.newSingleThreadExecutor(handlerThreads);
 		}
 		
 		
@@ -205,45 +271,35 @@ final public class NBDServer extends Server
 		{
 			try
 			{
-				this.output.write(NBDUtil.constructHello(device.size, device.isWritable()));
-				this.output.flush();
+				this.socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+				Negotiation negotiation = negotiate(this.input, this.output);
+				if(negotiation == null)
+					return;  // client went away without choosing an export
+				this.socket.setSoTimeout(TIMEOUT_MS);
+				this.negotiation = negotiation;
+				FairScheduler.Flow flow = scheduler.open(clientName(this.socket.getRemoteSocketAddress()), this, negotiation.device.blockSize);
 				
 				while(NBDServer.this.isRunning())
 				{
 					try
 					{
-						Request request = NBDUtil.Request.from(this.input);
-						switch(request.type)
+						Request request = NBDUtil.Request.from(this.input, this.header, buffers, STREAM_CHUNK_SIZE);
+						if(request.type == Request.Type.CLOSE)
+							return;
+						
+						// big writes' payloads are left in the socket for us to take in a chunk at a time
+						if(request.type == Request.Type.WRITE && request.bytes == null && request.length > 0)
 						{
-							case READ:
-							{
-								if(request.length == 0)  throw new IllegalArgumentException("zero length read");
-								if(request.offset % 512 != 0 || request.length % 512 != 0)  throw new IllegalArgumentException(String.format("unaligned read"));
-								byte bytes[] = new byte[request.length];
-								boolean success = device.read((int)(request.offset / 512L), request.length / 512, 0, bytes);
-								Response response;
-								if(success)
-									response = new Response(request.handle, 0, bytes);
-								else
-									response = new Response(request.handle, 1);
-								response.write(output);
-								break;
-							}
-							
-							case WRITE:
-							{
-								if(request.length == 0)  throw new IllegalArgumentException("zero length write");
-								if(request.offset % 512 != 0 || request.length % 512 != 0)  throw new IllegalArgumentException(String.format("unaligned write"));
-								boolean success = device.write((int)(request.offset / 512L), request.length / 512, 0, request.bytes);
-								new Response(request.handle, success ? 0 : 1).write(output);
-								break;
-							}
-							
-							case CLOSE:
-							{
+							if(! this.receiveStreamed(flow, request))
 								return;
-							}
+							continue;
 						}
+
+						if(! this.awaitSlot())
+							return;
+						
+						// carried out when it's this client's turn, possibly along with others
+						flow.submit(request);
 					}
 					catch(EOFException e)  { /* premature end of socket; clean up */ this.input.close(); this.output.close(); break; }
 					catch(SocketTimeoutException e)  { continue; }
@@ -259,6 +315,10 @@ final public class NBDServer extends Server
 			}
 			finally
 			{
+				// let requests already handed to the workers send their responses
+				this.inFlight.acquireUninterruptibly(queueDepth);
+				this.writer.shutdown();
+				
 				// safe cleanups
 				NBDServer.this.removeHandler(this);
 
@@ -269,5 +329,235 @@ final public class NBDServer extends Server
 				} catch(IOException e)  { e.printStackTrace(); /* but continue without throwing this */ }
 			}
 		}
+		
+		
+		/**
+		 * wait for room for another request in flight, but keep checking whether we should terminate
+		 * @return true once there's room, or false if the server is stopping
+		 * @throws InterruptedException if interrupted
+		 */
+		private boolean awaitSlot() throws InterruptedException
+		{
+			while(! this.inFlight.tryAcquire(TIMEOUT_MS, TimeUnit.MILLISECONDS))
+			{
+				if(! NBDServer.this.isRunning())
+					return false;
+			}
+			return true;
+		}
+		
+		
+		/**
+		 * take in a big write's payload a chunk at a time, submitting each chunk once received,
+		 * and waiting for it to be carried out before taking in the next; see {@link StreamedWrite}
+		 * @param flow where this client's requests are submitted
+		 * @param request a write whose payload is still in the socket
+		 * @return true once the whole payload has been taken in, or false if the server is stopping or the connection is done for
+		 * @throws IOException if network I/O error
+		 * @throws InterruptedException if interrupted
+		 */
+		private boolean receiveStreamed(FairScheduler.Flow flow, Request request) throws IOException, InterruptedException
+		{
+			StreamedWrite write = new StreamedWrite(request);
+			long end = request.offset + request.length;
+			long position = request.offset;
+			while(position < end)
+			{
+				int length = (int) Math.min(STREAM_CHUNK_SIZE, end - position);
+				byte bytes[] = buffers.lease(length);
+				boolean submitted = false;
+				try
+				{
+					this.readPayload(bytes, length);
+					if(! this.awaitSlot())
+						return false;
+					flow.submit(write.chunk(position, length, bytes));
+					submitted = true;
+				}
+				finally
+				{
+					if(! submitted)
+						buffers.release(bytes);
+				}
+				position += length;
+				
+				while(position < end && ! write.chunkDone.tryAcquire(TIMEOUT_MS, TimeUnit.MILLISECONDS))
+				{
+					if(! NBDServer.this.isRunning() || this.socket.isClosed())
+						return false;
+				}
+			}
+			return true;
+		}
+		
+		
+		/**
+		 * read payload bytes, riding out the socket's polling timeouts (which would otherwise lose a partial read)
+		 * @param bytes receives the payload
+		 * @param length number of bytes to read
+		 * @throws IOException if network I/O error, or the server stopped part way
+		 */
+		private void readPayload(byte bytes[], int length) throws IOException
+		{
+			int done = 0;
+			while(done < length)
+			{
+				try
+				{
+					int result = this.input.read(bytes, done, length - done);
+					if(result < 0)
+						throw new EOFException(String.format("got %d of %d payload bytes", done, length));
+					done += result;
+				}
+				catch(SocketTimeoutException e)
+				{
+					if(! NBDServer.this.isRunning())
+						throw e;
+				}
+			}
+		}
+		
+		
+		@Override
+		public void carryOut(final List<Request> batch)
+		{
+			try
+			{
+				// if the socket came from a channel, reads served entirely from a flat file can skip the heap altogether
+				final FlatFile flatFile = (socket.getChannel() != null) ? zeroCopySource(this.negotiation, batch) : null;
+				if(flatFile != null)
+				{
+					this.reply(batch, new Reply() {
+						@Override
+						public void send() throws IOException {
+							for(Request request : batch)
+							{
+								zeroCopyHeader(negotiation, request).write(output);
+								long position = request.offset;
+								long remaining = request.length;
+								while(remaining > 0)
+								{
+									long sent = flatFile.transferTo(position, remaining, socket.getChannel());
+									position += sent;
+									remaining -= sent;
+								}
+							}
+						}
+					});
+					return;
+				}
+				
+				// big reads go out a piece at a time, as they're read
+				if(batch.size() == 1 && isStreamedRead(this.negotiation, batch.get(0)))
+				{
+					this.reply(batch, new Reply() {
+						@Override
+						public void send() throws IOException {
+							streamRead(negotiation, batch.get(0), sender);
+						}
+					});
+					return;
+				}
+				
+				final List<Response> responses;
+				try
+				{
+					responses = process(this.negotiation, batch);
+				}
+				finally
+				{
+					for(Request request : batch)
+					{
+						if(request.bytes != null)
+							buffers.release(request.bytes);
+					}
+				}
+				
+				this.reply(batch, new Reply() {
+					@Override
+					public void send() throws IOException {
+						try
+						{
+							SocketChannel channel = socket.getChannel();
+							for(Response response : responses)
+							{
+								if(channel != null)
+								{
+									// header and payload in one gathering write, without copying the payload
+									ByteBuffer reply[] = response.toByteBuffers();
+									while(reply[reply.length - 1].hasRemaining())
+										channel.write(reply);
+								}
+								else
+								{
+									response.write(output);
+								}
+							}
+						}
+						finally
+						{
+							for(Response response : responses)
+								response.release(buffers);
+						}
+					}
+				});
+			}
+			catch(Exception e)
+			{
+				this.fail(e);
+				inFlight.release(batch.size());
+			}
+		}
+		
+		
+		/**
+		 * hand a batch's answer to the {@link #writer}; the batch stays in flight until it has gone out
+		 * @param batch the requests answered
+		 * @param reply sends the answer
+		 */
+		private void reply(final List<Request> batch, final Reply reply)
+		{
+			this.writer.execute(new Runnable() {
+				@Override
+				public void run() {
+					try
+					{
+						reply.send();
+					}
+					catch(Exception e)
+					{
+						fail(e);
+					}
+					finally
+					{
+						inFlight.release(batch.size());
+					}
+				}
+			});
+		}
+		
+		
+		/**
+		 * bad request, or I/O error; this client is done for.  Closing the socket also stops the receiving thread.
+		 * @param e what went wrong
+		 */
+		private void fail(Exception e)
+		{
+			e.printStackTrace();
+			try { socket.close(); }  catch(IOException f)  { f.printStackTrace(); /* but continue without throwing this */ }
+		}
+	}
+	
+	
+	/**
+	 * an answer to send on a connection's writer thread
+	 * @author sobrien
+	 */
+	private static interface Reply
+	{
+		/**
+		 * @throws IOException if network I/O error
+		 */
+		void send() throws IOException;
 	}
 }
@@ -0,0 +1,1251 @@
+/*
+ * (C) 2012 Steve O'Brien.  BSD licensed.
+ * see http://www.opensource.org/licenses/BSD-2-Clause
+ * and see LICENSE in the root of this project.
+ */
+
+
+package cc.obrien.lbd.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+import cc.obrien.lbd.layer.FlatFile;
+import cc.obrien.lbd.util.BufferPool;
+import cc.obrien.lbd.util.UnixSockets;
+import cc.obrien.lbd.util.NBDUtil.Request;
+import cc.obrien.lbd.util.NBDUtil.Response;
+
+
+/**
+ * Non-blocking NBD server daemon.
+ * This thread only accepts connections.  Each accepted connection is handed to one of several
+ * {@link EventLoop}s, each of which multiplexes many clients on a single {@link Selector}.
+ * The handshake's options (see {@link Negotiation.Options}) and then the request packets are parsed incrementally as bytes arrive,
+ * so no thread ever blocks on a slow client; clients which haven't finished the handshake within {@link #HANDSHAKE_DEADLINE_MS} are dropped.
+ * Complete requests are carried out on the worker pool, up to {@link Server#queueDepth} per client at once (counting those whose replies are still being sent)
+ * and in turn with other clients' (see {@link FairScheduler}),
+ * and responses are sent in whatever order they complete.
+ * Reads served entirely by a flat file are sent straight from the file to the socket (see {@link Server#zeroCopySource(Negotiation, Request)}).
+ * @author sobrien
+ */
+final public class NIONBDServer extends Server
+{
+	/** clients get this long from being taken on by their loop to finish the handshake, else they're dropped; so clients that connect and say nothing don't linger */
+	private static final long HANDSHAKE_DEADLINE_MS = 30000;
+
+
+	/** address we're listening on: a TCP ip/port, or a Unix domain socket (see {@link UnixSockets}) */
+	public final SocketAddress address;
+
+
+	/** channel to listen for connections on */
+	private final ServerSocketChannel listeningChannel;
+
+
+	/** selector used by this (the accepting) thread only */
+	private final Selector acceptSelector;
+
+
+	/** the loops which service the clients' connections; connections are assigned round-robin */
+	private final EventLoop loops[];
+
+
+	/** index of the loop that gets the next accepted connection */
+	private int nextLoop = 0;
+
+
+	/**
+	 * indicates whether the server is running; when it becomes false,
+	 * the acceptor and the event loops close their channels and exit
+	 */
+	private volatile boolean running = true;
+
+
+	/**
+	 * @param exports the devices this endpoint serves, by export name
+	 * @param channel bound channel to accept connections on; TCP, or Unix domain
+	 * @param loopCount number of event loops (threads) to spread connections over; if zero, one per available processor
+	 * @param workers pool that requests are processed on
+	 * @param buffers pool that payload buffers are leased from
+	 * @param queueDepth maximum number of requests each client may have in flight at once
+	 * @throws IOException if selectors could not be opened
+	 */
+	public NIONBDServer(Exports exports, ServerSocketChannel channel, int loopCount, ExecutorService workers, BufferPool buffers, int queueDepth) throws IOException
+	{
+		super(exports, workers, buffers, queueDepth);
+
+		if(loopCount < 0)
+			throw new IllegalArgumentException("negative loop count");
+		if(loopCount == 0)
+			loopCount = Runtime.getRuntime().availableProcessors();
+
+		this.listeningChannel = channel;
+		this.listeningChannel.configureBlocking(false);
+		this.acceptSelector = Selector.open();
+		this.listeningChannel.register(this.acceptSelector, SelectionKey.OP_ACCEPT);
+
+		this.address = channel.getLocalAddress();
+
+		this.loops = new EventLoop[loopCount];
+		for(int i=0; i<loopCount; i++)
+			this.loops[i] = new EventLoop(i);
+	}
+
+
+	@Override
+	public String toString()
+	{
+		if(this.address instanceof InetSocketAddress)
+			return String.format("%s (port %d, %d event loops)", this.getClass().getSimpleName(), ((InetSocketAddress) this.address).getPort(), this.loops.length);
+		return String.format("%s (%s, %d event loops)", this.getClass().getSimpleName(), this.address, this.loops.length);
+	}
+
+
+	@Override
+	public void stopServer()
+	{
+		this.running = false;
+		this.acceptSelector.wakeup();
+		for(EventLoop loop : this.loops)
+			loop.selector.wakeup();
+	}
+
+
+	/**
+	 * @return true iff server is running
+	 * @see #stopServer()
+	 */
+	public boolean isRunning()
+	{
+		return this.running;
+	}
+
+
+	@Override
+	public void run()
+	{
+		for(EventLoop loop : this.loops)
+			loop.start();
+
+		try
+		{
+			while(running)
+			{
+				this.acceptSelector.select();
+				this.acceptSelector.selectedKeys().clear();
+
+				// accept everybody who is waiting
+				SocketChannel clientChannel;
+				while((clientChannel = this.listeningChannel.accept()) != null)
+				{
+					if(this.address instanceof InetSocketAddress)
+					{
+						clientChannel.socket().setTcpNoDelay(true);
+						clientChannel.socket().setKeepAlive(true);
+					}
+
+					EventLoop loop = this.loops[nextLoop];
+					nextLoop = (nextLoop + 1) % this.loops.length;
+					loop.register(new Connection(loop, clientChannel));
+				}
+			}
+		}
+		catch(RuntimeException e)
+		{
+			throw e;
+		}
+		catch(Exception e)
+		{
+			throw new RuntimeException(e);
+		}
+		finally
+		{
+			this.running = false;
+			for(EventLoop loop : this.loops)
+				loop.selector.wakeup();
+
+			try { this.acceptSelector.close(); }  catch(IOException e) { e.printStackTrace(); /* but continue */ };
+			try { this.listeningChannel.close(); }  catch(IOException e) { e.printStackTrace(); /* but continue */ };
+		}
+	}
+
+
+	/**
+	 * A thread multiplexing many client connections over one selector.
+	 * Is a daemon thread, like the acceptor.
+	 * @author sobrien
+	 */
+	final private class EventLoop extends Thread
+	{
+		/** selector for all of this loop's connections */
+		private final Selector selector;
+
+
+		/** newly accepted connections, to be registered with the selector by the loop thread itself */
+		private final ConcurrentLinkedQueue<Connection> pending = new ConcurrentLinkedQueue<Connection> ();
+
+
+		/** connections started on this loop which may still be doing the handshake, oldest (so soonest deadline) first; only touched by the loop */
+		private final LinkedList<Connection> handshaking = new LinkedList<Connection> ();
+
+
+		/** requests finished by the workers, to be answered by the loop thread itself */
+		private final ConcurrentLinkedQueue<Completion> completions = new ConcurrentLinkedQueue<Completion> ();
+
+
+		/**
+		 * @param number index of this loop (for the thread name)
+		 * @throws IOException if the selector could not be opened
+		 */
+		public EventLoop(int number) throws IOException
+		{
+			super("nbd-loop-" + number);
+			this.selector = Selector.open();
+			this.setDaemon(true);
+		}
+
+
+		/**
+		 * hand a connection to this loop; called from the acceptor
+		 * @param connection a newly accepted connection
+		 */
+		public void register(Connection connection)
+		{
+			this.pending.add(connection);
+			this.selector.wakeup();
+		}
+
+
+		/**
+		 * hand a finished request back to this loop; called from worker threads
+		 * @param completion the outcome
+		 */
+		public void complete(Completion completion)
+		{
+			this.completions.add(completion);
+			this.selector.wakeup();
+		}
+
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				while(NIONBDServer.this.isRunning())
+				{
+					// wake up in time to drop the next client whose handshake is overdue
+					if(this.handshaking.isEmpty())
+						this.selector.select();
+					else
+						this.selector.select(Math.max(1, (this.handshaking.getFirst().deadline - System.nanoTime()) / 1000000));
+
+					Connection connection;
+					while((connection = this.pending.poll()) != null)
+					{
+						try
+						{
+							connection.start(this.selector);
+							this.handshaking.add(connection);
+						}
+						catch(IOException e)
+						{
+							e.printStackTrace();
+							connection.close();
+						}
+					}
+
+					long now = System.nanoTime();
+					while(! this.handshaking.isEmpty())
+					{
+						connection = this.handshaking.getFirst();
+						if(! connection.isNegotiating())
+							this.handshaking.removeFirst();
+						else if(now - connection.deadline >= 0)
+							this.handshaking.removeFirst().close();
+						else
+							break;
+					}
+
+					Completion completion;
+					while((completion = this.completions.poll()) != null)
+					{
+						try
+						{
+							completion.connection.onCompletion(completion);
+						}
+						catch(Exception e)
+						{
+							e.printStackTrace();
+							completion.connection.close();
+						}
+					}
+
+					Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+					while(keys.hasNext())
+					{
+						SelectionKey key = keys.next();
+						keys.remove();
+
+						connection = (Connection) key.attachment();
+						try
+						{
+							if(key.isValid() && key.isReadable())
+								connection.onReadable();
+							if(key.isValid() && key.isWritable())
+								connection.onWritable();
+						}
+						catch(Exception e)
+						{
+							// this client is done for (bad request, I/O error, device error); the others carry on
+							e.printStackTrace();
+							connection.close();
+						}
+					}
+				}
+			}
+			catch(ClosedSelectorException e)
+			{
+				// shutting down
+			}
+			catch(IOException e)
+			{
+				throw new RuntimeException(e);
+			}
+			finally
+			{
+				for(SelectionKey key : this.selector.keys())
+					((Connection) key.attachment()).close();
+
+				Connection connection;
+				while((connection = this.pending.poll()) != null)
+					connection.close();
+
+				try { this.selector.close(); }  catch(IOException e) { e.printStackTrace(); /* but continue */ };
+			}
+		}
+	}
+
+
+	/**
+	 * State of one client connection: how far the handshake has got, a partially-received request, and the responses not yet sent.
+	 * Only ever touched by the thread of the loop it belongs to (but for {@link #carryOut(List)}, which only runs once the handshake is done).
+	 * @author sobrien
+	 */
+	final private class Connection implements FairScheduler.Sink
+	{
+		/** the loop this connection belongs to */
+		private final EventLoop loop;
+
+
+		/** connection to client */
+		private final SocketChannel channel;
+
+
+		/** outcome of the handshake: the export the client chose, and how to answer it; null until it's done */
+		private Negotiation negotiation = null;
+
+
+		/** when the handshake must be done by ({@link System#nanoTime()}) */
+		private long deadline;
+
+
+		/** the client's options, once it has answered the greeting; null before (and after) */
+		private Negotiation.Options options = null;
+
+
+		/** the client's flags, or the header of the option currently being received, during the handshake */
+		private ByteBuffer optionHeader = ByteBuffer.allocate(4);
+
+
+		/** the data of the option currently being received (once its header is complete), else null */
+		private ByteBuffer optionPayload = null;
+
+
+		/** our registration with the loop's selector */
+		private SelectionKey key;
+
+
+		/** the header of the request currently being received */
+		private final ByteBuffer header = ByteBuffer.allocate(Request.HEADER_SIZE);
+
+
+		/** the payload (or the chunk of payload) currently being received (once its header is complete), else null; leased from {@link Server#buffers} */
+		private ByteBuffer payload = null;
+
+
+		/** a big write whose payload is being received a chunk at a time, else null; see {@link StreamedWrite} */
+		private StreamedWrite streaming = null;
+
+
+		/** where the next chunk of {@link #streaming} goes */
+		private long streamPosition;
+
+
+		/** set while a chunk of a streamed write is with the workers; no more is received until it's carried out, to bound what's held */
+		private boolean chunkOutstanding = false;
+
+
+		/** responses waiting to be written to the client, in order */
+		private final LinkedList<Outbound> outbound = new LinkedList<Outbound> ();
+
+
+		/** number of requests handed to the workers and not yet answered; see {@link #hasRoom()} */
+		private int inFlight = 0;
+
+
+		/** received requests waiting for a worker, taking turns with other clients'; adjacent ones that pile up can be carried out together.  Opened once the handshake is done */
+		private FairScheduler.Flow flow;
+
+
+		/** set when client asked to disconnect; the connection is closed once in-flight requests are answered and outbound bytes are sent */
+		private boolean closing = false;
+
+
+		/** set once closed, so late completions are dropped */
+		private boolean closed = false;
+
+
+		/**
+		 * @param loop the loop this connection belongs to
+		 * @param channel connection to client, newly accepted
+		 */
+		public Connection(EventLoop loop, SocketChannel channel)
+		{
+			this.loop = loop;
+			this.channel = channel;
+		}
+
+
+		/**
+		 * register with the selector, and greet the client
+		 * @param selector the loop's selector
+		 * @throws IOException if registration failed
+		 */
+		public void start(Selector selector) throws IOException
+		{
+			this.deadline = System.nanoTime() + HANDSHAKE_DEADLINE_MS * 1000000;
+			this.channel.configureBlocking(false);
+			this.key = this.channel.register(selector, 0, this);
+
+			if(isOldStyleHandshake())
+			{
+				// nothing to haggle over
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream(152);
+				this.begin(Negotiation.oldStyle(NIONBDServer.this, new DataOutputStream(bytes)));
+				this.outbound.add(new BytesOutbound(bytes.toByteArray()));
+			}
+			else
+			{
+				this.outbound.add(new BytesOutbound(Negotiation.greeting()));
+			}
+			this.flush();
+		}
+
+
+		/**
+		 * @return true until the handshake is done, or the connection is closed
+		 */
+		public boolean isNegotiating()
+		{
+			return this.negotiation == null && ! this.closed;
+		}
+
+
+		/**
+		 * the handshake is done; get ready for requests
+		 * @param negotiation its outcome
+		 * @throws IOException if the channel is closed
+		 */
+		private void begin(Negotiation negotiation) throws IOException
+		{
+			this.flow = scheduler.open(clientName(this.channel.getRemoteAddress()), this, negotiation.device.blockSize);
+			this.negotiation = negotiation;
+			this.options = null;
+			this.optionHeader = null;
+		}
+
+
+		/**
+		 * Take in as much of the handshake as is available, answering each option as soon as it's complete.
+		 * Nothing more is taken in while answers wait to be sent, so a client can't pile them up by not reading them.
+		 * The client's flags, option headers and option data are each read into a buffer of exactly their size,
+		 * so the client's first requests are left in the socket.
+		 * @throws IOException if network I/O error, or the client misbehaved
+		 */
+		private void haggle() throws IOException
+		{
+			while(this.negotiation == null && ! this.closing && this.outbound.isEmpty())
+			{
+				ByteBuffer target = (this.optionPayload == null) ? this.optionHeader : this.optionPayload;
+				if(this.channel.read(target) < 0)
+				{
+					// client went away
+					this.close();
+					return;
+				}
+
+				if(target.hasRemaining())
+					break;  // wait for more bytes
+
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				DataOutputStream out = new DataOutputStream(bytes);
+				boolean over = false;
+				if(this.options == null)
+				{
+					// the client's answer to the greeting
+					this.options = new Negotiation.Options(NIONBDServer.this, this.optionHeader.getInt(0));
+					this.optionHeader = ByteBuffer.allocate(Negotiation.Options.HEADER_SIZE);
+				}
+				else if(this.optionPayload == null)
+				{
+					int length = this.options.header(this.optionHeader.getLong(0), this.optionHeader.getInt(8), this.optionHeader.getInt(12), out);
+					this.optionHeader.clear();
+					if(length < 0)
+						over = true;
+					else
+						this.optionPayload = ByteBuffer.allocate(length);
+				}
+				else
+				{
+					over = this.options.option(this.optionPayload.array(), out);
+					this.optionPayload = null;
+				}
+
+				if(bytes.size() > 0)
+					this.outbound.add(new BytesOutbound(bytes.toByteArray()));
+				if(over)
+				{
+					Negotiation negotiation = this.options.outcome();
+					if(negotiation == null)
+						this.closing = true;  // client gave up; hang up once the last answer is sent
+					else
+						this.begin(negotiation);
+				}
+			}
+
+			this.flush();
+		}
+
+
+		/**
+		 * read whatever is available: the handshake, until it's done; then requests, dispatching each as soon as it has been completely received
+		 * @throws IOException if network or device I/O error
+		 */
+		public void onReadable() throws IOException
+		{
+			if(this.negotiation == null)
+			{
+				this.haggle();
+				if(this.negotiation == null || this.closed)
+					return;
+			}
+
+			while(! this.closing && this.hasRoom() && ! this.chunkOutstanding)
+			{
+				if(this.streaming != null && this.payload == null)
+				{
+					// next chunk of a big write
+					long end = this.streaming.request.offset + this.streaming.request.length;
+					int length = (int) Math.min(STREAM_CHUNK_SIZE, end - this.streamPosition);
+					this.payload = ByteBuffer.wrap(buffers.lease(length), 0, length);
+				}
+				
+				ByteBuffer target = (this.payload == null) ? this.header : this.payload;
+				int result = this.channel.read(target);
+				if(result < 0)
+				{
+					// premature end of socket; clean up
+					this.close();
+					return;
+				}
+
+				if(target.hasRemaining())
+					return;  // wait for more bytes
+
+				if(this.payload == null)
+				{
+					// header complete; flip it for parsing, and go get the payload first if there is one
+					this.header.flip();
+					int payloadLength = Request.payloadLength(this.header);
+					if(payloadLength > STREAM_CHUNK_SIZE)
+					{
+						// too big to take in whole; take it in a chunk at a time
+						this.streaming = new StreamedWrite(Request.from(this.header, null));
+						this.streamPosition = this.streaming.request.offset;
+						this.header.clear();
+						continue;
+					}
+					if(payloadLength > 0)
+					{
+						this.payload = ByteBuffer.wrap(buffers.lease(payloadLength), 0, payloadLength);
+						continue;
+					}
+				}
+				
+				if(this.streaming != null)
+				{
+					StreamedWrite.Chunk chunk = this.streaming.chunk(this.streamPosition, this.payload.limit(), this.payload.array());
+					this.streamPosition += this.payload.limit();
+					this.payload = null;
+					if(chunk.last)
+						this.streaming = null;
+					this.chunkOutstanding = true;
+					this.dispatch(chunk);
+					continue;
+				}
+
+				Request request = Request.from(this.header, (this.payload == null) ? null : this.payload.array());
+				this.header.clear();
+				this.payload = null;
+				this.dispatch(request);
+			}
+
+			// either closing, or the queue is full; stop reading until some requests complete
+			this.updateInterest();
+		}
+
+
+		/**
+		 * hand a complete request to the workers; see {@link #carryOut(List)}
+		 * @param request a complete request
+		 * @throws IOException if network I/O error
+		 */
+		private void dispatch(Request request) throws IOException
+		{
+			if(request.type == Request.Type.CLOSE)
+			{
+				this.closing = true;
+				this.flush();
+				return;
+			}
+
+			// carried out when it's this client's turn, possibly along with others
+			this.inFlight++;
+			this.flow.submit(request);
+		}
+
+
+		@Override
+		public void carryOut(List<Request> batch)
+		{
+			Completion completion;
+			try
+			{
+				FlatFile flatFile = zeroCopySource(this.negotiation, batch);
+				ArrayList<Outbound> replies = new ArrayList<Outbound> (batch.size());
+				if(flatFile == null && batch.size() == 1 && isStreamedRead(this.negotiation, batch.get(0)))
+				{
+					// big reads go out a piece at a time; read the first now, and the loop has the rest read as each goes out
+					StreamOutbound reply = new StreamOutbound(this, new StreamedRead(this.negotiation, batch.get(0)));
+					reply.produce();
+					replies.add(reply);
+				}
+				else if(flatFile != null)
+				{
+					for(Request request : batch)
+						replies.add(new FileOutbound(zeroCopyHeader(this.negotiation, request).toByteBuffer(), flatFile, request.offset, request.length));
+				}
+				else
+				{
+					for(Response response : process(this.negotiation, batch))
+						replies.add(new BufferOutbound(response));
+				}
+				completion = new Completion(this, batch.size(), replies, chunks(batch), null);
+			}
+			catch(Exception e)
+			{
+				completion = new Completion(this, batch.size(), null, chunks(batch), e);
+			}
+			finally
+			{
+				for(Request request : batch)
+				{
+					if(request.bytes != null)
+						buffers.release(request.bytes);
+				}
+			}
+			this.loop.complete(completion);
+		}
+
+
+		/**
+		 * @param batch requests carried out together
+		 * @return how many of them are chunks of a streamed write
+		 */
+		private int chunks(List<Request> batch)
+		{
+			int ret = 0;
+			for(Request request : batch)
+			{
+				if(request instanceof StreamedWrite.Chunk)
+					ret++;
+			}
+			return ret;
+		}
+
+
+		/**
+		 * a worker finished some of our requests; send the responses
+		 * @param completion the outcome
+		 * @throws Exception the worker's exception, if the request failed (the connection gets closed)
+		 */
+		public void onCompletion(Completion completion) throws Exception
+		{
+			if(this.closed)
+			{
+				if(completion.replies != null)
+				{
+					for(Outbound reply : completion.replies)
+						reply.done();
+				}
+				return;
+			}
+
+			boolean wasFull = ! this.hasRoom();
+			this.inFlight -= completion.requestCount;
+			boolean chunkDone = (completion.chunkCount > 0);
+			if(chunkDone)
+				this.chunkOutstanding = false;
+			if(completion.exception != null)
+				throw completion.exception;
+
+			this.outbound.addAll(completion.replies);
+			this.flush();
+
+			// room in the queue again, or ready for the next chunk; there may be more already waiting in the socket buffer
+			if((wasFull || chunkDone) && ! this.closed && this.hasRoom())
+				this.onReadable();
+		}
+
+
+		/**
+		 * Requests count against {@link Server#queueDepth} until their replies have gone out, not just until they're carried out,
+		 * so a client that doesn't read its replies can't make us hold more than a queue's worth of them.
+		 * (Once the handshake is done, everything in {@link #outbound} is a reply to a request.)
+		 * @return true iff there's room to take in another request
+		 */
+		private boolean hasRoom()
+		{
+			return this.inFlight + this.outbound.size() < queueDepth;
+		}
+
+
+		/**
+		 * socket became writable again
+		 * @throws IOException if network I/O error
+		 */
+		public void onWritable() throws IOException
+		{
+			this.flush();
+		}
+
+
+		/**
+		 * write as much of the outbound queue as the socket will take;
+		 * if anything is left over, ask the selector to tell us when we can write more
+		 * @throws IOException if network I/O error
+		 */
+		private void flush() throws IOException
+		{
+			while(! this.outbound.isEmpty())
+			{
+				if(! this.outbound.getFirst().sendTo(this.channel))
+					break;
+				this.outbound.removeFirst().done();
+			}
+
+			if(this.closing && this.inFlight == 0 && this.outbound.isEmpty())
+			{
+				this.close();
+				return;
+			}
+
+			this.updateInterest();
+		}
+
+
+		/**
+		 * read while there is room for more requests; write while there are bytes to send
+		 */
+		private void updateInterest()
+		{
+			if(this.closed)
+				return;
+
+			int ops = 0;
+			if(this.negotiation == null)
+			{
+				// the handshake: take in more once the answers so far have gone
+				if(! this.closing && this.outbound.isEmpty())
+					ops |= SelectionKey.OP_READ;
+			}
+			else if(! this.closing && this.hasRoom() && ! this.chunkOutstanding)
+				ops |= SelectionKey.OP_READ;
+			if(! this.outbound.isEmpty() && this.outbound.getFirst().isReady())
+				ops |= SelectionKey.OP_WRITE;
+			this.key.interestOps(ops);
+		}
+
+
+		/**
+		 * close the connection; safe to call more than once
+		 */
+		public void close()
+		{
+			if(this.closed)
+				return;
+
+			this.closed = true;
+			if(this.key != null)
+				this.key.cancel();
+
+			// nothing more will be sent, so the buffers can be reused
+			while(! this.outbound.isEmpty())
+				this.outbound.removeFirst().done();
+			if(this.payload != null)
+			{
+				buffers.release(this.payload.array());
+				this.payload = null;
+			}
+			this.streaming = null;
+
+			try
+			{
+				this.channel.close();
+			} catch(IOException e)  { e.printStackTrace(); /* but continue without throwing this */ }
+		}
+	}
+
+
+	/**
+	 * the outcome of some requests, passed from a worker back to the connection's loop
+	 * @author sobrien
+	 */
+	final private static class Completion
+	{
+		/** connection the requests came in on */
+		public final Connection connection;
+
+
+		/** number of requests carried out together */
+		public final int requestCount;
+
+
+		/** responses to send, if successful; see {@link Server#process(Negotiation, List)} */
+		public final List<Outbound> replies;
+
+
+		/** how many of the requests were chunks of a streamed write */
+		public final int chunkCount;
+
+
+		/** what went wrong, if not */
+		public final Exception exception;
+
+
+		/**
+		 * @param connection connection the requests came in on
+		 * @param requestCount number of requests carried out together
+		 * @param replies responses to send, if successful
+		 * @param chunkCount how many of the requests were chunks of a streamed write
+		 * @param exception what went wrong, if not
+		 */
+		public Completion(Connection connection, int requestCount, List<Outbound> replies, int chunkCount, Exception exception)
+		{
+			this.connection = connection;
+			this.requestCount = requestCount;
+			this.replies = replies;
+			this.chunkCount = chunkCount;
+			this.exception = exception;
+		}
+	}
+
+
+	/**
+	 * something to send to a client, possibly taking several attempts if the socket buffer fills up
+	 * @author sobrien
+	 */
+	private static interface Outbound
+	{
+		/**
+		 * send as much as the channel will take without blocking
+		 * @param channel connection to client
+		 * @return true iff everything has now been sent
+		 * @throws IOException if network or file I/O error
+		 */
+		public boolean sendTo(SocketChannel channel) throws IOException;
+
+
+		/**
+		 * @return true iff there's something to send now; false while waiting for a worker to provide more
+		 */
+		public boolean isReady();
+
+
+		/**
+		 * called once this has been sent, or won't be; releases any buffers
+		 */
+		public void done();
+	}
+
+
+	/**
+	 * bytes of the handshake
+	 * @author sobrien
+	 */
+	final private static class BytesOutbound implements Outbound
+	{
+		/** what's left to send is between its position and limit */
+		private final ByteBuffer bytes;
+
+
+		/**
+		 * @param bytes what to send
+		 */
+		public BytesOutbound(byte bytes[])
+		{
+			this.bytes = ByteBuffer.wrap(bytes);
+		}
+
+
+		@Override
+		public boolean sendTo(SocketChannel channel) throws IOException
+		{
+			channel.write(this.bytes);
+			return ! this.bytes.hasRemaining();
+		}
+
+
+		@Override
+		public boolean isReady()
+		{
+			return true;
+		}
+
+
+		@Override
+		public void done()
+		{
+		}
+	}
+
+
+	/**
+	 * a response, sent by gathering writes of its header and payload, so the payload isn't copied
+	 * @author sobrien
+	 */
+	final private class BufferOutbound implements Outbound
+	{
+		/** the response */
+		private final Response response;
+
+
+		/** header and payload; what's left to send is between their positions and limits */
+		private final ByteBuffer buffers[];
+
+
+		/**
+		 * @param response the response to send
+		 */
+		public BufferOutbound(Response response)
+		{
+			this.response = response;
+			this.buffers = response.toByteBuffers();
+		}
+
+
+		@Override
+		public boolean sendTo(SocketChannel channel) throws IOException
+		{
+			channel.write(this.buffers);
+			return ! this.buffers[this.buffers.length - 1].hasRemaining();
+		}
+
+
+		@Override
+		public boolean isReady()
+		{
+			return true;
+		}
+
+
+		@Override
+		public void done()
+		{
+			this.response.release(NIONBDServer.this.buffers);
+		}
+	}
+
+
+	/**
+	 * a reply header followed by a range of a flat file, which is sent without copying it through the heap
+	 * @author sobrien
+	 */
+	final private static class FileOutbound implements Outbound
+	{
+		/** the reply header */
+		private final ByteBuffer header;
+
+
+		/** the file holding the payload */
+		private final FlatFile file;
+
+
+		/** position in the file of the next byte to send */
+		private long position;
+
+
+		/** bytes of the payload still to send */
+		private long remaining;
+
+
+		/**
+		 * @param header the reply header
+		 * @param file the file holding the payload
+		 * @param position position in the file of the payload
+		 * @param length length of the payload
+		 */
+		public FileOutbound(ByteBuffer header, FlatFile file, long position, long length)
+		{
+			this.header = header;
+			this.file = file;
+			this.position = position;
+			this.remaining = length;
+		}
+
+
+		@Override
+		public boolean sendTo(SocketChannel channel) throws IOException
+		{
+			if(this.header.hasRemaining())
+			{
+				channel.write(this.header);
+				if(this.header.hasRemaining())
+					return false;
+			}
+
+			while(this.remaining > 0)
+			{
+				long sent = this.file.transferTo(this.position, this.remaining, channel);
+				if(sent == 0)
+					return false;  // socket buffer full
+				this.position += sent;
+				this.remaining -= sent;
+			}
+
+			return true;
+		}
+
+
+		@Override
+		public boolean isReady()
+		{
+			return true;
+		}
+
+
+		@Override
+		public void done()
+		{
+		}
+	}
+
+
+	/**
+	 * a reply to a big read, sent a piece at a time; see {@link StreamedRead}.
+	 * Once the loop has sent a piece, it has a worker read the next into the same buffer, so only one piece is ever held,
+	 * and no worker waits on a client that's slow to take its reply;
+	 * later replies queue up behind this one until it's all sent.
+	 * @author sobrien
+	 */
+	final private class StreamOutbound implements Outbound, Runnable
+	{
+		/** the connection the reply goes out on */
+		private final Connection connection;
+
+
+		/** reads the pieces; used by one worker at a time while {@link #producing}, else by the loop */
+		private final StreamedRead read;
+
+
+		/** the piece read by the worker, until the loop picks it up */
+		private volatile ByteBuffer offered[] = null;
+
+
+		/** the piece the loop is sending, else null; only touched by the loop */
+		private ByteBuffer sending[] = null;
+
+
+		/** set by the worker if the reply couldn't be finished; the loop then drops the connection */
+		private volatile Exception failure = null;
+
+
+		/** guards {@link #producing} and {@link #cancelled}, so that whichever of the worker and the loop is last to let go of {@link #read} closes it */
+		private final ReentrantLock lock = new ReentrantLock();
+
+
+		/** set while a worker is reading a piece; the first piece is read by whoever made this */
+		private boolean producing = true;
+
+
+		/** set by the loop once the reply is sent, or won't be */
+		private boolean cancelled = false;
+
+
+		/**
+		 * @param connection the connection the reply goes out on
+		 * @param read the read to answer
+		 */
+		public StreamOutbound(Connection connection, StreamedRead read)
+		{
+			this.connection = connection;
+			this.read = read;
+		}
+
+
+		/**
+		 * read the next piece and offer it to the loop, unless the reply has been given up on meanwhile
+		 * @return false iff it was given up on
+		 */
+		public boolean produce()
+		{
+			ByteBuffer piece[] = null;
+			Exception failure = null;
+			try
+			{
+				piece = this.read.next();
+			}
+			catch(Exception e)
+			{
+				failure = e;
+			}
+
+			this.lock.lock();
+			try
+			{
+				this.producing = false;
+				if(this.cancelled)
+				{
+					this.read.close();
+					return false;
+				}
+				if(failure != null)
+					this.failure = failure;
+				else
+					this.offered = piece;
+				return true;
+			}
+			finally
+			{
+				this.lock.unlock();
+			}
+		}
+
+
+		/**
+		 * read the next piece on a worker, and nudge the loop to send it
+		 */
+		@Override
+		public void run()
+		{
+			if(this.produce())
+				this.connection.loop.complete(new Completion(this.connection, 0, Collections.<Outbound>emptyList(), 0, null));
+		}
+
+
+		@Override
+		public boolean sendTo(SocketChannel channel) throws IOException
+		{
+			if(this.sending == null)
+			{
+				this.sending = this.offered;
+				if(this.sending == null && this.failure != null)
+					throw new IOException("streamed reply failed", this.failure);
+				if(this.sending == null)
+					return false;  // still being read
+				this.offered = null;
+			}
+
+			channel.write(this.sending);
+			if(this.sending[this.sending.length - 1].hasRemaining())
+				return false;  // socket buffer full
+
+			this.sending = null;
+			if(! this.read.hasNext())
+				return true;
+
+			// the buffer is free again; read the next piece into it
+			this.lock.lock();
+			try
+			{
+				this.producing = true;
+			}
+			finally
+			{
+				this.lock.unlock();
+			}
+			try
+			{
+				workers.execute(this);
+			}
+			catch(RejectedExecutionException e)
+			{
+				this.lock.lock();
+				try
+				{
+					this.producing = false;
+				}
+				finally
+				{
+					this.lock.unlock();
+				}
+				throw new IOException("no workers to read the rest of a streamed reply", e);
+			}
+			return false;
+		}
+
+
+		@Override
+		public boolean isReady()
+		{
+			return this.sending != null || this.offered != null || this.failure != null;
+		}
+
+
+		@Override
+		public void done()
+		{
+			// a worker reading a piece closes the read itself, once it sees this
+			this.lock.lock();
+			try
+			{
+				this.cancelled = true;
+				if(! this.producing)
+					this.read.close();
+			}
+			finally
+			{
+				this.lock.unlock();
+			}
+		}
+	}
+}
@@ -0,0 +1,544 @@
+/*
+ * (C) 2012 Steve O'Brien.  BSD licensed.
+ * see http://www.opensource.org/licenses/BSD-2-Clause
+ * and see LICENSE in the root of this project.
+ */
+
+
+package cc.obrien.lbd.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import cc.obrien.lbd.Device;
+import cc.obrien.lbd.util.IOUtil;
+import cc.obrien.lbd.util.NBDUtil;
+
+
+/**
+ * Server side of the handshake with a client, and its outcome.
+ * Speaks either the old-style handshake, or the fixed newstyle one with its option haggling
+ * ({@link NBDUtil#OPT_EXPORT_NAME}, {@link NBDUtil#OPT_INFO}, {@link NBDUtil#OPT_GO}, {@link NBDUtil#OPT_LIST},
+ * {@link NBDUtil#OPT_STRUCTURED_REPLY}, {@link NBDUtil#OPT_LIST_META_CONTEXT}, {@link NBDUtil#OPT_SET_META_CONTEXT}).
+ * Works on blocking streams; servers which are otherwise non-blocking feed the newstyle options to {@link Options} as they arrive instead.
+ *
+ * See https://github.com/NetworkBlockDevice/nbd/blob/master/doc/proto.md
+ * @author sobrien
+ */
+final public class Negotiation
+{
+	/** most option data we'll accept from a client; options we support need far less */
+	private static final int MAX_OPTION_LENGTH = 65536;
+
+
+	/** id of the {@link NBDUtil#CONTEXT_BASE_ALLOCATION} metadata context; the only one there is */
+	public static final int BASE_ALLOCATION_CONTEXT_ID = 1;
+
+
+	/** the export the client chose */
+	public final Device device;
+
+
+	/** the name the client chose it by */
+	public final String exportName;
+
+
+	/** the client understands structured replies; reads must be answered with them */
+	public final boolean structuredReplies;
+
+
+	/** the client chose the {@link NBDUtil#CONTEXT_BASE_ALLOCATION} metadata context, so may ask for {@link NBDUtil.Request.Type#BLOCK_STATUS} */
+	public final boolean allocationContext;
+
+
+	/**
+	 * @param device the export the client chose
+	 * @param exportName the name the client chose it by
+	 * @param structuredReplies the client understands structured replies
+	 * @param allocationContext the client chose the allocation metadata context
+	 */
+	private Negotiation(Device device, String exportName, boolean structuredReplies, boolean allocationContext)
+	{
+		this.device = device;
+		this.exportName = exportName;
+		this.structuredReplies = structuredReplies;
+		this.allocationContext = allocationContext;
+	}
+
+
+	@Override
+	public String toString()
+	{
+		return String.format("[negotiation export='%s' structured=%s allocation=%s]", exportName, structuredReplies, allocationContext);
+	}
+
+
+	/**
+	 * Old-style handshake: just the hello packet, for the server's default export.  Clients can't choose anything.
+	 * @param server the server negotiating
+	 * @param out output to client
+	 * @return the outcome
+	 * @throws IOException if network I/O error
+	 */
+	public static Negotiation oldStyle(Server server, DataOutputStream out) throws IOException
+	{
+		Device device = server.lookupExport("");
+		out.write(NBDUtil.constructHello(device.size << device.blockShift, server.transmissionFlags(device)));
+		out.flush();
+		return new Negotiation(device, "", false, false);
+	}
+
+
+	/**
+	 * @return the greeting which starts the fixed newstyle handshake; the client answers it with its flags
+	 */
+	public static byte[] greeting()
+	{
+		ByteBuffer ret = ByteBuffer.allocate(18);
+		ret.putLong(NBDUtil.INIT_PASSWD);
+		ret.putLong(NBDUtil.IHAVEOPT);
+		ret.putShort((short) (NBDUtil.FLAG_FIXED_NEWSTYLE | NBDUtil.FLAG_NO_ZEROES));
+		return ret.array();
+	}
+
+
+	/**
+	 * Fixed newstyle handshake: greet the client, then answer its options until it chooses an export or gives up.
+	 * @param server the server negotiating
+	 * @param in input from client
+	 * @param out output to client
+	 * @return the outcome, or null if the client gave up (or asked for a nonexistent export with {@link NBDUtil#OPT_EXPORT_NAME}, which can only be refused by hanging up)
+	 * @throws IOException if network I/O error, or client misbehaved
+	 * @see Options
+	 */
+	public static Negotiation newStyle(Server server, DataInputStream in, DataOutputStream out) throws IOException
+	{
+		out.write(greeting());
+		out.flush();
+
+		Options options = new Options(server, in.readInt());
+		while(true)
+		{
+			long magic = in.readLong();
+			int option = in.readInt();
+			int length = options.header(magic, option, in.readInt(), out);
+			if(length < 0)
+				return null;
+
+			byte payload[] = new byte[length];
+			if(IOUtil.ensureRead(in, payload) != length)
+				throw new IOException("client hung up during negotiation");
+			if(options.option(payload, out))
+				return options.outcome();
+		}
+	}
+
+
+	/**
+	 * The option haggling of the fixed newstyle handshake, after the {@link #greeting()}: fed the client's options one at a time,
+	 * however they're received, and answering each on a stream.
+	 * Lets a non-blocking server take options in as bytes arrive; {@link #newStyle(Server, DataInputStream, DataOutputStream)} reads them off a blocking stream.
+	 * @author sobrien
+	 */
+	public static final class Options
+	{
+		/** bytes of each option's header: magic, option, length */
+		public static final int HEADER_SIZE = 16;
+
+
+		/** the server negotiating */
+		private final Server server;
+
+
+		/** the client asked us to leave off the padding after {@link NBDUtil#OPT_EXPORT_NAME}'s reply */
+		private final boolean noZeroes;
+
+
+		/** the client has negotiated structured replies */
+		private boolean structuredReplies = false;
+
+
+		/** the export the client chose the allocation metadata context for, or null; metadata contexts are chosen for a particular export, and choosing another export drops them */
+		private String allocationContextExport = null;
+
+
+		/** the option whose header was last taken in */
+		private int option;
+
+
+		/** what was agreed, once the client has chosen an export; null until then, or if it gave up */
+		private Negotiation outcome = null;
+
+
+		/**
+		 * @param server the server negotiating
+		 * @param clientFlags the client's answer to the greeting
+		 * @throws IOException if the client sent flags we don't know
+		 */
+		public Options(Server server, int clientFlags) throws IOException
+		{
+			if((clientFlags & ~(NBDUtil.FLAG_C_FIXED_NEWSTYLE | NBDUtil.FLAG_C_NO_ZEROES)) != 0)
+				throw new IOException(String.format("client sent unknown flags %08x", clientFlags));
+			this.server = server;
+			this.noZeroes = (clientFlags & NBDUtil.FLAG_C_NO_ZEROES) != 0;
+		}
+
+
+		/**
+		 * take in an option's header
+		 * @param magic should be {@link NBDUtil#IHAVEOPT}
+		 * @param option the option
+		 * @param length length of its data
+		 * @param out output to client
+		 * @return the length of the data to take in next (see {@link #option(byte[], DataOutputStream)}), or -1 if it's too much to take, and the haggling is over
+		 * @throws IOException if network I/O error, or the magic is wrong
+		 */
+		public int header(long magic, int option, int length, DataOutputStream out) throws IOException
+		{
+			if(magic != NBDUtil.IHAVEOPT)
+				throw new IOException(String.format("bad option magic 0x%x", magic));
+
+			this.option = option;
+			if(length < 0 || length > MAX_OPTION_LENGTH)
+			{
+				// can't sensibly skip this much; say why, and give up on this client
+				reply(out, option, NBDUtil.REP_ERR_TOO_BIG, new byte[0]);
+				return -1;
+			}
+			return length;
+		}
+
+
+		/**
+		 * take in the data of the option whose header was just taken in, and answer it
+		 * @param payload the option's data
+		 * @param out output to client
+		 * @return true iff the haggling is over; see {@link #outcome()}
+		 * @throws IOException if network I/O error
+		 */
+		public boolean option(byte payload[], DataOutputStream out) throws IOException
+		{
+			int option = this.option;
+			int length = payload.length;
+			ByteArrayOutputStream bytes;
+			DataOutputStream data;
+
+			switch(option)
+			{
+				case NBDUtil.OPT_EXPORT_NAME:
+				{
+					String name = new String(payload, "UTF-8");
+					Device device = this.server.lookupExport(name);
+					if(device == null)
+						return true;
+
+					bytes = new ByteArrayOutputStream(134);
+					data = new DataOutputStream(bytes);
+					data.writeLong(device.size << device.blockShift);
+					data.writeShort(this.server.transmissionFlags(device));
+					if(! this.noZeroes)
+						data.write(new byte[124]);
+					out.write(bytes.toByteArray());
+					out.flush();
+					this.outcome = new Negotiation(device, name, this.structuredReplies, name.equals(this.allocationContextExport));
+					return true;
+				}
+
+				case NBDUtil.OPT_ABORT:
+				{
+					reply(out, option, NBDUtil.REP_ACK, new byte[0]);
+					return true;
+				}
+
+				case NBDUtil.OPT_LIST:
+				{
+					if(length != 0)
+					{
+						reply(out, option, NBDUtil.REP_ERR_INVALID, new byte[0]);
+						break;
+					}
+
+					for(String name : this.server.exportNames())
+					{
+						byte nameBytes[] = name.getBytes("UTF-8");
+						bytes = new ByteArrayOutputStream(4 + nameBytes.length);
+						data = new DataOutputStream(bytes);
+						data.writeInt(nameBytes.length);
+						data.write(nameBytes);
+						reply(out, option, NBDUtil.REP_SERVER, bytes.toByteArray());
+					}
+					reply(out, option, NBDUtil.REP_ACK, new byte[0]);
+					break;
+				}
+
+				case NBDUtil.OPT_INFO:
+				case NBDUtil.OPT_GO:
+				{
+					Negotiation result = info(this.server, out, option, payload, this.structuredReplies, this.allocationContextExport);
+					if(result != null && option == NBDUtil.OPT_GO)
+					{
+						this.outcome = result;
+						return true;
+					}
+					break;
+				}
+
+				case NBDUtil.OPT_STRUCTURED_REPLY:
+				{
+					if(length != 0)
+					{
+						reply(out, option, NBDUtil.REP_ERR_INVALID, new byte[0]);
+						break;
+					}
+
+					this.structuredReplies = true;
+					reply(out, option, NBDUtil.REP_ACK, new byte[0]);
+					break;
+				}
+
+				case NBDUtil.OPT_LIST_META_CONTEXT:
+				case NBDUtil.OPT_SET_META_CONTEXT:
+				{
+					boolean set = (option == NBDUtil.OPT_SET_META_CONTEXT);
+					String query[] = parseMetaContextQuery(payload);
+					if(query == null || (set && ! this.structuredReplies))
+					{
+						// contexts are only any use with structured replies; choosing one without them is an error
+						reply(out, option, NBDUtil.REP_ERR_INVALID, new byte[0]);
+						break;
+					}
+
+					String name = query[0];
+					if(this.server.lookupExport(name) == null)
+					{
+						reply(out, option, NBDUtil.REP_ERR_UNKNOWN, new byte[0]);
+						break;
+					}
+
+					// listing with no queries means list everything; a namespace on its own matches every context in it
+					boolean matched = (! set && query.length == 1);
+					for(int i=1; i<query.length; i++)
+					{
+						if(query[i].equals(NBDUtil.CONTEXT_BASE_ALLOCATION) || (! set && query[i].equals("base:")))
+							matched = true;
+					}
+
+					if(set)
+						this.allocationContextExport = (matched ? name : null);
+
+					if(matched)
+					{
+						byte contextBytes[] = NBDUtil.CONTEXT_BASE_ALLOCATION.getBytes("UTF-8");
+						bytes = new ByteArrayOutputStream(4 + contextBytes.length);
+						data = new DataOutputStream(bytes);
+						data.writeInt(BASE_ALLOCATION_CONTEXT_ID);
+						data.write(contextBytes);
+						reply(out, option, NBDUtil.REP_META_CONTEXT, bytes.toByteArray());
+					}
+					reply(out, option, NBDUtil.REP_ACK, new byte[0]);
+					break;
+				}
+
+				default:
+				{
+					reply(out, option, NBDUtil.REP_ERR_UNSUP, new byte[0]);
+					break;
+				}
+			}
+			return false;
+		}
+
+
+		/**
+		 * @return once the haggling is over, what was agreed; or null if the client gave up (or asked for a nonexistent export with {@link NBDUtil#OPT_EXPORT_NAME}, which can only be refused by hanging up)
+		 */
+		public Negotiation outcome()
+		{
+			return this.outcome;
+		}
+	}
+
+
+	/**
+	 * answer {@link NBDUtil#OPT_INFO} or {@link NBDUtil#OPT_GO}
+	 * @param server the server negotiating
+	 * @param out output to client
+	 * @param option the option being answered
+	 * @param payload the option's data: export name, and the information types requested
+	 * @param structuredReplies the client has negotiated structured replies
+	 * @param allocationContextExport the export the client chose the allocation metadata context for, or null
+	 * @return the export described, or null if the request was refused
+	 * @throws IOException if network I/O error
+	 */
+	private static Negotiation info(Server server, DataOutputStream out, int option, byte payload[], boolean structuredReplies, String allocationContextExport) throws IOException
+	{
+		DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload));
+		String name;
+		int requests[];
+		try
+		{
+			int nameLength = data.readInt();
+			if(nameLength < 0 || nameLength > payload.length - 6)
+				throw new IOException("bad name length");
+			byte nameBytes[] = new byte[nameLength];
+			data.readFully(nameBytes);
+			name = new String(nameBytes, "UTF-8");
+
+			requests = new int[data.readUnsignedShort()];
+			for(int i=0; i<requests.length; i++)
+				requests[i] = data.readUnsignedShort();
+
+			if(data.available() != 0)
+				throw new IOException("trailing bytes");
+		}
+		catch(IOException e)
+		{
+			reply(out, option, NBDUtil.REP_ERR_INVALID, new byte[0]);
+			return null;
+		}
+
+		Device device = server.lookupExport(name);
+		if(device == null)
+		{
+			reply(out, option, NBDUtil.REP_ERR_UNKNOWN, new byte[0]);
+			return null;
+		}
+
+		boolean blockSizeSent = false;
+		for(int request : requests)
+		{
+			switch(request)
+			{
+				case NBDUtil.INFO_NAME:
+				{
+					byte nameBytes[] = name.getBytes("UTF-8");
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream(2 + nameBytes.length);
+					DataOutputStream info = new DataOutputStream(bytes);
+					info.writeShort(NBDUtil.INFO_NAME);
+					info.write(nameBytes);
+					reply(out, option, NBDUtil.REP_INFO, bytes.toByteArray());
+					break;
+				}
+
+				case NBDUtil.INFO_BLOCK_SIZE:
+				{
+					// clients which ask promise to honour it
+					blockSizeInfo(out, option, device);
+					blockSizeSent = true;
+					break;
+				}
+
+				default:
+					// other information types are optional; ignore them
+					break;
+			}
+		}
+		
+		// a client that didn't ask would assume 512-byte blocks; tell it anyway if they're bigger
+		if(! blockSizeSent && device.blockSize > Device.MINIMUM_BLOCK_SIZE)
+			blockSizeInfo(out, option, device);
+
+		// the export info is mandatory, and goes last so the client has seen everything else before it's told the size
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(12);
+		DataOutputStream info = new DataOutputStream(bytes);
+		info.writeShort(NBDUtil.INFO_EXPORT);
+		info.writeLong(device.size << device.blockShift);
+		info.writeShort(server.transmissionFlags(device));
+		reply(out, option, NBDUtil.REP_INFO, bytes.toByteArray());
+		reply(out, option, NBDUtil.REP_ACK, new byte[0]);
+
+		return new Negotiation(device, name, structuredReplies, name.equals(allocationContextExport));
+	}
+	
+	
+	/**
+	 * send the block size constraints for an export: requests must be aligned to its blocks, and it prefers at least {@link Server#PREFERRED_BLOCK_SIZE}
+	 * @param out output to client
+	 * @param option the option being answered
+	 * @param device the export
+	 * @throws IOException if network I/O error
+	 */
+	private static void blockSizeInfo(DataOutputStream out, int option, Device device) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(14);
+		DataOutputStream info = new DataOutputStream(bytes);
+		info.writeShort(NBDUtil.INFO_BLOCK_SIZE);
+		info.writeInt(device.blockSize);
+		info.writeInt(Math.max(device.blockSize, Server.PREFERRED_BLOCK_SIZE));
+		info.writeInt(Server.MAXIMUM_PAYLOAD);
+		reply(out, option, NBDUtil.REP_INFO, bytes.toByteArray());
+	}
+
+
+	/**
+	 * parse the data of {@link NBDUtil#OPT_LIST_META_CONTEXT} or {@link NBDUtil#OPT_SET_META_CONTEXT}
+	 * @param payload the option's data: export name, then the queries
+	 * @return the export name followed by the queries, or null if malformed
+	 */
+	private static String[] parseMetaContextQuery(byte payload[])
+	{
+		DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload));
+		try
+		{
+			String name = readString(data);
+			int queryCount = data.readInt();
+			if(queryCount < 0 || queryCount > data.available() / 4)
+				return null;
+
+			String ret[] = new String[1 + queryCount];
+			ret[0] = name;
+			for(int i=1; i<ret.length; i++)
+				ret[i] = readString(data);
+
+			if(data.available() != 0)
+				return null;
+			return ret;
+		}
+		catch(IOException e)
+		{
+			return null;
+		}
+	}
+
+
+	/**
+	 * @param data option data
+	 * @return a string sent as a 32-bit length then UTF-8 bytes
+	 * @throws IOException if the length is bad, or there aren't enough bytes
+	 */
+	private static String readString(DataInputStream data) throws IOException
+	{
+		int length = data.readInt();
+		if(length < 0 || length > data.available())
+			throw new IOException("bad string length");
+		byte bytes[] = new byte[length];
+		data.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+
+	/**
+	 * send one option reply
+	 * @param out output to client
+	 * @param option the option being answered
+	 * @param type reply type
+	 * @param payload reply data
+	 * @throws IOException if network I/O error
+	 */
+	private static void reply(DataOutputStream out, int option, int type, byte payload[]) throws IOException
+	{
+		// self-nagling, as with responses
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(20 + payload.length);
+		DataOutputStream data = new DataOutputStream(bytes);
+		data.writeLong(NBDUtil.OPTION_REPLY_MAGIC);
+		data.writeInt(option);
+		data.writeInt(type);
+		data.writeInt(payload.length);
+		data.write(payload);
+		out.write(bytes.toByteArray());
+		out.flush();
+	}
+}
@@ -7,7 +7,25 @@
 
 package cc.obrien.lbd.server;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import cc.obrien.lbd.Device;
+import cc.obrien.lbd.layer.Extent;
+import cc.obrien.lbd.layer.FlatFile;
+import cc.obrien.lbd.util.BufferPool;
+import cc.obrien.lbd.util.NBDUtil;
+import cc.obrien.lbd.util.Threads;
+import cc.obrien.lbd.util.NBDUtil.Request;
+import cc.obrien.lbd.util.NBDUtil.Response;
 
 
 /**
@@ -24,22 +42,111 @@ import cc.obrien.lbd.Device;
  */
 public abstract class Server extends Thread
 {
-	/** the device this serves for */
-	protected final Device device;
+	/** default for the number of requests each client may have in flight at once */
+	public static final int DEFAULT_QUEUE_DEPTH = 32;
+	
+	
+	/** default size of the worker pool */
+	public static final int DEFAULT_WORKER_COUNT = 32;
+	
+	
+	/** request size and alignment that's efficient for us, advertised to clients during negotiation (or the export's block size, if bigger) */
+	public static final int PREFERRED_BLOCK_SIZE = 4096;
+	
+	
+	/** largest read or write payload, advertised to clients that ask during negotiation */
+	public static final int MAXIMUM_PAYLOAD = 32 << 20;
+	
+	
+	/**
+	 * reads and writes longer than this are streamed through in pieces of this size (see {@link #streamRead(Negotiation, Request, PieceSender)}
+	 * and {@link StreamedWrite}), so the memory a request holds doesn't grow with its length
+	 */
+	public static final int STREAM_CHUNK_SIZE = 128 << 10;
+	
+	
+	/** most bytes that adjacent requests are merged into; see {@link SubmissionQueue} */
+	public static final int MAXIMUM_MERGE = 1 << 20;
+	
+	
+	/** most extents to describe in one block status reply; clients ask again for the rest */
+	public static final int MAXIMUM_STATUS_EXTENTS = 4096;
+	
+	
+	/** most bytes of idle payload buffers to keep in {@link #buffers}, over all sizes */
+	public static final long RETAINED_BUFFER_BYTES = 64 << 20;
+	
+	
+	/** the devices this serves, by export name */
+	protected final Exports exports;
+	
+	
+	/** requests are carried out on these threads, so that a client can have several in flight at once */
+	protected final ExecutorService workers;
+	
+	
+	/** decides whose requests {@link #workers} carry out next, so clients get fair shares; and holds clients to their caps */
+	protected final FairScheduler scheduler;
+	
+	
+	/** maximum number of requests each client connection may have in flight at once; at least 1 */
+	public final int queueDepth;
+	
+	
+	/**
+	 * payload buffers for requests and replies: write payloads are leased as they're received, and released once processed;
+	 * read replies from {@link #process(Negotiation, Request)} are leased, and released (see {@link Response#release(BufferPool)}) once sent
+	 */
+	protected final BufferPool buffers;
+	
+	
+	/** greet clients with the old-style handshake instead of the newstyle one; for clients which predate newstyle */
+	private volatile boolean oldStyleHandshake = false;
 
 	
 	/**
 	 * initializes self as a daemon thread;
 	 * subclass's constructor does the rest
-	 * @param device the device this endpoint serves for
+	 * @param exports the devices this endpoint serves, by export name; may be shared with other servers
+	 * @param workers pool that requests are processed on; see {@link #newWorkerPool(int)} and {@link #newVirtualWorkerPool()}
+	 * @param buffers pool that payload buffers are leased from; may be shared with other servers, and sized with {@link #RETAINED_BUFFER_BYTES}
+	 * @param queueDepth maximum number of requests each client connection may have in flight at once
 	 */
-	protected Server(Device device)
+	protected Server(Exports exports, ExecutorService workers, BufferPool buffers, int queueDepth)
 	{
-		this.device = device;
+		if(queueDepth < 1)
+			throw new IllegalArgumentException("queue depth must be at least 1");
+		
+		this.exports = exports;
+		this.workers = workers;
+		this.buffers = buffers;
+		this.scheduler = new FairScheduler(workers);
+		this.queueDepth = queueDepth;
 		this.setDaemon(true);
 	}
 	
 	
+	/**
+	 * @param workerCount number of threads
+	 * @return a fixed-size pool of daemon threads, suitable for processing requests
+	 */
+	public static ExecutorService newWorkerPool(int workerCount)
+	{
+		return Executors.newFixedThreadPool(workerCount, Threads.daemonFactory("nbd-worker-"));
+	}
+	
+	
+	/**
+	 * @return an executor that runs each request on its own new virtual thread
+	 * @throws UnsupportedOperationException if this runtime has no virtual threads
+	 * @see Threads#virtualFactory(String)
+	 */
+	public static ExecutorService newVirtualWorkerPool()
+	{
+		return Threads.threadPerTaskExecutor(Threads.virtualFactory("nbd-worker-"));
+	}
+	
+	
 	@Override
 	public String toString()
 	{
@@ -51,4 +158,593 @@ public abstract class Server extends Thread
 	 * signal to the endpoint that it should stop.
 	 */
 	abstract public void stopServer();
+	
+	
+	/**
+	 * @param oldStyleHandshake true to greet clients with the old-style handshake (no export names or options), for clients which predate newstyle
+	 */
+	public void setOldStyleHandshake(boolean oldStyleHandshake)
+	{
+		this.oldStyleHandshake = oldStyleHandshake;
+	}
+	
+	
+	/**
+	 * @return true iff clients are greeted with the old-style handshake; see {@link #setOldStyleHandshake(boolean)}
+	 */
+	protected boolean isOldStyleHandshake()
+	{
+		return this.oldStyleHandshake;
+	}
+	
+	
+	/**
+	 * Cap a client's requests and payload bytes per second; applies at once, to its open connections too.
+	 * Its requests wait (in turn with other clients') until they're within the caps.
+	 * @param client a client's IP address, "local" for clients on the Unix domain socket, or "*" for every client without caps of its own
+	 * @param requestsPerSecond most requests per second; 0 for no limit
+	 * @param bytesPerSecond most read and write payload bytes per second; 0 for no limit
+	 */
+	public void setClientLimit(String client, long requestsPerSecond, long bytesPerSecond)
+	{
+		this.scheduler.setLimit(client, requestsPerSecond, bytesPerSecond);
+	}
+	
+	
+	/**
+	 * @param remote a connection's remote address
+	 * @return the client's name for {@link #setClientLimit(String, long, long)}: its IP address, or "local"
+	 */
+	static String clientName(SocketAddress remote)
+	{
+		if(remote instanceof InetSocketAddress)
+			return ((InetSocketAddress) remote).getAddress().getHostAddress();
+		return FairScheduler.LOCAL_CLIENT;
+	}
+	
+	
+	/**
+	 * do the handshake with a newly connected client
+	 * @param in input from client
+	 * @param out output to client
+	 * @return the outcome, or null if the client went away without choosing an export
+	 * @throws IOException if network I/O error, or the client misbehaved
+	 */
+	protected Negotiation negotiate(DataInputStream in, DataOutputStream out) throws IOException
+	{
+		if(this.oldStyleHandshake)
+			return Negotiation.oldStyle(this, out);
+		else
+			return Negotiation.newStyle(this, in, out);
+	}
+	
+	
+	/**
+	 * @param name export name chosen by a client; empty for the default export
+	 * @return the device exported under that name, or null if none; see {@link Exports#lookup(String)}
+	 */
+	Device lookupExport(String name)
+	{
+		return this.exports.lookup(name);
+	}
+	
+	
+	/**
+	 * @return names to list for clients which ask
+	 */
+	List<String> exportNames()
+	{
+		return this.exports.names();
+	}
+	
+	
+	/**
+	 * @param device an export
+	 * @return the transmission flags to advertise for it.
+	 *   Always {@link NBDUtil#FLAG_CAN_MULTI_CONN}: every connection to an export goes through the one {@link Device},
+	 *   whose layers and their caches are shared, and whose flush commits and syncs everything completed so far.
+	 */
+	int transmissionFlags(Device device)
+	{
+		if(device.isWritable())
+			return NBDUtil.FLAG_HAS_FLAGS | NBDUtil.FLAG_SEND_FLUSH | NBDUtil.FLAG_SEND_FUA | NBDUtil.FLAG_SEND_TRIM | NBDUtil.FLAG_SEND_WRITE_ZEROES | NBDUtil.FLAG_CAN_MULTI_CONN;
+		else
+			return NBDUtil.FLAG_HAS_FLAGS | NBDUtil.FLAG_READ_ONLY | NBDUtil.FLAG_CAN_MULTI_CONN;
+	}
+	
+	
+	/**
+	 * Carry out a read, write, flush, trim, write zeroes or block status request against the export the client chose.
+	 * Shared by all server implementations, so they differ only in how they move bytes to and from clients.
+	 * @param negotiation outcome of the client's handshake: which export, and whether to use structured replies
+	 * @param request any request but {@link Request.Type#CLOSE}
+	 * @return the response to send back to the client
+	 * @throws IOException if error occurred in some layer
+	 * @throws IllegalArgumentException if request is malformed (zero-length, unaligned, or a close)
+	 */
+	protected Response process(Negotiation negotiation, Request request) throws IOException
+	{
+		Device device = negotiation.device;
+		switch(request.type)
+		{
+			case READ:
+			{
+				if(request.length == 0)  throw new IllegalArgumentException("zero length read");
+				if(! aligned(device, request))  throw new IllegalArgumentException(String.format("unaligned read"));
+				// structured replies are one chunk with all the data; it starts with the offset, so read the data in just after that
+				int dataOffset = negotiation.structuredReplies ? 8 : 0;
+				byte bytes[] = buffers.lease(dataOffset + request.length);
+				boolean success = false;
+				try
+				{
+					success = device.read(request.offset >> device.blockShift, request.length >> device.blockShift, dataOffset, bytes);
+				}
+				finally
+				{
+					if(! success)
+						buffers.release(bytes);
+				}
+				return this.readResponse(negotiation, request, success ? bytes : null);
+			}
+			
+			case WRITE:
+			{
+				if(request.length == 0)  throw new IllegalArgumentException("zero length write");
+				if(! aligned(device, request))  throw new IllegalArgumentException(String.format("unaligned write"));
+				boolean success = device.write(request.offset >> device.blockShift, request.length >> device.blockShift, 0, request.bytes);
+				if(! success)
+					return new Response(request.handle, 1);
+				if((request.flags & NBDUtil.CMD_FLAG_FUA) != 0)
+					return this.flush(device, request);
+				return new Response(request.handle, 0);
+			}
+			
+			case FLUSH:
+				return this.flush(device, request);
+			
+			case TRIM:
+			case WRITE_ZEROES:
+			{
+				if(request.length == 0)  throw new IllegalArgumentException("zero length " + request.type);
+				if(! aligned(device, request))  throw new IllegalArgumentException(String.format("unaligned %s", request.type));
+				boolean success;
+				if(request.type == Request.Type.TRIM)
+					success = device.trim(request.offset >> device.blockShift, request.length >> device.blockShift);
+				else
+					success = device.writeZeroes(request.offset >> device.blockShift, request.length >> device.blockShift, (request.flags & NBDUtil.CMD_FLAG_NO_HOLE) != 0);
+				if(! success)
+					return new Response(request.handle, 1);
+				if((request.flags & NBDUtil.CMD_FLAG_FUA) != 0)
+					return this.flush(device, request);
+				return new Response(request.handle, 0);
+			}
+			
+			case BLOCK_STATUS:
+			{
+				if(request.length == 0)  throw new IllegalArgumentException("zero length block status");
+				if(! aligned(device, request))  throw new IllegalArgumentException(String.format("unaligned block status"));
+				if(! negotiation.allocationContext)
+				{
+					// no context chosen, so nothing to report on
+					if(negotiation.structuredReplies)
+						return Response.errorChunk(request.handle, NBDUtil.EINVAL, "no metadata context chosen");
+					return new Response(request.handle, NBDUtil.EINVAL);
+				}
+				
+				int maxExtents = ((request.flags & NBDUtil.CMD_FLAG_REQ_ONE) != 0) ? 1 : MAXIMUM_STATUS_EXTENTS;
+				List<Extent> extents = device.getExtents(request.offset >> device.blockShift, request.length >> device.blockShift, maxExtents);
+				if(extents == null)
+					return Response.errorChunk(request.handle, NBDUtil.EINVAL, "range out of bounds");
+				
+				ByteBuffer payload = ByteBuffer.allocate(4 + 8 * extents.size());
+				payload.putInt(Negotiation.BASE_ALLOCATION_CONTEXT_ID);
+				for(Extent extent : extents)
+				{
+					// extents lie within the request, so their byte lengths fit
+					payload.putInt((int) ((extent.end - extent.start) << device.blockShift));
+					payload.putInt(extent.status == Extent.Status.ZERO ? (NBDUtil.STATE_HOLE | NBDUtil.STATE_ZERO) : 0);
+				}
+				return Response.chunk(request.handle, NBDUtil.REPLY_FLAG_DONE, NBDUtil.REPLY_TYPE_BLOCK_STATUS, payload.array(), 0);
+			}
+			
+			default:
+				throw new IllegalArgumentException("can't process request type " + request.type);
+		}
+	}
+	
+	
+	/**
+	 * Carry out requests taken together from a {@link SubmissionQueue}: reads (or writes) covering one range between them
+	 * become one read (or write) on the device, whose outcome is split back into a response for each request.
+	 * Anything else is a single request, handed to {@link #process(Negotiation, Request)}.
+	 * Chunks of a {@link StreamedWrite} are answered once, for the whole write, when the last one is done;
+	 * each one done (or failed) releases {@link StreamedWrite#chunkDone}.
+	 * @param negotiation outcome of the client's handshake
+	 * @param batch requests from {@link SubmissionQueue#take()}; not empty
+	 * @return the responses to send: one for each request, in the same order, but none for any chunk except a last one
+	 * @throws IOException if error occurred in some layer
+	 * @throws IllegalArgumentException if a lone request is malformed
+	 */
+	protected List<Response> process(Negotiation negotiation, List<Request> batch) throws IOException
+	{
+		try
+		{
+			List<Response> responses = this.processTogether(negotiation, batch);
+			ArrayList<Response> ret = new ArrayList<Response> (responses.size());
+			for(int i=0; i<batch.size(); i++)
+			{
+				if(! (batch.get(i) instanceof StreamedWrite.Chunk))
+				{
+					ret.add(responses.get(i));
+					continue;
+				}
+				
+				StreamedWrite.Chunk chunk = (StreamedWrite.Chunk) batch.get(i);
+				chunk.write.record(responses.get(i).error);
+				if(chunk.last)
+				{
+					Request whole = chunk.write.request;
+					int error = chunk.write.error();
+					if(error == 0 && (whole.flags & NBDUtil.CMD_FLAG_FUA) != 0)
+						error = this.flush(negotiation.device, whole).error;
+					ret.add(new Response(whole.handle, error));
+				}
+			}
+			return ret;
+		}
+		finally
+		{
+			// let the receiving side go on to the next chunk, or find out the connection is done for
+			for(Request request : batch)
+			{
+				if(request instanceof StreamedWrite.Chunk)
+					((StreamedWrite.Chunk) request).write.chunkDone.release();
+			}
+		}
+	}
+	
+	
+	/**
+	 * @param negotiation outcome of the client's handshake
+	 * @param batch requests from {@link SubmissionQueue#take()}; not empty
+	 * @return a response for each request, in the same order
+	 * @throws IOException if error occurred in some layer
+	 * @throws IllegalArgumentException if a lone request is malformed
+	 * @see #process(Negotiation, List)
+	 */
+	private List<Response> processTogether(Negotiation negotiation, List<Request> batch) throws IOException
+	{
+		if(batch.size() == 1)
+			return Collections.singletonList(this.process(negotiation, batch.get(0)));
+		
+		// the queue only merges well-formed reads or writes, and their ranges form one run
+		Device device = negotiation.device;
+		Request.Type type = batch.get(0).type;
+		long start = Long.MAX_VALUE;
+		long end = Long.MIN_VALUE;
+		for(Request request : batch)
+		{
+			start = Math.min(start, request.offset);
+			end = Math.max(end, request.offset + request.length);
+		}
+		int length = (int) (end - start);
+		
+		ArrayList<Response> responses = new ArrayList<Response> (batch.size());
+		byte merged[] = buffers.lease(length);
+		try
+		{
+			if(type == Request.Type.READ)
+			{
+				boolean success = device.read(start >> device.blockShift, length >> device.blockShift, 0, merged);
+				int dataOffset = negotiation.structuredReplies ? 8 : 0;
+				for(Request request : batch)
+				{
+					byte bytes[] = null;
+					if(success)
+					{
+						bytes = buffers.lease(dataOffset + request.length);
+						System.arraycopy(merged, (int) (request.offset - start), bytes, dataOffset, request.length);
+					}
+					responses.add(this.readResponse(negotiation, request, bytes));
+				}
+			}
+			else
+			{
+				// in arrival order, so overlapping writes land as if carried out one after another
+				boolean fua = false;
+				for(Request request : batch)
+				{
+					System.arraycopy(request.bytes, 0, merged, (int) (request.offset - start), request.length);
+					fua |= (request.flags & NBDUtil.CMD_FLAG_FUA) != 0;
+				}
+				
+				int error = device.write(start >> device.blockShift, length >> device.blockShift, 0, merged) ? 0 : 1;
+				if(error == 0 && fua)
+					error = this.flush(device, batch.get(0)).error;
+				for(Request request : batch)
+					responses.add(new Response(request.handle, error));
+			}
+		}
+		finally
+		{
+			buffers.release(merged);
+		}
+		return responses;
+	}
+	
+	
+	/**
+	 * sends a large read's reply a piece at a time; see {@link Server#streamRead(Negotiation, Request, PieceSender)}
+	 * @author sobrien
+	 */
+	protected static interface PieceSender
+	{
+		/**
+		 * send the next part of a reply, in order after the previous parts
+		 * @param piece buffers to send, in order; they're reused once this returns, so it must have sent (or copied) them by then
+		 * @throws IOException if network I/O error
+		 */
+		public void send(ByteBuffer piece[]) throws IOException;
+	}
+	
+	
+	/**
+	 * @param negotiation outcome of the client's handshake
+	 * @param request a request
+	 * @return true iff it's a well-formed read too long to read into one buffer; servers carry it out with
+	 *   {@link #streamRead(Negotiation, Request, PieceSender)} rather than {@link #process(Negotiation, List)}
+	 */
+	protected boolean isStreamedRead(Negotiation negotiation, Request request)
+	{
+		return request.type == Request.Type.READ && request.length > STREAM_CHUNK_SIZE && aligned(negotiation.device, request);
+	}
+	
+	
+	/**
+	 * @param device the export
+	 * @param request a request
+	 * @return true iff its offset and length are whole numbers of the export's blocks
+	 */
+	private static boolean aligned(Device device, Request request)
+	{
+		return request.offset % device.blockSize == 0 && request.length % device.blockSize == 0;
+	}
+	
+	
+	/**
+	 * Carry out a read a piece at a time, handing each piece of reply to the sender as soon as it's read; see {@link StreamedRead}.
+	 * @param negotiation outcome of the client's handshake
+	 * @param request a read request, for which {@link #isStreamedRead(Negotiation, Request)} is true
+	 * @param sender sends the pieces to the client
+	 * @throws IOException if network I/O error, or a read failed part way through a simple reply
+	 */
+	protected void streamRead(Negotiation negotiation, Request request, PieceSender sender) throws IOException
+	{
+		StreamedRead read = new StreamedRead(negotiation, request);
+		try
+		{
+			while(read.hasNext())
+				sender.send(read.next());
+		}
+		finally
+		{
+			read.close();
+		}
+	}
+	
+	
+	/**
+	 * A read too long to read into one buffer, read a piece of {@link #STREAM_CHUNK_SIZE} at a time into the same buffer,
+	 * so the whole reply is never in memory at once; each piece must be sent before the next is read.
+	 * Structured replies get a data chunk per piece, and a failure part way is reported with an error chunk.
+	 * A simple reply has just the one header, at the start, so a failure after the first piece can't be reported in it;
+	 * the connection must be dropped instead (the exception says so).
+	 * Not thread safe; it may move between threads, but only one may use it at a time.
+	 * @author sobrien
+	 */
+	protected final class StreamedRead
+	{
+		/** outcome of the client's handshake */
+		private final Negotiation negotiation;
+		
+		
+		/** the read */
+		private final Request request;
+		
+		
+		/** where the next piece starts; the read's end once there are no more pieces */
+		private long position;
+		
+		
+		/** the pieces' data, leased from {@link Server#buffers}; null once closed */
+		private byte bytes[];
+		
+		
+		/**
+		 * @param negotiation outcome of the client's handshake
+		 * @param request a read request, for which {@link #isStreamedRead(Negotiation, Request)} is true
+		 */
+		protected StreamedRead(Negotiation negotiation, Request request)
+		{
+			this.negotiation = negotiation;
+			this.request = request;
+			this.position = request.offset;
+			this.bytes = buffers.lease(STREAM_CHUNK_SIZE);
+		}
+		
+		
+		/**
+		 * @return true iff there's another piece to send
+		 */
+		public boolean hasNext()
+		{
+			return this.position < this.request.offset + this.request.length;
+		}
+		
+		
+		/**
+		 * read the next piece; only while {@link #hasNext()}
+		 * @return buffers to send, in order; they're reused by the next call, so must have been sent by then
+		 * @throws IOException if a read failed part way through a simple reply
+		 */
+		public ByteBuffer[] next() throws IOException
+		{
+			Device device = this.negotiation.device;
+			long end = this.request.offset + this.request.length;
+			long position = this.position;
+			int length = (int) Math.min(STREAM_CHUNK_SIZE, end - position);
+			if(! device.read(position >> device.blockShift, length >> device.blockShift, 0, this.bytes))
+			{
+				this.position = end;
+				if(this.negotiation.structuredReplies)
+					return Response.errorChunk(this.request.handle, NBDUtil.EIO, "read failed").toByteBuffers();
+				else if(position == this.request.offset)
+					return new Response(this.request.handle, 1).toByteBuffers();
+				else
+					throw new IOException(String.format("read failed %d bytes into a %d-byte simple reply; can't report it", position - this.request.offset, this.request.length));
+			}
+			this.position += length;
+			
+			ByteBuffer data = ByteBuffer.wrap(this.bytes, 0, length);
+			if(this.negotiation.structuredReplies)
+			{
+				int flags = (position + length == end) ? NBDUtil.REPLY_FLAG_DONE : 0;
+				byte offset[] = ByteBuffer.allocate(8).putLong(position).array();
+				return new ByteBuffer[] { Response.chunk(this.request.handle, flags, NBDUtil.REPLY_TYPE_OFFSET_DATA, offset, length).toByteBuffer(), data };
+			}
+			else if(position == this.request.offset)
+			{
+				return new ByteBuffer[] { new Response(this.request.handle, 0).toByteBuffer(), data };
+			}
+			else
+			{
+				return new ByteBuffer[] { data };
+			}
+		}
+		
+		
+		/**
+		 * give back the buffer; safe to call more than once
+		 */
+		public void close()
+		{
+			if(this.bytes != null)
+			{
+				buffers.release(this.bytes);
+				this.bytes = null;
+			}
+		}
+	}
+	
+	
+	/**
+	 * @param negotiation outcome of the client's handshake
+	 * @param request a read request
+	 * @param bytes its data, leased from {@link #buffers} and starting 8 bytes in if replies are structured; null if the read failed
+	 * @return the response carrying the data (and owning the buffer), or the error
+	 */
+	private Response readResponse(Negotiation negotiation, Request request, byte bytes[])
+	{
+		if(negotiation.structuredReplies)
+		{
+			if(bytes == null)
+				return Response.errorChunk(request.handle, NBDUtil.EIO, "read failed");
+			ByteBuffer.wrap(bytes).putLong(request.offset);
+			return Response.leasedChunk(request.handle, NBDUtil.REPLY_FLAG_DONE, NBDUtil.REPLY_TYPE_OFFSET_DATA, bytes, 8 + request.length);
+		}
+		if(bytes != null)
+			return Response.leased(request.handle, bytes, request.length);
+		else
+			return new Response(request.handle, 1);
+	}
+	
+	
+	/**
+	 * Make completed writes durable, for a flush or a request with {@link NBDUtil#CMD_FLAG_FUA}.
+	 * Concurrent flushes, from this client or others, are coalesced into as few syncs as possible; see {@link Device#flush()}.
+	 * @param device the export to flush
+	 * @param request the request to answer
+	 * @return the response to send back to the client; {@link NBDUtil#EIO} if the sync failed
+	 */
+	private Response flush(Device device, Request request)
+	{
+		try
+		{
+			device.flush();
+			return new Response(request.handle, 0);
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+			return new Response(request.handle, NBDUtil.EIO);
+		}
+	}
+	
+	
+	/**
+	 * For a read request whose whole range is served by one flat file (no layer above it overrides any block),
+	 * find that file, so the server can send the reply payload straight from it with
+	 * {@link FlatFile#transferTo(long, long, java.nio.channels.WritableByteChannel)} instead of calling {@link #process(Negotiation, Request)}.
+	 * The payload follows the header from {@link #zeroCopyHeader(Negotiation, Request)}.
+	 * @param negotiation outcome of the client's handshake
+	 * @param request any request
+	 * @return the flat file to send the payload from, or null if the request should go through {@link #process(Negotiation, Request)}
+	 * @throws IOException if error occurred while consulting some layer
+	 */
+	protected FlatFile zeroCopySource(Negotiation negotiation, Request request) throws IOException
+	{
+		if(request.type != Request.Type.READ)
+			return null;
+		
+		// malformed requests are left to process(), which complains about them
+		Device device = negotiation.device;
+		if(request.length == 0 || ! aligned(device, request))
+			return null;
+		
+		return device.getFlatFileFor(request.offset >> device.blockShift, request.length >> device.blockShift);
+	}
+	
+	
+	/**
+	 * {@link #zeroCopySource(Negotiation, Request)} for requests taken together from a {@link SubmissionQueue}
+	 * @param negotiation outcome of the client's handshake
+	 * @param batch requests from {@link SubmissionQueue#take()}; not empty
+	 * @return the flat file to send every request's payload from, or null if they should go through {@link #process(Negotiation, List)}
+	 * @throws IOException if error occurred while consulting some layer
+	 */
+	protected FlatFile zeroCopySource(Negotiation negotiation, List<Request> batch) throws IOException
+	{
+		if(batch.size() == 1)
+			return this.zeroCopySource(negotiation, batch.get(0));
+		if(batch.get(0).type != Request.Type.READ)
+			return null;
+		
+		// merged reads cover one run between them, so one lookup answers for all
+		long start = Long.MAX_VALUE;
+		long end = Long.MIN_VALUE;
+		for(Request request : batch)
+		{
+			start = Math.min(start, request.offset);
+			end = Math.max(end, request.offset + request.length);
+		}
+		Device device = negotiation.device;
+		return device.getFlatFileFor(start >> device.blockShift, (int) ((end - start) >> device.blockShift));
+	}
+	
+	
+	/**
+	 * @param negotiation outcome of the client's handshake
+	 * @param request a read request for which {@link #zeroCopySource(Negotiation, Request)} found a file
+	 * @return the response header to send before the payload: a simple reply, or a structured reply chunk
+	 *   whose length takes in the payload sent after it
+	 */
+	protected Response zeroCopyHeader(Negotiation negotiation, Request request)
+	{
+		if(negotiation.structuredReplies)
+		{
+			byte offset[] = ByteBuffer.allocate(8).putLong(request.offset).array();
+			return Response.chunk(request.handle, NBDUtil.REPLY_FLAG_DONE, NBDUtil.REPLY_TYPE_OFFSET_DATA, offset, request.length);
+		}
+		return new Response(request.handle, 0);
+	}
 }
@@ -0,0 +1,105 @@
+/*
+ * (C) 2012 Steve O'Brien.  BSD licensed.
+ * see http://www.opensource.org/licenses/BSD-2-Clause
+ * and see LICENSE in the root of this project.
+ */
+
+
+package cc.obrien.lbd.server;
+
+import java.util.concurrent.Semaphore;
+import cc.obrien.lbd.util.NBDUtil;
+import cc.obrien.lbd.util.NBDUtil.Request;
+
+
+/**
+ * A write whose payload is bigger than {@link Server#STREAM_CHUNK_SIZE}, received and carried out a chunk at a time,
+ * so it never needs a buffer of its full length.
+ * The receiving side makes a {@link Chunk} of each piece of payload as it arrives, submits it like any other write,
+ * and waits for it to be carried out (see {@link #chunkDone}) before receiving the next.
+ * The client gets one reply, once the last chunk is done; see {@link Server#process(Negotiation, java.util.List)}.
+ * @author sobrien
+ */
+final class StreamedWrite
+{
+	/**
+	 * one piece of a streamed write; a write request of its own, but answered as part of the whole
+	 * @author sobrien
+	 */
+	static final class Chunk extends Request
+	{
+		/** the whole write */
+		final StreamedWrite write;
+
+
+		/** true iff this is the whole write's last chunk */
+		final boolean last;
+
+
+		/**
+		 * @param write the whole write
+		 * @param offset byte offset of this piece
+		 * @param length length of this piece
+		 * @param bytes its payload, leased from the server's buffers
+		 */
+		private Chunk(StreamedWrite write, long offset, int length, byte bytes[])
+		{
+			// durability is seen to once, for the whole write
+			super(Request.Type.WRITE, write.request.flags & ~NBDUtil.CMD_FLAG_FUA, write.request.handle, offset, length, bytes);
+			this.write = write;
+			this.last = (offset + length == write.request.offset + write.request.length);
+		}
+	}
+
+
+	/** the whole write, as received: header only, without its payload */
+	final Request request;
+
+
+	/** released as each chunk is carried out (or fails), so the receiving side can go on to the next */
+	final Semaphore chunkDone = new Semaphore(0);
+
+
+	/** first error from any chunk, or 0 */
+	private volatile int error = 0;
+
+
+	/**
+	 * @param request a write, as received without its payload
+	 */
+	StreamedWrite(Request request)
+	{
+		this.request = request;
+	}
+
+
+	/**
+	 * @param offset byte offset of the next piece; starts at the write's offset
+	 * @param length its length; at most {@link Server#STREAM_CHUNK_SIZE}
+	 * @param bytes its payload, leased from the server's buffers
+	 * @return a request for it
+	 */
+	Chunk chunk(long offset, int length, byte bytes[])
+	{
+		return new Chunk(this, offset, length, bytes);
+	}
+
+
+	/**
+	 * @param error a chunk's outcome
+	 */
+	void record(int error)
+	{
+		if(error != 0 && this.error == 0)
+			this.error = error;
+	}
+
+
+	/**
+	 * @return first error from any chunk so far, or 0
+	 */
+	int error()
+	{
+		return this.error;
+	}
+}
@@ -0,0 +1,172 @@
+/*
+ * (C) 2012 Steve O'Brien.  BSD licensed.
+ * see http://www.opensource.org/licenses/BSD-2-Clause
+ * and see LICENSE in the root of this project.
+ */
+
+
+package cc.obrien.lbd.server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import cc.obrien.lbd.util.NBDUtil.Request;
+
+
+/**
+ * One connection's requests which have been received but not yet picked up by a worker.
+ * Workers take requests in arrival order, but a worker taking a read or write also takes any other waiting
+ * reads (or writes) which touch or overlap it, so a burst of small adjacent requests (which clients like the Linux
+ * kernel send when streaming) becomes one larger operation on the device; see {@link Server#process(Negotiation, List)}.
+ * Requests in flight at the same time may be carried out in any order, so this doesn't change what clients can see.
+ * Nothing is held back waiting for a neighbour: requests only merge when they're already waiting together,
+ * i.e. when the workers are behind.
+ * @author sobrien
+ */
+final class SubmissionQueue
+{
+	/** waiting requests, in arrival order */
+	private final LinkedList<Request> pending = new LinkedList<Request> ();
+
+
+	/** guards {@link #pending}; a lock rather than a monitor, so virtual threads don't pin their carrier thread */
+	private final ReentrantLock lock = new ReentrantLock();
+
+
+	/** most bytes in one merged operation */
+	private final int maximumLength;
+
+
+	/** block size of the connection's export; only requests aligned to it are merged */
+	private final int blockSize;
+
+
+	/**
+	 * @param maximumLength most bytes to cover in one merged read or write
+	 * @param blockSize block size of the connection's export
+	 */
+	SubmissionQueue(int maximumLength, int blockSize)
+	{
+		this.maximumLength = maximumLength;
+		this.blockSize = blockSize;
+	}
+
+
+	/**
+	 * @param request a request just received; the caller should then hand one {@link #take()} to a worker
+	 */
+	void submit(Request request)
+	{
+		lock.lock();
+		try
+		{
+			this.pending.add(request);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * @return the oldest waiting request, which {@link #take()} would start with; null if none
+	 */
+	Request peek()
+	{
+		lock.lock();
+		try
+		{
+			return this.pending.peekFirst();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * @return the oldest waiting request, plus any waiting requests merged with it (in arrival order);
+	 *   empty if an earlier take already picked up everything that was waiting
+	 */
+	List<Request> take()
+	{
+		ArrayList<Request> batch = new ArrayList<Request> ();
+		lock.lock();
+		try
+		{
+			if(this.pending.isEmpty())
+				return batch;
+
+			Request first = this.pending.removeFirst();
+			batch.add(first);
+			if(! mergeable(first) || this.pending.isEmpty())
+				return batch;
+
+			// grow the range until nothing else waiting touches it; queues are short, so rescanning is cheap
+			boolean taken[] = new boolean[this.pending.size()];
+			long start = first.offset;
+			long end = first.offset + first.length;
+			boolean grew = true;
+			while(grew)
+			{
+				grew = false;
+				int index = 0;
+				for(Request request : this.pending)
+				{
+					if(taken[index++] || request.type != first.type || ! mergeable(request))
+						continue;
+
+					long requestEnd = request.offset + request.length;
+					if(request.offset > end || requestEnd < start)
+						continue;
+
+					long newStart = Math.min(start, request.offset);
+					long newEnd = Math.max(end, requestEnd);
+					if(newEnd - newStart > this.maximumLength)
+						continue;
+
+					taken[index - 1] = true;
+					start = newStart;
+					end = newEnd;
+					grew = true;
+				}
+			}
+
+			// keep arrival order, so that overlapping writes land as if carried out one after another
+			int index = 0;
+			Iterator<Request> i = this.pending.iterator();
+			while(i.hasNext())
+			{
+				Request request = i.next();
+				if(taken[index++])
+				{
+					i.remove();
+					batch.add(request);
+				}
+			}
+			return batch;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * @param request a request
+	 * @return true iff it's a well-formed read or write, short enough to be merged with its neighbours;
+	 *   anything else is left to be carried out (or complained about) on its own
+	 */
+	private boolean mergeable(Request request)
+	{
+		if(request.type != Request.Type.READ && request.type != Request.Type.WRITE)
+			return false;
+		// longer ones are streamed through on their own; see Server#STREAM_CHUNK_SIZE
+		return request.length > 0 && request.length <= Server.STREAM_CHUNK_SIZE && request.offset >= 0 && request.offset % this.blockSize == 0 && request.length % this.blockSize == 0;
+	}
+}
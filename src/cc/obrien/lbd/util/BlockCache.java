@@ -0,0 +1,942 @@
+/*
+ * (C) 2012 Steve O'Brien.  BSD licensed.
+ * see http://www.opensource.org/licenses/BSD-2-Clause
+ * and see LICENSE in the root of this project.
+ */
+
+
+package cc.obrien.lbd.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * A fixed-size cache of blocks, shared by the cached layers of every device in the process, and by many threads.
+ * Each layer uses it through a {@link Share} of its own, which looks like a cache of just that layer's blocks,
+ * and keeps count of how much of the cache that layer uses, and how well.
+ * The cache holds blocks in units of the smallest block size of its users; bigger blocks take several units.
+ * <p>
+ * Blocks are spread by a hash of their layer and number over independently locked segments.  Each segment is laid out in arrays
+ * (no per-entry objects, no boxed keys): an open-addressing index from unit to slot, and the slots themselves.
+ * The blocks' contents are kept off the Java heap, in one direct buffer per segment cut into unit-sized slots,
+ * so a big cache costs the garbage collector nothing; they're copied in and out.
+ * Eviction follows W-TinyLFU (see http://arxiv.org/abs/1512.00727): a new block goes into a small FIFO "window";
+ * the block it pushes out of the window only gets into the main region if it's been used more often lately than
+ * the block it would replace there, as estimated by a small counting sketch of recent lookups.
+ * The main region picks its victims by CLOCK (second chance).
+ * So a long sequential read, whose blocks are each used once, passes through the window without flushing the working set;
+ * and since every layer's blocks compete for the same space, idle layers' blocks make way for busy ones'.
+ * <p>
+ * Uses locks rather than monitors, so virtual threads waiting here don't pin their carrier thread.
+ * @author sobrien
+ */
+public final class BlockCache
+{
+	/** the usual size of the cache, in bytes */
+	public static final long DEFAULT_SIZE_BYTES = 64 << 20;
+
+
+	/** most segments a cache is split into */
+	private static final int MAXIMUM_SEGMENTS = 64;
+
+
+	/** fewest units a segment holds, unless the whole cache is smaller */
+	private static final int MINIMUM_SEGMENT_SIZE = 128;
+
+
+	/** most bytes a segment holds; more segments are used, past {@link #MAXIMUM_SEGMENTS}, for caches too big for that */
+	private static final int MAXIMUM_SEGMENT_BYTES = 1 << 30;
+
+
+	/** number of stamps each {@link Share} has */
+	private static final int STAMP_COUNT = 256;
+
+
+	/** the size of a unit, in bytes */
+	public final int unitSize;
+
+
+	/** max number of units held */
+	public final int maxUnits;
+
+
+	/** the segments; their number is a power of two */
+	private final Segment segments[];
+
+
+	/** the next {@link Share#id} */
+	private final AtomicInteger nextShareId = new AtomicInteger();
+
+
+	/**
+	 * Allocates all the memory the cache will use, up front.
+	 * @param sizeBytes the cache's size, in bytes; at least one unit
+	 * @param unitSize the size of a unit, in bytes: the smallest block size of the layers that will use this
+	 * @throws OutOfMemoryError if there isn't that much direct memory to be had (see -XX:MaxDirectMemorySize)
+	 */
+	public BlockCache(long sizeBytes, int unitSize)
+	{
+		if(unitSize < 1 || unitSize > MAXIMUM_SEGMENT_BYTES)
+			throw new IllegalArgumentException(String.format("bad unit size %d", unitSize));
+		if(sizeBytes < unitSize || sizeBytes / unitSize > Integer.MAX_VALUE)
+			throw new IllegalArgumentException(String.format("bad cache size %d for %d-byte units", sizeBytes, unitSize));
+
+		int maxUnits = (int) (sizeBytes / unitSize);
+		int count = Integer.highestOneBit(Math.max(1, Math.min(MAXIMUM_SEGMENTS, maxUnits / MINIMUM_SEGMENT_SIZE)));
+		while(count < maxUnits && (long) (maxUnits / count + 1) * unitSize > MAXIMUM_SEGMENT_BYTES)
+			count <<= 1;
+
+		this.unitSize = unitSize;
+		this.maxUnits = maxUnits;
+		this.segments = new Segment[count];
+		for(int i=0; i<count; i++)
+			this.segments[i] = new Segment(maxUnits / count + (i < maxUnits % count ? 1 : 0), unitSize);
+	}
+
+
+	/**
+	 * @param blockSize the user's block size, in bytes: the unit size times a power of two
+	 * @return a new share of the cache, for one layer
+	 */
+	public Share newShare(int blockSize)
+	{
+		int units = blockSize / this.unitSize;
+		if(units < 1 || units * this.unitSize != blockSize || Integer.bitCount(units) != 1)
+			throw new IllegalArgumentException(String.format("blocks of %d bytes can't be kept in a cache of %d-byte units", blockSize, this.unitSize));
+
+		return new Share(this.nextShareId.getAndIncrement(), blockSize, Integer.numberOfTrailingZeros(units));
+	}
+
+
+	/**
+	 * @return number of bytes held, by all shares
+	 */
+	public long getBytesHeld()
+	{
+		long ret = 0;
+		for(Segment segment : this.segments)
+		{
+			segment.lock.lock();
+			try
+			{
+				ret += segment.windowCount + segment.mainCount;
+			}
+			finally
+			{
+				segment.lock.unlock();
+			}
+		}
+		return ret * this.unitSize;
+	}
+
+
+	/**
+	 * @return number of lookups, by all shares, which found their block
+	 */
+	public long getHits()
+	{
+		long ret = 0;
+		for(Segment segment : this.segments)
+		{
+			segment.lock.lock();
+			try
+			{
+				ret += segment.hits;
+			}
+			finally
+			{
+				segment.lock.unlock();
+			}
+		}
+		return ret;
+	}
+
+
+	/**
+	 * @return number of lookups, by all shares, which didn't
+	 */
+	public long getMisses()
+	{
+		long ret = 0;
+		for(Segment segment : this.segments)
+		{
+			segment.lock.lock();
+			try
+			{
+				ret += segment.misses;
+			}
+			finally
+			{
+				segment.lock.unlock();
+			}
+		}
+		return ret;
+	}
+
+
+	@Override
+	public String toString()
+	{
+		return String.format("block cache of %s in %d-byte units: %s", megabytes((long) this.maxUnits * this.unitSize), this.unitSize, describe(this.getBytesHeld(), this.getHits(), this.getMisses()));
+	}
+
+
+	/**
+	 * @param bytesHeld bytes of cache in use
+	 * @param hits lookups which found their block
+	 * @param misses lookups which didn't
+	 * @return a summary of them, as used in stats
+	 */
+	public static String describe(long bytesHeld, long hits, long misses)
+	{
+		long lookups = hits + misses;
+		return String.format("%s held, %d hits, %d misses (%.1f%% hit)", megabytes(bytesHeld), hits, misses, lookups == 0 ? 0.0 : 100.0 * hits / lookups);
+	}
+
+
+	/**
+	 * @param bytes a number of bytes
+	 * @return it in megabytes, for people
+	 */
+	private static String megabytes(long bytes)
+	{
+		return String.format("%.1fMB", bytes / (double) (1 << 20));
+	}
+
+
+	/**
+	 * @param hash a block's {@link #hash(int, long)}
+	 * @return its segment; chosen by high bits of the hash, as segments use the low bits for their indexes
+	 */
+	private Segment segmentFor(long hash)
+	{
+		return this.segments[(int) (hash >>> 40) & (this.segments.length - 1)];
+	}
+
+
+	/**
+	 * @param shareId a {@link Share#id}
+	 * @param key a block or unit number
+	 * @return their bits well mixed, so runs of adjacent blocks spread evenly over segments and index slots
+	 */
+	private static long hash(int shareId, long key)
+	{
+		long h = (key + shareId * 0xC2B2AE3D27D4EB4FL) * 0x9E3779B97F4A7C15L;
+		return h ^ (h >>> 29);
+	}
+
+
+	/**
+	 * One layer's share of the cache: looks up and caches that layer's blocks, by block number.
+	 * Also keeps stamps, which let a reader cache what it fetched only if no write came along meanwhile;
+	 * see {@link #stamp(long)} and {@link #addIfUnchanged(long, byte[], int, long)}.
+	 */
+	public final class Share
+	{
+		/** the size of this share's blocks, in bytes */
+		public final int blockSize;
+
+
+		/** tells this share's units from other shares' */
+		private final int id;
+
+
+		/** log2 of the number of units a block takes */
+		private final int unitShift;
+
+
+		/**
+		 * Bumped (for block number modulo {@link BlockCache#STAMP_COUNT}) by every {@link #add(long, byte[], int)} or {@link #remove(long)}.
+		 * Blocks sharing a stamp just make each other's readers skip caching now and then.
+		 */
+		private final AtomicLongArray stamps = new AtomicLongArray(STAMP_COUNT);
+
+
+		/** units this share holds */
+		private final AtomicLong unitsHeld = new AtomicLong();
+
+
+		/** lookups which found their block, and which didn't */
+		private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+
+		/**
+		 * @param id tells this share's units from other shares'
+		 * @param blockSize the size of this share's blocks
+		 * @param unitShift log2 of the number of units a block takes
+		 */
+		private Share(int id, int blockSize, int unitShift)
+		{
+			this.id = id;
+			this.blockSize = blockSize;
+			this.unitShift = unitShift;
+		}
+
+
+		/**
+		 * Look up a block, counting the lookup towards its frequency of use either way.
+		 * @param block block number
+		 * @param contents receives the block, if it's cached
+		 * @param arrayOffset where in {@code contents} it goes
+		 * @return true iff it was cached
+		 */
+		public boolean find(long block, byte contents[], int arrayOffset)
+		{
+			long hash = hash(this.id, block);
+			Segment segment = segmentFor(hash);
+			segment.lock.lock();
+			try
+			{
+				return segment.find(this, block, hash, contents, arrayOffset);
+			}
+			finally
+			{
+				segment.lock.unlock();
+			}
+		}
+
+
+		/**
+		 * Cache a block's new contents, replacing whatever was cached for it; for writes.
+		 * @param block block number
+		 * @param contents holds the block; copied
+		 * @param arrayOffset where in {@code contents} it is
+		 */
+		public void add(long block, byte contents[], int arrayOffset)
+		{
+			long hash = hash(this.id, block);
+			Segment segment = segmentFor(hash);
+			segment.lock.lock();
+			try
+			{
+				this.stamps.incrementAndGet(stampFor(block));
+				segment.sketch.increment(hash);
+				segment.add(this, block, hash, contents, arrayOffset);
+			}
+			finally
+			{
+				segment.lock.unlock();
+			}
+		}
+
+
+		/**
+		 * Cache a block's contents as fetched from storage, unless it's been added or removed since the stamp was taken;
+		 * then what was fetched may be out of date.
+		 * @param block block number
+		 * @param contents holds the block; copied
+		 * @param arrayOffset where in {@code contents} it is
+		 * @param stamp the block's {@link #stamp(long)}, from before it was looked up
+		 * @return true iff it was added (it may be evicted again right away)
+		 */
+		public boolean addIfUnchanged(long block, byte contents[], int arrayOffset, long stamp)
+		{
+			long hash = hash(this.id, block);
+			Segment segment = segmentFor(hash);
+			segment.lock.lock();
+			try
+			{
+				// adds and removes bump the stamp under this lock, so one can't get in between the check and the add
+				if(this.stamps.get(stampFor(block)) != stamp)
+					return false;
+
+				segment.add(this, block, hash, contents, arrayOffset);
+				return true;
+			}
+			finally
+			{
+				segment.lock.unlock();
+			}
+		}
+
+
+		/**
+		 * remove from cache
+		 * @param block block number
+		 */
+		public void remove(long block)
+		{
+			long hash = hash(this.id, block);
+			Segment segment = segmentFor(hash);
+			segment.lock.lock();
+			try
+			{
+				this.stamps.incrementAndGet(stampFor(block));
+				segment.remove(this, block);
+			}
+			finally
+			{
+				segment.lock.unlock();
+			}
+		}
+
+
+		/**
+		 * @param block block number
+		 * @return a value which changes whenever the block is added or removed; see {@link #addIfUnchanged(long, byte[], int, long)}
+		 */
+		public long stamp(long block)
+		{
+			return this.stamps.get(stampFor(block));
+		}
+
+
+		/**
+		 * Drop all of this share's blocks, making room for others'; for when its layer stops.
+		 * Blocks added afterwards are cached as usual.
+		 */
+		public void release()
+		{
+			for(Segment segment : segments)
+			{
+				segment.lock.lock();
+				try
+				{
+					segment.release(this);
+				}
+				finally
+				{
+					segment.lock.unlock();
+				}
+			}
+		}
+
+
+		/**
+		 * @return number of bytes of the cache this share holds
+		 */
+		public long getBytesHeld()
+		{
+			return this.unitsHeld.get() * unitSize;
+		}
+
+
+		/**
+		 * @return number of {@link #find(long, byte[], int)} calls which found their block
+		 */
+		public long getHits()
+		{
+			return this.hits.get();
+		}
+
+
+		/**
+		 * @return number of {@link #find(long, byte[], int)} calls which didn't
+		 */
+		public long getMisses()
+		{
+			return this.misses.get();
+		}
+
+
+		@Override
+		public String toString()
+		{
+			return describe(this.getBytesHeld(), this.getHits(), this.getMisses());
+		}
+
+
+		/**
+		 * @param block block number
+		 * @return its index into {@link #stamps}
+		 */
+		private int stampFor(long block)
+		{
+			return (int) (block & (STAMP_COUNT - 1));
+		}
+	}
+
+
+	/**
+	 * One independently locked part of the cache.  Everything here is done under {@link #lock}.
+	 * A block's units are all in the same segment, so a block is found, added or removed whole.
+	 */
+	private static final class Segment
+	{
+		/** slot states */
+		private static final byte FREE = 0, WINDOW = 1, MAIN = 2;
+
+
+		/** guards the rest */
+		final ReentrantLock lock = new ReentrantLock();
+
+
+		/** estimates how often blocks have been used lately */
+		final FrequencySketch sketch;
+
+
+		/** number of slots */
+		private final int capacity;
+
+
+		/** slots for the window, usually: about 1% of them, if there are enough to spare one; or a block's worth, if more */
+		private final int windowCapacity;
+
+
+		/** each slot's unit number: block number times units per block, plus which unit of the block */
+		private final long keys[];
+
+
+		/** each slot's share; <code>null</code> if free */
+		private final Share owners[];
+
+
+		/** each slot's contents: slot n is the n'th unit-sized piece; off the heap */
+		private final ByteBuffer slab;
+
+
+		/** size of each slot */
+		private final int unitSize;
+
+
+		/** each slot's state: {@link #FREE}, {@link #WINDOW} or {@link #MAIN} */
+		private final byte states[];
+
+
+		/** each slot's CLOCK bit: found since the hand last passed it */
+		private final boolean referenced[];
+
+
+		/** free slots, as a stack */
+		private final int freeSlots[];
+		private int freeCount;
+
+
+		/** the window's slots, oldest first, as a ring big enough for any window */
+		private final int window[];
+		private int windowHead, windowCount;
+
+
+		/** number of slots in the main region, and where the CLOCK hand points */
+		private int mainCount, hand;
+
+
+		/** open-addressing index, linearly probed: units' share ids and unit numbers, and their slot + 1 (0 for an empty entry) */
+		private final int indexShares[];
+		private final long indexKeys[];
+		private final int indexSlots[];
+
+
+		/** lookups which found their block, and which didn't */
+		long hits, misses;
+
+
+		/**
+		 * @param capacity number of units to hold; at least 1
+		 * @param unitSize size of each unit
+		 */
+		Segment(int capacity, int unitSize)
+		{
+			this.capacity = capacity;
+			this.windowCapacity = capacity > 1 ? Math.max(1, capacity / 100) : 0;
+			this.keys = new long[capacity];
+			this.owners = new Share[capacity];
+			this.slab = ByteBuffer.allocateDirect(capacity * unitSize);
+			this.unitSize = unitSize;
+			this.states = new byte[capacity];
+			this.referenced = new boolean[capacity];
+			this.freeSlots = new int[capacity];
+			for(int i=0; i<capacity; i++)
+				this.freeSlots[this.freeCount++] = capacity - 1 - i;
+			this.window = new int[capacity];
+
+			int indexSize = Integer.highestOneBit(capacity) << 2;  // no more than half full
+			this.indexShares = new int[indexSize];
+			this.indexKeys = new long[indexSize];
+			this.indexSlots = new int[indexSize];
+			this.sketch = new FrequencySketch(capacity);
+		}
+
+
+		/**
+		 * @param share the block's share
+		 * @param block block number
+		 * @param hash its hash
+		 * @param contents receives the block, if it's all here
+		 * @param arrayOffset where in {@code contents} it goes
+		 * @return true iff it was all here
+		 */
+		boolean find(Share share, long block, long hash, byte contents[], int arrayOffset)
+		{
+			this.sketch.increment(hash);
+			int units = 1 << share.unitShift;
+			long firstUnit = block << share.unitShift;
+			for(int i=0; i<units; i++)
+			{
+				if(this.slotOf(share, firstUnit + i) < 0)
+				{
+					this.misses++;
+					share.misses.incrementAndGet();
+					return false;
+				}
+			}
+
+			for(int i=0; i<units; i++)
+			{
+				int slot = this.slotOf(share, firstUnit + i);
+				this.referenced[slot] = true;
+				this.slab.position(slot * this.unitSize);
+				this.slab.get(contents, arrayOffset + (i * this.unitSize), this.unitSize);
+			}
+			this.hits++;
+			share.hits.incrementAndGet();
+			return true;
+		}
+
+
+		/**
+		 * Replace a block's contents if it's here, or else bring it in through the window.
+		 * @param share the block's share
+		 * @param block block number
+		 * @param hash its hash
+		 * @param contents holds the block
+		 * @param arrayOffset where in {@code contents} it is
+		 */
+		void add(Share share, long block, long hash, byte contents[], int arrayOffset)
+		{
+			int units = 1 << share.unitShift;
+			if(units > this.capacity)
+				return;
+
+			// the window must be able to take the whole block, or its first units could be pushed out by its last
+			int windowLimit = Math.min(this.capacity - 1, Math.max(this.windowCapacity, units));
+			long firstUnit = block << share.unitShift;
+			for(int i=0; i<units; i++)
+				this.addUnit(share, firstUnit + i, hash, contents, arrayOffset + (i * this.unitSize), windowLimit);
+		}
+
+
+		/**
+		 * @param share the unit's share
+		 * @param key unit number
+		 * @param blockHash the hash of its block
+		 * @param contents holds the unit
+		 * @param arrayOffset where in {@code contents} it is
+		 * @param windowLimit how many units the window may hold
+		 */
+		private void addUnit(Share share, long key, long blockHash, byte contents[], int arrayOffset, int windowLimit)
+		{
+			int slot = this.slotOf(share, key);
+			if(slot >= 0)
+			{
+				this.store(slot, contents, arrayOffset);
+				return;
+			}
+
+			if(windowLimit == 0)
+			{
+				// no window; the newcomer contends for the main region itself
+				if(this.mainCount == this.capacity)
+				{
+					int victim = this.victim();
+					if(this.sketch.frequency(blockHash) <= this.frequencyOf(victim))
+						return;
+					this.evict(victim);
+				}
+				slot = this.take(share, key, contents, arrayOffset);
+				this.states[slot] = MAIN;
+				this.mainCount++;
+				return;
+			}
+
+			// a smaller block's window may have left the main region bigger than this one allows, and no slot free
+			while(this.windowCount >= windowLimit || this.freeCount == 0)
+				this.demote(this.capacity - windowLimit);
+
+			slot = this.take(share, key, contents, arrayOffset);
+			this.states[slot] = WINDOW;
+			this.window[(this.windowHead + this.windowCount) % this.capacity] = slot;
+			this.windowCount++;
+		}
+
+
+		/**
+		 * Move the window's oldest unit out of it: into the main region if there's room,
+		 * or it's been used more lately than the victims it would displace; otherwise out of the cache.
+		 * @param mainLimit how many units the main region may hold; at least 1
+		 */
+		private void demote(int mainLimit)
+		{
+			int candidate = this.window[this.windowHead];
+			this.windowHead = (this.windowHead + 1) % this.capacity;
+			this.windowCount--;
+
+			while(this.mainCount >= mainLimit)
+			{
+				int victim = this.victim();
+				if(this.frequencyOf(candidate) <= this.frequencyOf(victim))
+				{
+					this.evict(candidate);
+					return;
+				}
+				this.evict(victim);
+			}
+
+			this.states[candidate] = MAIN;
+			this.mainCount++;
+		}
+
+
+		/**
+		 * @param share the block's share
+		 * @param block block number
+		 */
+		void remove(Share share, long block)
+		{
+			int units = 1 << share.unitShift;
+			long firstUnit = block << share.unitShift;
+			for(int i=0; i<units; i++)
+			{
+				int slot = this.slotOf(share, firstUnit + i);
+				if(slot >= 0)
+					this.drop(slot);
+			}
+		}
+
+
+		/**
+		 * drop every unit of a share
+		 * @param share the share
+		 */
+		void release(Share share)
+		{
+			for(int slot=0; slot<this.capacity; slot++)
+			{
+				if(this.owners[slot] == share)
+					this.drop(slot);
+			}
+		}
+
+
+		/**
+		 * take a slot out of the window, if it's there, and evict it
+		 * @param slot the slot
+		 */
+		private void drop(int slot)
+		{
+			if(this.states[slot] == WINDOW)
+			{
+				// close the gap in the window, keeping its order
+				int i = 0;
+				while(this.window[(this.windowHead + i) % this.capacity] != slot)
+					i++;
+				for(; i<this.windowCount-1; i++)
+					this.window[(this.windowHead + i) % this.capacity] = this.window[(this.windowHead + i + 1) % this.capacity];
+				this.windowCount--;
+			}
+			this.evict(slot);
+		}
+
+
+		/**
+		 * @return the main region's next victim, by CLOCK; the region mustn't be empty
+		 */
+		private int victim()
+		{
+			while(true)
+			{
+				int slot = this.hand;
+				this.hand = (this.hand + 1) % this.capacity;
+				if(this.states[slot] != MAIN)
+					continue;
+				if(! this.referenced[slot])
+					return slot;
+				this.referenced[slot] = false;
+			}
+		}
+
+
+		/**
+		 * @param slot an occupied slot
+		 * @return how often its block has been used lately
+		 */
+		private int frequencyOf(int slot)
+		{
+			Share share = this.owners[slot];
+			return this.sketch.frequency(hash(share.id, this.keys[slot] >>> share.unitShift));
+		}
+
+
+		/**
+		 * fill a free slot, and index it; there must be one
+		 * @return the slot
+		 */
+		private int take(Share share, long key, byte contents[], int arrayOffset)
+		{
+			int slot = this.freeSlots[--this.freeCount];
+			this.keys[slot] = key;
+			this.owners[slot] = share;
+			this.store(slot, contents, arrayOffset);
+			this.referenced[slot] = false;
+			share.unitsHeld.incrementAndGet();
+
+			int mask = this.indexSlots.length - 1;
+			int i = (int) hash(share.id, key) & mask;
+			while(this.indexSlots[i] != 0)
+				i = (i + 1) & mask;
+			this.indexShares[i] = share.id;
+			this.indexKeys[i] = key;
+			this.indexSlots[i] = slot + 1;
+			return slot;
+		}
+
+
+		/**
+		 * copy a unit into a slot
+		 */
+		private void store(int slot, byte contents[], int arrayOffset)
+		{
+			this.slab.position(slot * this.unitSize);
+			this.slab.put(contents, arrayOffset, this.unitSize);
+		}
+
+
+		/**
+		 * free a slot, taking it out of the index; it must already be out of the window
+		 * @param slot the slot
+		 */
+		private void evict(int slot)
+		{
+			int mask = this.indexSlots.length - 1;
+			int gap = this.indexOf(this.owners[slot], this.keys[slot]);
+
+			// shift later entries of the probe sequence back into the gap, so lookups needn't step over deleted entries
+			for(int i=(gap+1)&mask; this.indexSlots[i] != 0; i=(i+1)&mask)
+			{
+				int home = (int) hash(this.indexShares[i], this.indexKeys[i]) & mask;
+				if(((i - home) & mask) >= ((i - gap) & mask))
+				{
+					this.indexShares[gap] = this.indexShares[i];
+					this.indexKeys[gap] = this.indexKeys[i];
+					this.indexSlots[gap] = this.indexSlots[i];
+					gap = i;
+				}
+			}
+			this.indexSlots[gap] = 0;
+
+			if(this.states[slot] == MAIN)
+				this.mainCount--;
+			this.states[slot] = FREE;
+			this.owners[slot].unitsHeld.decrementAndGet();
+			this.owners[slot] = null;
+			this.freeSlots[this.freeCount++] = slot;
+		}
+
+
+		/**
+		 * @return the unit's slot, or -1 if it's not here
+		 */
+		private int slotOf(Share share, long key)
+		{
+			int i = this.indexOf(share, key);
+			return i < 0 ? -1 : this.indexSlots[i] - 1;
+		}
+
+
+		/**
+		 * @return the unit's entry in the index, or -1 if it's not here
+		 */
+		private int indexOf(Share share, long key)
+		{
+			int mask = this.indexSlots.length - 1;
+			for(int i=(int)hash(share.id,key)&mask; this.indexSlots[i] != 0; i=(i+1)&mask)
+			{
+				if(this.indexKeys[i] == key && this.indexShares[i] == share.id)
+					return i;
+			}
+			return -1;
+		}
+	}
+
+
+	/**
+	 * A count-min sketch of 4-bit counters, which estimates how often each block was looked up lately.
+	 * Counters are halved every so often, so old popularity fades.
+	 */
+	private static final class FrequencySketch
+	{
+		/** sixteen 4-bit counters per long */
+		private final long table[];
+
+
+		/** increments between halvings: ten per unit the segment holds */
+		private final int sampleSize;
+
+
+		/** increments since the last halving */
+		private int additions;
+
+
+		/**
+		 * @param capacity number of units held by the segment
+		 */
+		FrequencySketch(int capacity)
+		{
+			this.table = new long[Math.max(8, Integer.highestOneBit(capacity) << 1)];
+			this.sampleSize = 10 * capacity;
+		}
+
+
+		/**
+		 * count one use of a block
+		 * @param hash its hash
+		 */
+		void increment(long hash)
+		{
+			boolean added = false;
+			for(int row=0; row<4; row++)
+			{
+				int i = this.indexOf(hash, row);
+				int shift = this.shiftOf(hash, row);
+				if(((this.table[i] >>> shift) & 15) != 15)
+				{
+					this.table[i] += 1L << shift;
+					added = true;
+				}
+			}
+
+			if(added && ++this.additions == this.sampleSize)
+			{
+				for(int i=0; i<this.table.length; i++)
+					this.table[i] = (this.table[i] >>> 1) & 0x7777777777777777L;
+				this.additions /= 2;
+			}
+		}
+
+
+		/**
+		 * @param hash a block's hash
+		 * @return estimated number of its uses lately, up to 15
+		 */
+		int frequency(long hash)
+		{
+			int ret = 15;
+			for(int row=0; row<4; row++)
+				ret = Math.min(ret, (int) (this.table[this.indexOf(hash, row)] >>> this.shiftOf(hash, row)) & 15);
+			return ret;
+		}
+
+
+		/** @return which long holds the block's counter in a row */
+		private int indexOf(long hash, int row)
+		{
+			long h = (hash + ROW_SEEDS[row]) * ROW_SEEDS[row];
+			return (int) (h ^ (h >>> 32)) & (this.table.length - 1);
+		}
+
+
+		/** @return where in that long the counter is */
+		private int shiftOf(long hash, int row)
+		{
+			return (int) ((hash >>> (row << 3)) & 15) << 2;
+		}
+
+
+		/** odd multipliers, one per row */
+		private static final long ROW_SEEDS[] = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+	}
+}
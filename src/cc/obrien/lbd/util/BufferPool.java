@@ -0,0 +1,114 @@
+/*
+ * (C) 2012 Steve O'Brien.  BSD licensed.
+ * see http://www.opensource.org/licenses/BSD-2-Clause
+ * and see LICENSE in the root of this project.
+ */
+
+
+package cc.obrien.lbd.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Recycles byte arrays for request and reply payloads, so steady traffic doesn't make a payload's worth of garbage per request.
+ * Arrays come in size classes (powers of two from {@link #MIN_SIZE} to {@link #MAX_SIZE}), so a leased array is usually
+ * longer than asked for; users must keep track of the length they asked for rather than use the array's length.
+ * Lengths above {@link #MAX_SIZE} are allocated afresh and never kept.
+ * Free arrays of all size classes together are kept up to one budget; arrays released beyond it are left to the garbage collector.
+ * Thread-safe and lock-free: payloads are typically leased on one thread and released on another.
+ * @author sobrien
+ */
+public final class BufferPool
+{
+	/** smallest size class; one block */
+	public static final int MIN_SIZE = 512;
+
+
+	/** largest size class */
+	public static final int MAX_SIZE = 32 << 20;
+
+
+	/** number of size classes */
+	private static final int CLASS_COUNT = Integer.numberOfTrailingZeros(MAX_SIZE / MIN_SIZE) + 1;
+
+
+	/** free arrays, by size class */
+	private final List<ConcurrentLinkedQueue<byte[]>> free = new ArrayList<ConcurrentLinkedQueue<byte[]>> (CLASS_COUNT);
+
+
+	/** bytes of all the free arrays; kept separately because {@link ConcurrentLinkedQueue#size()} is slow */
+	private final AtomicLong freeBytes = new AtomicLong();
+
+
+	/** most bytes of free arrays kept, over all size classes */
+	private final long retainedBytes;
+
+
+	/**
+	 * @param retainedBytes most bytes worth of free arrays to keep, over all size classes
+	 */
+	public BufferPool(long retainedBytes)
+	{
+		this.retainedBytes = retainedBytes;
+		for(int i=0; i<CLASS_COUNT; i++)
+			this.free.add(new ConcurrentLinkedQueue<byte[]> ());
+	}
+
+
+	/**
+	 * @param length number of bytes
+	 * @return index of the smallest size class holding that many, or -1 if too big for any
+	 */
+	private static int sizeClass(int length)
+	{
+		if(length > MAX_SIZE)
+			return -1;
+		if(length <= MIN_SIZE)
+			return 0;
+		return 32 - Integer.numberOfLeadingZeros((length - 1) / MIN_SIZE);
+	}
+
+
+	/**
+	 * @param length number of bytes needed
+	 * @return an array at least that long; contents are undefined.  Give it back with {@link #release(byte[])} when done.
+	 */
+	public byte[] lease(int length)
+	{
+		int sizeClass = sizeClass(length);
+		if(sizeClass < 0)
+			return new byte[length];
+
+		byte ret[] = this.free.get(sizeClass).poll();
+		if(ret == null)
+			return new byte[MIN_SIZE << sizeClass];
+
+		this.freeBytes.addAndGet(-ret.length);
+		return ret;
+	}
+
+
+	/**
+	 * return an array, so it can be leased again.  The caller must not use it afterwards.
+	 * @param array an array from {@link #lease(int)}; arrays of other lengths are just dropped
+	 */
+	public void release(byte array[])
+	{
+		int sizeClass = sizeClass(array.length);
+		if(sizeClass < 0 || array.length != (MIN_SIZE << sizeClass))
+			return;
+
+		// keep no more than the budget
+		if(this.freeBytes.addAndGet(array.length) > this.retainedBytes)
+		{
+			this.freeBytes.addAndGet(-array.length);
+			return;
+		}
+
+		this.free.get(sizeClass).add(array);
+	}
+}
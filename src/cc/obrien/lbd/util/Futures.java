@@ -0,0 +1,105 @@
+/*
+ * (C) 2012 Steve O'Brien.  BSD licensed.
+ * see http://www.opensource.org/licenses/BSD-2-Clause
+ * and see LICENSE in the root of this project.
+ */
+
+
+package cc.obrien.lbd.util;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+
+/**
+ * Helpers for the asynchronous I/O calls, which return {@link CompletableFuture}s:
+ * going between them and the synchronous calls, which throw {@link IOException}s.
+ * @author sobrien
+ */
+public final class Futures
+{
+	/**
+	 * @param cause what went wrong
+	 * @return a future which has failed with it
+	 */
+	public static <T> CompletableFuture<T> failed(Throwable cause)
+	{
+		CompletableFuture<T> ret = new CompletableFuture<T> ();
+		ret.completeExceptionally(cause);
+		return ret;
+	}
+
+
+	/**
+	 * @param futures some futures
+	 * @return a future completed once all of them are, successfully or not
+	 */
+	public static CompletableFuture<Void> all(List<? extends CompletableFuture<?>> futures)
+	{
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]));
+	}
+
+
+	/**
+	 * Tells whether work that depends on some futures can go ahead right away, in the caller, without chaining stages on them;
+	 * as it usually can when they come from synchronous layers, whose futures are complete before they're returned.
+	 * @param futures some futures
+	 * @return true iff all of them have completed successfully
+	 */
+	public static boolean succeeded(List<? extends CompletableFuture<?>> futures)
+	{
+		for(CompletableFuture<?> future : futures)
+		{
+			if(! future.isDone() || future.isCompletedExceptionally())
+				return false;
+		}
+		return true;
+	}
+
+
+	/**
+	 * Wait for a future, as a synchronous call would, throwing whatever it failed with.
+	 * @param future a future
+	 * @return its value
+	 * @throws IOException if it failed with one
+	 * @throws RuntimeException if it failed with anything else (wrapped, if it's not a RuntimeException itself), or the wait was interrupted
+	 */
+	public static <T> T await(CompletableFuture<T> future) throws IOException
+	{
+		try
+		{
+			return future.get();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		catch(ExecutionException e)
+		{
+			throw rethrow(e.getCause());
+		}
+	}
+
+
+	/**
+	 * @param cause what a future failed with
+	 * @return a RuntimeException to throw, if it isn't an IOException
+	 * @throws IOException if it is one
+	 */
+	private static RuntimeException rethrow(Throwable cause) throws IOException
+	{
+		while(cause instanceof CompletionException && cause.getCause() != null)
+			cause = cause.getCause();
+		if(cause instanceof IOException)
+			throw (IOException) cause;
+		if(cause instanceof Error)
+			throw (Error) cause;
+		if(cause instanceof RuntimeException)
+			return (RuntimeException) cause;
+		return new RuntimeException(cause);
+	}
+}
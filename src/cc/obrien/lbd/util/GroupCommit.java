@@ -0,0 +1,112 @@
+/*
+ * (C) 2012 Steve O'Brien.  BSD licensed.
+ * see http://www.opensource.org/licenses/BSD-2-Clause
+ * and see LICENSE in the root of this project.
+ */
+
+
+package cc.obrien.lbd.util;
+
+import java.io.IOException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Coalesces concurrent requests for an expensive sync (like an fsync) into as few syncs as possible.
+ * Each caller of {@link #sync()} waits for a sync which started after it called; whoever finds no sync running
+ * does one on behalf of everyone waiting so far, while later callers queue up for the next one.
+ * So however many clients flush at once, there's at most one sync running and one more pending.
+ * Uses a lock rather than a monitor, so virtual threads waiting here don't pin their carrier thread.
+ * @author sobrien
+ */
+public abstract class GroupCommit
+{
+	/**
+	 * one round of syncing; everyone who requested a sync before it started shares its outcome
+	 * @author sobrien
+	 */
+	private static final class Generation
+	{
+		/** the sync is over */
+		boolean done = false;
+
+		/** why it failed (whatever the sync threw); null if it didn't */
+		Throwable failure = null;
+	}
+
+
+	/** guards everything here */
+	private final ReentrantLock lock = new ReentrantLock();
+
+
+	/** signalled whenever a generation is done */
+	private final Condition finished = lock.newCondition();
+
+
+	/** the generation that new callers join; not started yet */
+	private Generation next = new Generation();
+
+
+	/** whether some caller is syncing now */
+	private boolean running = false;
+
+
+	/**
+	 * Do the actual sync.  Called by one thread at a time.
+	 * @throws IOException if the sync failed
+	 */
+	abstract protected void syncNow() throws IOException;
+
+
+	/**
+	 * return once a sync that started after this call has completed, doing the sync on this thread if none is running
+	 * @throws IOException if that sync failed
+	 */
+	public void sync() throws IOException
+	{
+		lock.lock();
+		try
+		{
+			Generation mine = this.next;
+			while(! mine.done)
+			{
+				if(this.running)
+				{
+					this.finished.awaitUninterruptibly();
+					continue;
+				}
+
+				// nobody's syncing, so mine is the only generation not done; lead it
+				this.running = true;
+				this.next = new Generation();
+				Throwable failure = null;
+				lock.unlock();
+				try
+				{
+					this.syncNow();
+				}
+				catch(Throwable e)
+				{
+					// not just I/O errors: however it failed, nobody waiting on it may be told it synced
+					failure = e;
+				}
+				finally
+				{
+					lock.lock();
+					mine.failure = failure;
+					mine.done = true;
+					this.running = false;
+					this.finished.signalAll();
+				}
+			}
+
+			if(mine.failure != null)
+				throw new IOException("sync failed", mine.failure);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+}
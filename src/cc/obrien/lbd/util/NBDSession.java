@@ -12,16 +12,60 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import cc.obrien.lbd.util.NBDUtil.Request;
-import cc.obrien.lbd.util.NBDUtil.Response;
 
 
 /**
- * connection to a remove NBD server
+ * connection to a remove NBD server.
+ * Requests are pipelined: any number may be outstanding at once, from any threads, and the server may answer them in any order.
+ * A receiver thread of the session's own reads the replies, and completes each request's future (see {@link #readBytesAsync(long, int, int, byte[])});
+ * the synchronous calls just wait on those.
  * @author sobrien
  */
 public final class NBDSession
 {
+	/**
+	 * a request sent, waiting for its reply
+	 * @author sobrien
+	 */
+	private static final class Exchange
+	{
+		/** completes with whether the server reported success */
+		final CompletableFuture<Boolean> result = new CompletableFuture<Boolean> ();
+		
+		
+		/** receives a read's data; null for other requests */
+		final byte bytes[];
+		
+		
+		/** where in {@link #bytes} the data goes */
+		final int arrayOffset;
+		
+		
+		/** number of bytes of data to receive */
+		final int byteCount;
+		
+		
+		/**
+		 * @param bytes receives a read's data; null for other requests
+		 * @param arrayOffset where in {@code bytes} the data goes
+		 * @param byteCount number of bytes of data to receive
+		 */
+		Exchange(byte bytes[], int arrayOffset, int byteCount)
+		{
+			this.bytes = bytes;
+			this.arrayOffset = arrayOffset;
+			this.byteCount = byteCount;
+		}
+	}
+	
+	
 	/** remote host */
 	public final InetAddress host;
 	
@@ -30,6 +74,14 @@ public final class NBDSession
 	public final int port;
 	
 	
+	/** name of the export on the remote server; null for its default export */
+	public final String exportName;
+	
+	
+	/** transmission flags from the most recent (re-)negotiation; tells which optional commands the server understands */
+	private volatile int transmissionFlags;
+	
+	
 	/** TCP connection */
 	private volatile Socket socket;
 	
@@ -42,33 +94,65 @@ public final class NBDSession
 	private volatile DataOutputStream output;
 
 	
-	/** size of device as reported by server */
-	private volatile Long blockCount = null;
+	/** size of device as reported by server, in bytes */
+	private volatile Long byteCount = null;
+	
+	
+	/** smallest request alignment the server asked for in the most recent (re-)negotiation; 1 if it didn't say */
+	private volatile int minimumBlockSize = 1;
 	
 	
 	/** writable NBD device desired */
 	private volatile boolean writableExpected;
 	
 	
+	/**
+	 * held while sending each request to the server, and during negotiation.
+	 * A lock rather than this object's monitor, so that virtual threads waiting on the network don't pin their carrier thread.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+	
+	
+	/** requests sent and not yet answered, by handle */
+	private final Map<Long, Exchange> pending = new ConcurrentHashMap<Long, Exchange> ();
+	
+	
+	/** handle for the next request; each is used once, so replies can't be mistaken for one another's */
+	private final AtomicLong nextHandle = new AtomicLong();
+	
+	
+	/** why the connection can't be used any more; null while it can */
+	private volatile IOException broken = null;
+	
+	
 	/**
 	 * @param host NBD host
 	 * @param port NBD TCP port
+	 * @param exportName name of the export on the remote server; null for its default export (ignored by old-style servers)
 	 * @param writableExpected 
 	 * @throws IOException if error occurred while trying to establish connection
 	 * @throws IllegalArgumentException if writableExpected and not writable
 	 */
-	public NBDSession(InetAddress host, int port, boolean writableExpected) throws IOException
+	public NBDSession(InetAddress host, int port, String exportName, boolean writableExpected) throws IOException
 	{
 		this.host = host;
 		this.port = port;
+		this.exportName = exportName;
 		this.writableExpected = writableExpected;
 		
 		this.negotiate();
+		
+		Threads.daemonFactory("nbd-session-").newThread(new Runnable() {
+			@Override
+			public void run() {
+				receive();
+			}
+		}).start();
 	}
 	
 	
 	/**
-	 * clean up for shut down
+	 * clean up for shut down; requests still outstanding fail
 	 * @throws IOException 
 	 */
 	public void stop() throws IOException
@@ -83,107 +167,242 @@ public final class NBDSession
 	 * @throws IOException
 	 * @throws IllegalArgumentException if writableExpected and device is not writable
 	 */
-	synchronized protected void negotiate() throws IOException
+	protected void negotiate() throws IOException
 	{
-		if(this.input != null)
-			try { this.input.close(); }  catch(IOException f)  { }
+		lock.lock();
+		try
+		{
+			if(this.input != null)
+				try { this.input.close(); }  catch(IOException f)  { }
 		
-		if(this.output != null)
-			try { this.output.close(); }  catch(IOException f)  { }
+			if(this.output != null)
+				try { this.output.close(); }  catch(IOException f)  { }
 		
-		if(this.socket != null)
-			try { this.socket.close(); }  catch(IOException f)  { }
+			if(this.socket != null)
+				try { this.socket.close(); }  catch(IOException f)  { }
 		
-		this.socket = new Socket(host, port);
-		this.socket.setTcpNoDelay(true);
-		this.socket.setKeepAlive(true);
+			this.socket = new Socket(host, port);
+			this.socket.setTcpNoDelay(true);
+			this.socket.setKeepAlive(true);
 
-		this.input = new DataInputStream(socket.getInputStream());
-		this.output = new DataOutputStream(socket.getOutputStream());
+			this.input = new DataInputStream(socket.getInputStream());
+			this.output = new DataOutputStream(socket.getOutputStream());
 
-		long thisBlockCount = NBDUtil.readHello(input, writableExpected);
-		if(this.blockCount != null)
-		{
-			if((long)this.blockCount != thisBlockCount)
-				throw new RuntimeException(String.format("device size changed during renegotiation!  Was %d, now %d", this.blockCount, thisBlockCount));
+			NBDUtil.Hello hello = NBDUtil.readHello(input, output, exportName, writableExpected);
+			long thisByteCount = hello.byteCount;
+			this.transmissionFlags = hello.flags;
+			this.minimumBlockSize = hello.minimumBlockSize;
+			if(this.byteCount != null)
+			{
+				if((long)this.byteCount != thisByteCount)
+					throw new RuntimeException(String.format("device size changed during renegotiation!  Was %d, now %d", this.byteCount, thisByteCount));
+			}
+			else
+			{
+				this.byteCount = thisByteCount;
+			}
 		}
-		else
+		finally
 		{
-			this.blockCount = thisBlockCount;
+			lock.unlock();
 		}
 	}
 	
 	
+
 	/**
-	 * @return connection's data input stream
+	 * @return size of the remote NBD device in bytes, as reported by the most recent (re-)negotiation
 	 */
-	public DataInputStream getDataIn()
+	public long getByteCount()
 	{
-		return this.input;
+		return this.byteCount;
 	}
 	
 	
 	/**
-	 * @return connection's data output stream
+	 * @return smallest request alignment the remote NBD server asked for, in the most recent (re-)negotiation; 1 if it didn't say
 	 */
-	public DataOutputStream getDataOut()
+	public int getMinimumBlockSize()
 	{
-		return this.output;
+		return this.minimumBlockSize;
 	}
 	
-
+	
 	/**
-	 * @return number of blocks in remote NBD device, as reported by the most recent (re-)negotiation
+	 * @param offset position to write to
+	 * @param byteCount number of bytes to write
+	 * @param arrayOffset starting index in this array
+	 * @param bytes an array of at least (arrayOffset + byteCount) bytes
+	 * @return successful
+	 * @throws IOException if network I/O problem
 	 */
-	public long getBlockCount()
+	public boolean writeBytes(long offset, int byteCount, int arrayOffset, byte bytes[]) throws IOException
 	{
-		return this.blockCount;
+		long handle = this.nextHandle.getAndIncrement();
+		Request request = new Request(Request.Type.WRITE, handle, offset, byteCount, Arrays.copyOfRange(bytes, arrayOffset, arrayOffset + byteCount));
+		return Futures.await(this.send(request, new Exchange(null, 0, 0)));
 	}
 	
 	
 	/**
-	 * note: synchronized for threadsafety; avoid trouble with command/response packets to/from the server
-	 * @param offset position to write to
+	 * @param offset position to read from
 	 * @param byteCount number of bytes to write
 	 * @param arrayOffset starting index in this array
-	 * @param bytes an array of at least (arrayOffset + (512 * count)) bytes
+	 * @param bytes an array of at least (arrayOffset + byteCount) bytes
 	 * @return successful
 	 * @throws IOException if network I/O problem
 	 */
-	synchronized public boolean writeBytes(long offset, int byteCount, int arrayOffset, byte bytes[]) throws IOException
+	public boolean readBytes(long offset, int byteCount, int arrayOffset, byte bytes[]) throws IOException
 	{
-		long handle = (long) ((Long.MAX_VALUE) * Math.random());
-		Request request;
-		request = new Request(Request.Type.WRITE, handle, offset, byteCount, bytes);
-
-		Response response;
-		request.write(output);
-		response = Response.from(this, handle, byteCount);
-
-		return response.error == 0;
+		return Futures.await(this.readBytesAsync(offset, byteCount, arrayOffset, bytes));
 	}
 	
 	
 	/**
-	 * note: synchronized for threadsafety; avoid trouble with command/response packets to/from the server
+	 * Send a read, without waiting for the reply; as many as wanted can be outstanding at once.
+	 * {@code bytes} mustn't be touched until the future completes.
 	 * @param offset position to read from
-	 * @param byteCount number of bytes to write
-	 * @param arrayOffset starting index in this array
-	 * @param bytes an array of at least (arrayOffset + (512 * count)) bytes
+	 * @param byteCount number of bytes to read
+	 * @param arrayOffset where in {@code bytes} the data goes
+	 * @param bytes an array of at least (arrayOffset + byteCount) bytes
+	 * @return completes, on the session's receiver thread, with whether the server read the data; fails with an IOException if the connection does
+	 */
+	public CompletableFuture<Boolean> readBytesAsync(long offset, int byteCount, int arrayOffset, byte bytes[])
+	{
+		long handle = this.nextHandle.getAndIncrement();
+		Request request = new Request(Request.Type.READ, handle, offset, byteCount, null);
+		return this.send(request, new Exchange(bytes, arrayOffset, byteCount));
+	}
+	
+	
+	/**
+	 * Ask the server to make all writes completed so far durable, if it understands flushes;
+	 * if it doesn't, there's nothing we can do about it, and this just succeeds.
 	 * @return successful
 	 * @throws IOException if network I/O problem
 	 */
-	synchronized public boolean readBytes(long offset, int byteCount, int arrayOffset, byte bytes[]) throws IOException
+	public boolean flush() throws IOException
 	{
-		long handle = (long) ((Long.MAX_VALUE) * Math.random());
-
-		Request request = new Request(Request.Type.READ, handle, offset, byteCount, null);
-		Response response;
+		if((this.transmissionFlags & NBDUtil.FLAG_SEND_FLUSH) == 0)
+			return true;
 		
-		request.write(output);
-		response = Response.from(this, handle, byteCount);
-		System.arraycopy(response.payload, 0, bytes, arrayOffset, byteCount);
+		long handle = this.nextHandle.getAndIncrement();
+		Request request = new Request(Request.Type.FLUSH, handle, 0, 0, null);
+		return Futures.await(this.send(request, new Exchange(null, 0, 0)));
+	}
+	
+	
+	/**
+	 * Ask the server to zero a range without sending it any zeroes, if it understands that.
+	 * @param offset position to zero from
+	 * @param byteCount number of bytes to zero
+	 * @return successful; false if the server failed, or doesn't understand this (then nothing was changed)
+	 * @throws IOException if network I/O problem
+	 */
+	public boolean writeZeroes(long offset, int byteCount) throws IOException
+	{
+		if((this.transmissionFlags & NBDUtil.FLAG_SEND_WRITE_ZEROES) == 0)
+			return false;
 		
-		return response.error == 0;
+		long handle = this.nextHandle.getAndIncrement();
+		Request request = new Request(Request.Type.WRITE_ZEROES, handle, offset, byteCount, null);
+		return Futures.await(this.send(request, new Exchange(null, 0, 0)));
+	}
+	
+	
+	/**
+	 * note: locked for threadsafety; avoid trouble with request packets to the server
+	 * @param request a request
+	 * @param exchange for its reply
+	 * @return the exchange's result
+	 */
+	private CompletableFuture<Boolean> send(Request request, Exchange exchange)
+	{
+		lock.lock();
+		try
+		{
+			if(this.broken != null)
+			{
+				exchange.result.completeExceptionally(this.broken);
+				return exchange.result;
+			}
+			
+			// registered first, since the reply may come back before write() does
+			this.pending.put(request.handle, exchange);
+			request.write(this.output);
+		}
+		catch(IOException e)
+		{
+			// some of the request may have gone out, so the server can't make sense of anything after it
+			this.fail(e);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		
+		return exchange.result;
+	}
+	
+	
+	/**
+	 * give up on the connection: nothing more will be answered, so fail what's outstanding, and anything sent from now on
+	 * @param e why; kept only if it's the first failure
+	 */
+	private void fail(IOException e)
+	{
+		lock.lock();
+		try
+		{
+			if(this.broken == null)
+				this.broken = e;
+			
+			// stops the receiver thread too, if it's still reading
+			try { this.socket.close(); }  catch(IOException f)  { }
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		
+		for(Long handle : this.pending.keySet())
+		{
+			Exchange exchange = this.pending.remove(handle);
+			if(exchange != null)
+				exchange.result.completeExceptionally(e);
+		}
+	}
+	
+	
+	/**
+	 * the receiver thread: read replies and complete their requests' futures, until the connection fails or is closed
+	 */
+	private void receive()
+	{
+		DataInputStream in = this.input;
+		try
+		{
+			while(true)
+			{
+				int magic = in.readInt();
+				if(magic != NBDUtil.RESPONSE_MAGIC)
+					throw new IOException("bad magic " + magic);
+				
+				int error = in.readInt();
+				long handle = in.readLong();
+				Exchange exchange = this.pending.remove(handle);
+				if(exchange == null)
+					throw new IOException(String.format("got response for unknown request %016x", handle));
+				
+				// failed reads come without data
+				if(error == 0 && exchange.bytes != null)
+					in.readFully(exchange.bytes, exchange.arrayOffset, exchange.byteCount);
+				exchange.result.complete(error == 0);
+			}
+		}
+		catch(IOException e)
+		{
+			this.fail(e);
+		}
 	}
 }
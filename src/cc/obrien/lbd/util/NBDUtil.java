@@ -7,11 +7,13 @@
 
 package cc.obrien.lbd.util;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.SocketException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 
 
 /**
@@ -34,27 +36,231 @@ public class NBDUtil
 	public static final int RESPONSE_MAGIC = 0x67446698;
 	
 	
+	/** first 8 bytes sent by the server, in either handshake style ("NBDMAGIC") */
+	public static final long INIT_PASSWD = 0x4E42444D41474943L;
+	
+	
+	/** next 8 bytes sent by the server in the old-style handshake */
+	public static final long OLDSTYLE_MAGIC = 0x0000420281861253L;
+	
+	
+	/** next 8 bytes sent by the server in the newstyle handshake; also precedes each option the client sends ("IHAVEOPT") */
+	public static final long IHAVEOPT = 0x49484156454F5054L;
+	
+	
+	/** precedes each reply to an option, from the server */
+	public static final long OPTION_REPLY_MAGIC = 0x0003e889045565a9L;
+	
+	
+	/** handshake flag (server): fixed newstyle; i.e. server can reply to options it doesn't know */
+	public static final int FLAG_FIXED_NEWSTYLE = 1<<0;
+	
+	
+	/** handshake flag (server): server can leave out the 124 zero bytes after {@link #OPT_EXPORT_NAME} */
+	public static final int FLAG_NO_ZEROES = 1<<1;
+	
+	
+	/** client flag: client understands fixed newstyle */
+	public static final int FLAG_C_FIXED_NEWSTYLE = 1<<0;
+	
+	
+	/** client flag: client doesn't want the 124 zero bytes after {@link #OPT_EXPORT_NAME} */
+	public static final int FLAG_C_NO_ZEROES = 1<<1;
+	
+	
+	/** transmission flag: other flags are valid */
+	public static final int FLAG_HAS_FLAGS = 1<<0;
+	
+	
+	/** transmission flag: export is read-only */
+	public static final int FLAG_READ_ONLY = 1<<1;
+	
+	
+	/** transmission flag: server understands {@link Request.Type#FLUSH} */
+	public static final int FLAG_SEND_FLUSH = 1<<2;
+	
+	
+	/** transmission flag: server understands {@link #CMD_FLAG_FUA} */
+	public static final int FLAG_SEND_FUA = 1<<3;
+	
+	
+	/** transmission flag: server understands {@link Request.Type#TRIM} */
+	public static final int FLAG_SEND_TRIM = 1<<5;
+	
+	
+	/** transmission flag: server understands {@link Request.Type#WRITE_ZEROES} */
+	public static final int FLAG_SEND_WRITE_ZEROES = 1<<6;
+	
+	
+	/**
+	 * transmission flag: clients may open several connections to this export and spread requests across them;
+	 * a flush on any connection covers writes completed on all of them, and reads see writes completed on any of them
+	 */
+	public static final int FLAG_CAN_MULTI_CONN = 1<<8;
+	
+	
+	/** command flag: (write) don't reply until the data is durable, as if followed by a {@link Request.Type#FLUSH} */
+	public static final int CMD_FLAG_FUA = 1<<0;
+	
+	
+	/** command flag: (write zeroes) really write the zeroes; don't just record the blocks as zero */
+	public static final int CMD_FLAG_NO_HOLE = 1<<1;
+	
+	
+	/** command flag: (block status) describe just one extent, from the start of the range */
+	public static final int CMD_FLAG_REQ_ONE = 1<<3;
+	
+	
+	/** option: choose export and end negotiation; the old way, without a way for the server to say no */
+	public static final int OPT_EXPORT_NAME = 1;
+	
+	
+	/** option: client gives up */
+	public static final int OPT_ABORT = 2;
+	
+	
+	/** option: list exports */
+	public static final int OPT_LIST = 3;
+	
+	
+	/** option: get information about an export without choosing it */
+	public static final int OPT_INFO = 6;
+	
+	
+	/** option: get information about an export, and choose it (ending negotiation) */
+	public static final int OPT_GO = 7;
+	
+	
+	/** option: client understands structured replies; server may send them from now on */
+	public static final int OPT_STRUCTURED_REPLY = 8;
+	
+	
+	/** option: list metadata contexts matching the client's queries */
+	public static final int OPT_LIST_META_CONTEXT = 9;
+	
+	
+	/** option: choose metadata contexts for {@link Request.Type#BLOCK_STATUS} to report on */
+	public static final int OPT_SET_META_CONTEXT = 10;
+	
+	
+	/** option reply: done with this option */
+	public static final int REP_ACK = 1;
+	
+	
+	/** option reply: description of an export, in reply to {@link #OPT_LIST} */
+	public static final int REP_SERVER = 2;
+	
+	
+	/** option reply: a piece of information about an export, in reply to {@link #OPT_INFO} or {@link #OPT_GO} */
+	public static final int REP_INFO = 3;
+	
+	
+	/** option reply: a metadata context and its id, in reply to {@link #OPT_LIST_META_CONTEXT} or {@link #OPT_SET_META_CONTEXT} */
+	public static final int REP_META_CONTEXT = 4;
+	
+	
+	/** option reply (error): option not known */
+	public static final int REP_ERR_UNSUP = (1<<31) + 1;
+	
+	
+	/** option reply (error): option was malformed */
+	public static final int REP_ERR_INVALID = (1<<31) + 3;
+	
+	
+	/** option reply (error): no such export */
+	public static final int REP_ERR_UNKNOWN = (1<<31) + 6;
+	
+	
+	/** option reply (error): option data too long */
+	public static final int REP_ERR_TOO_BIG = (1<<31) + 9;
+	
+	
+	/** information type: export size and transmission flags */
+	public static final int INFO_EXPORT = 0;
+	
+	
+	/** information type: canonical export name */
+	public static final int INFO_NAME = 1;
+	
+	
+	/** information type: minimum, preferred and maximum block sizes */
+	public static final int INFO_BLOCK_SIZE = 3;
+	
+	
+	/** metadata context describing which blocks are allocated, and which read as zeroes */
+	public static final String CONTEXT_BASE_ALLOCATION = "base:allocation";
+	
+	
+	/** in {@link #CONTEXT_BASE_ALLOCATION}: no data is stored for the blocks */
+	public static final int STATE_HOLE = 1<<0;
+	
+	
+	/** in {@link #CONTEXT_BASE_ALLOCATION}: the blocks read as zeroes */
+	public static final int STATE_ZERO = 1<<1;
+	
+	
+	/** magic number for structured reply chunks */
+	public static final int STRUCTURED_REPLY_MAGIC = 0x668e33ef;
+	
+	
+	/** structured reply flag: this is the last chunk of the reply */
+	public static final int REPLY_FLAG_DONE = 1<<0;
+	
+	
+	/** structured reply type: no payload; just completes the reply */
+	public static final int REPLY_TYPE_NONE = 0;
+	
+	
+	/** structured reply type: data read from the device, preceded by its byte offset */
+	public static final int REPLY_TYPE_OFFSET_DATA = 1;
+	
+	
+	/** structured reply type: extents of a metadata context, in reply to {@link Request.Type#BLOCK_STATUS} */
+	public static final int REPLY_TYPE_BLOCK_STATUS = 5;
+	
+	
+	/** structured reply type: the request failed; error code and message */
+	public static final int REPLY_TYPE_ERROR = (1<<15) + 1;
+	
+	
+	/** error code for a response: input/output error (EIO) */
+	public static final int EIO = 5;
+	
+	
+	/** error code for a response: invalid argument (EINVAL) */
+	public static final int EINVAL = 22;
+	
+	
 	/**
 	 * upon initial connect, this packet is sent from server to client.
-	 * @param blockCount the size of the virtual device, in blocks
+	 * @param byteCount the size of the virtual device, in bytes
 	 * @param writable 
 	 * @return the 152-byte packet
 	 * @throws IOException potentially thrown by the byte array
 	 */
-	public static byte[] constructHello(long blockCount, boolean writable) throws IOException
+	public static byte[] constructHello(long byteCount, boolean writable) throws IOException
+	{
+		return constructHello(byteCount, FLAG_HAS_FLAGS | (!writable ? FLAG_READ_ONLY : 0));
+	}
+	
+	
+	/**
+	 * upon initial connect, this packet is sent from server to client.
+	 * @param byteCount the size of the virtual device, in bytes
+	 * @param flags transmission flags, e.g. {@link #FLAG_HAS_FLAGS}
+	 * @return the 152-byte packet
+	 * @throws IOException potentially thrown by the byte array
+	 */
+	public static byte[] constructHello(long byteCount, int flags) throws IOException
 	{
 		// according to nbd-server.c this is the "old" negotiation packet, but...
 		// the procedure is: send INIT_PASSWD, magic, sizeof media, flags, zeros (reserved)
 		
 		ByteArrayOutputStream bytes = new ByteArrayOutputStream(152);
 		DataOutputStream data = new DataOutputStream(bytes);
-		data.write("NBDMAGIC".getBytes());
-		data.write(new byte[] { 0x00, 0x00, 0x42, 0x02, -127, -122, 0x12, 0x53 });  //-127 == 0x81; -122 = 0x86
-		data.writeLong(512L * ((long)blockCount));
-		int flags = 
-			1								// "has flags"
-			| (!writable ? 1<<1 : 0)		// readonly
-		  ;
+		data.writeLong(INIT_PASSWD);
+		data.writeLong(OLDSTYLE_MAGIC);
+		data.writeLong(byteCount);
 		data.writeInt(flags);
 		for(int i=0; i<124; i++)  data.write(0);
 		return bytes.toByteArray();
@@ -62,58 +268,226 @@ public class NBDUtil
 	
 
 	/**
-	 * @param in
+	 * Client side of the handshake.  Understands both the old style and the (fixed) newstyle handshake;
+	 * for the latter, chooses the export with {@link #OPT_GO} (asking for its block size constraints too), if the server has it,
+	 * or else {@link #OPT_EXPORT_NAME}, which every newstyle server supports.
+	 * @param in input from server
+	 * @param out output to server (only used in the newstyle handshake)
+	 * @param exportName name of the export to use; null or empty for the server's default export.  Ignored by old-style servers.
 	 * @param writableExpected 
-	 * @return block count of the NBD device as reported by the server (byte count >> 9)
+	 * @return size and transmission flags of the NBD device as reported by the server
 	 * @throws IOException
 	 * @throws IllegalArgumentException if writableExpected and remote device is not writable
 	 */
-	public static long readHello(DataInputStream in, boolean writableExpected) throws IOException
+	public static Hello readHello(DataInputStream in, DataOutputStream out, String exportName, boolean writableExpected) throws IOException
 	{
 		long helloMagic1 = in.readLong();
-		if(helloMagic1 != 0x4E42444D41474943L)  // NBDMAGIC
+		if(helloMagic1 != INIT_PASSWD)
 			throw new RuntimeException(String.format("not NBDMAGIC: 0x%x", helloMagic1));
 
 		long helloMagic2 = in.readLong();
-		if(helloMagic2 != 0x0000420281861253L)
-			throw new RuntimeException(String.format("magic2 %x != 0x0000420281861253", helloMagic2));
-		
-		long byteCount = in.readLong();
-		if(byteCount % 512 != 0)
-			throw new RuntimeException(String.format("size of NBD device %d not divisible by 512", byteCount));
-
-		int flags = in.readInt();
-		int unsupported = ~0x00000003;
-		if( (flags & unsupported) != 0 )
+		long byteCount;
+		int flags;
+		int minimumBlockSize = 1;
+		if(helloMagic2 == OLDSTYLE_MAGIC)
 		{
-			throw new RuntimeException(String.format("cannot handle these flags: %08x", (flags & unsupported)));
+			byteCount = in.readLong();
+			flags = in.readInt();
+			
+			byte junk[] = new byte[124];
+			int result = IOUtil.ensureRead(in, junk);
+			if(result != junk.length)
+				throw new RuntimeException(String.format("expected %d bytes of junk, got %d", junk.length, result));
 		}
+		else if(helloMagic2 == IHAVEOPT)
+		{
+			int handshakeFlags = in.readUnsignedShort();
+			boolean noZeroes = (handshakeFlags & FLAG_NO_ZEROES) != 0;
+			int clientFlags = (handshakeFlags & FLAG_FIXED_NEWSTYLE) | (noZeroes ? FLAG_C_NO_ZEROES : 0);
+			byte name[] = (exportName == null ? "" : exportName).getBytes("UTF-8");
 
-		if((flags & (1<<0)) != 0)
+			// the client flags go along with the first option
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream(30 + name.length);
+			DataOutputStream data = new DataOutputStream(buffer);
+			data.writeInt(clientFlags);
+			
+			Hello went = null;
+			if((handshakeFlags & FLAG_FIXED_NEWSTYLE) != 0)
+			{
+				// only fixed newstyle servers might understand anything but OPT_EXPORT_NAME
+				ByteArrayOutputStream request = new ByteArrayOutputStream(8 + name.length);
+				DataOutputStream go = new DataOutputStream(request);
+				go.writeInt(name.length);
+				go.write(name);
+				go.writeShort(1);
+				go.writeShort(INFO_BLOCK_SIZE);
+				writeOption(data, OPT_GO, request.toByteArray());
+				out.write(buffer.toByteArray());
+				out.flush();
+				buffer.reset();
+				
+				went = readGoReplies(in, exportName);
+			}
+			
+			if(went != null)
+			{
+				byteCount = went.byteCount;
+				flags = went.flags;
+				minimumBlockSize = went.minimumBlockSize;
+			}
+			else
+			{
+				writeOption(data, OPT_EXPORT_NAME, name);
+				out.write(buffer.toByteArray());
+				out.flush();
+	
+				// if the server doesn't have this export, it just hangs up
+				byteCount = in.readLong();
+				flags = in.readUnsignedShort();
+				if(! noZeroes)
+				{
+					byte junk[] = new byte[124];
+					int result = IOUtil.ensureRead(in, junk);
+					if(result != junk.length)
+						throw new RuntimeException(String.format("expected %d bytes of junk, got %d", junk.length, result));
+				}
+			}
+		}
+		else
+		{
+			throw new RuntimeException(String.format("magic2 %x is neither 0x%x nor 0x%x", helloMagic2, OLDSTYLE_MAGIC, IHAVEOPT));
+		}
+		
+		// other transmission flags just tell us about optional commands
+		if((flags & FLAG_HAS_FLAGS) != 0)
 		{
-			if((flags & (1<<1)) != 0)
+			if((flags & FLAG_READ_ONLY) != 0)
 			{
 				// remote device is readonly
 				if(writableExpected)
 					throw new IllegalArgumentException("nbd device is read-only");
 			}
 		}
+		else
+		{
+			flags = 0;  // none of them mean anything
+		}
+		
+		return new Hello(byteCount, flags, minimumBlockSize);
+	}
+	
+	
+	/**
+	 * @param data where the option goes
+	 * @param option the option, e.g. {@link #OPT_GO}
+	 * @param payload the option's data
+	 * @throws IOException potentially thrown by the stream
+	 */
+	private static void writeOption(DataOutputStream data, int option, byte payload[]) throws IOException
+	{
+		data.writeLong(IHAVEOPT);
+		data.writeInt(option);
+		data.writeInt(payload.length);
+		data.write(payload);
+	}
+	
+	
+	/**
+	 * read the server's replies to {@link #OPT_GO}, up to its {@link #REP_ACK}
+	 * @param in input from server
+	 * @param exportName name of the export asked for, for complaining about it
+	 * @return what the server said about the export, or null if it doesn't understand {@link #OPT_GO} (so negotiation carries on)
+	 * @throws IOException if network I/O error
+	 * @throws IllegalArgumentException if the server refused the export
+	 */
+	private static Hello readGoReplies(DataInputStream in, String exportName) throws IOException
+	{
+		Long byteCount = null;
+		int flags = 0;
+		int minimumBlockSize = 1;
+		while(true)
+		{
+			long magic = in.readLong();
+			if(magic != OPTION_REPLY_MAGIC)
+				throw new RuntimeException(String.format("not an option reply: 0x%x", magic));
+			in.readInt();  // the option, which is ours
+			int type = in.readInt();
+			int length = in.readInt();
+			if(length < 0 || length > (1 << 20))
+				throw new RuntimeException(String.format("option reply of %d bytes", length));
+			byte payload[] = new byte[length];
+			in.readFully(payload);
+			
+			if(type == REP_ACK)
+				break;
+			if(type == REP_ERR_UNSUP)
+				return null;
+			if((type & (1<<31)) != 0)
+				throw new IllegalArgumentException(String.format("NBD server refused export '%s' (error 0x%x)", exportName == null ? "" : exportName, type));
+			if(type != REP_INFO || length < 2)
+				continue;
+			
+			DataInputStream info = new DataInputStream(new ByteArrayInputStream(payload));
+			int infoType = info.readUnsignedShort();
+			if(infoType == INFO_EXPORT && length >= 12)
+			{
+				byteCount = info.readLong();
+				flags = info.readUnsignedShort();
+			}
+			else if(infoType == INFO_BLOCK_SIZE && length >= 14)
+			{
+				minimumBlockSize = info.readInt();
+			}
+		}
 		
-		byte junk[] = new byte[124];
-		int result = IOUtil.ensureRead(in, junk);
-		if(result != junk.length)
-			throw new RuntimeException(String.format("expected %d bytes of junk, got %d", junk.length, result));
+		if(byteCount == null)
+			throw new RuntimeException("NBD server didn't describe the export");
+		return new Hello(byteCount, flags, minimumBlockSize);
+	}
+	
+	
+	/**
+	 * what a server says about an export during the handshake
+	 * @author sobrien
+	 */
+	public static final class Hello
+	{
+		/** size of the export, in bytes */
+		public final long byteCount;
+		
+		
+		/** transmission flags; e.g. {@link NBDUtil#FLAG_SEND_FLUSH} */
+		public final int flags;
+		
+		
+		/** smallest request alignment the server asked for; 1 if it didn't say */
+		public final int minimumBlockSize;
 		
-		return byteCount >> 9;  // convert byte count to block count (div 512)
+		
+		/**
+		 * @param byteCount size of the export, in bytes
+		 * @param flags transmission flags
+		 * @param minimumBlockSize smallest request alignment the server asked for; 1 if it didn't say
+		 */
+		public Hello(long byteCount, int flags, int minimumBlockSize)
+		{
+			this.byteCount = byteCount;
+			this.flags = flags;
+			this.minimumBlockSize = minimumBlockSize;
+		}
 	}
 
 	
 	/**
-	 * client &rarr; server request packets, for read, write, or close commands
+	 * client &rarr; server request packets, for read, write, close, flush, trim, or write zeroes commands
 	 * @author sobrien
 	 */
 	public static class Request
 	{
+		/** size of the fixed part of a request packet: magic, flags, type, handle, offset, length */
+		public static final int HEADER_SIZE = 28;
+		
+		
 		/**
 		 * request type
 		 * @author sobrien
@@ -126,6 +500,14 @@ public class NBDUtil
 			WRITE(1),
 			/** close session request */
 			CLOSE(2),
+			/** flush request: make all completed writes durable */
+			FLUSH(3),
+			/** trim request: contents of a range are no longer needed */
+			TRIM(4),
+			/** write zeroes request: like a write of all zeroes, but with no payload */
+			WRITE_ZEROES(6),
+			/** block status request: describe a range in the chosen metadata contexts */
+			BLOCK_STATUS(7),
 			;
 
 			/** numeric code; used when building request packets */
@@ -154,6 +536,14 @@ public class NBDUtil
 					return WRITE;
 				case 2:
 					return CLOSE;
+				case 3:
+					return FLUSH;
+				case 4:
+					return TRIM;
+				case 6:
+					return WRITE_ZEROES;
+				case 7:
+					return BLOCK_STATUS;
 				default:
 					throw new IllegalArgumentException("type code " + code);
 				}
@@ -165,6 +555,10 @@ public class NBDUtil
 		public final Type type;
 		
 		
+		/** command flags (16 bits) */
+		public final int flags;
+		
+		
 		/** handle (just a string identifier) */
 		public final long handle;
 		
@@ -177,7 +571,7 @@ public class NBDUtil
 		public final int length;
 		
 		
-		/** payload bytes, if a {@link Type#WRITE} command, else null */
+		/** payload bytes, if a {@link Type#WRITE} command, else null; may be longer than {@link #length} (if leased from a {@link BufferPool}) */
 		public final byte[] bytes;
 		
 		
@@ -189,8 +583,23 @@ public class NBDUtil
 		 * @param bytes payload (can be null unless a {@link Type#WRITE})
 		 */
 		public Request(Type type, long handle, long offset, int length, byte bytes[])
+		{
+			this(type, 0, handle, offset, length, bytes);
+		}
+		
+		
+		/**
+		 * @param type request type
+		 * @param flags command flags
+		 * @param handle identifier
+		 * @param offset byte offset
+		 * @param length length in bytes
+		 * @param bytes payload (can be null unless a {@link Type#WRITE})
+		 */
+		public Request(Type type, int flags, long handle, long offset, int length, byte bytes[])
 		{
 			this.type = type;
+			this.flags = flags;
 			this.handle = handle;
 			this.offset = offset;
 			this.length = length;
@@ -209,28 +618,88 @@ public class NBDUtil
 		 */
 		public static Request from(DataInputStream in) throws IOException
 		{
-			int magic = in.readInt();
-			assert(magic == REQUEST_MAGIC);
-			Type type = Type.forCode(in.readInt());
-			long handle = in.readLong();
-			long offset = in.readLong();
-			int length = in.readInt();
+			return from(in, ByteBuffer.allocate(HEADER_SIZE), null);
+		}
+		
+		
+		/**
+		 * parse request packet from input, reusing a header buffer and leasing the payload, so as not to allocate per request
+		 * @param in input from client
+		 * @param header {@link #HEADER_SIZE}-byte heap buffer to receive the header into; its contents are overwritten
+		 * @param pool pool to lease a {@link Type#WRITE} payload from, or null to allocate it
+		 * @return a request packet if a valid one was available in the input
+		 * @throws IOException if network I/O error
+		 * @throws IllegalArgumentException if junk in the input stream
+		 */
+		public static Request from(DataInputStream in, ByteBuffer header, BufferPool pool) throws IOException
+		{
+			return from(in, header, pool, Integer.MAX_VALUE);
+		}
+		
+		
+		/**
+		 * parse request packet from input, like {@link #from(DataInputStream, ByteBuffer, BufferPool)}, but leave big payloads for the caller
+		 * @param in input from client
+		 * @param header {@link #HEADER_SIZE}-byte heap buffer to receive the header into; its contents are overwritten
+		 * @param pool pool to lease a {@link Type#WRITE} payload from, or null to allocate it
+		 * @param maxPayload largest payload to read in; a {@link Type#WRITE} with a longer one comes back with null {@link #bytes},
+		 *   and its payload is the next thing in the input
+		 * @return a request packet if a valid one was available in the input
+		 * @throws IOException if network I/O error
+		 * @throws IllegalArgumentException if junk in the input stream
+		 */
+		public static Request from(DataInputStream in, ByteBuffer header, BufferPool pool, int maxPayload) throws IOException
+		{
+			// one read for the whole header, rather than one per field
+			header.clear();
+			in.readFully(header.array(), header.arrayOffset(), HEADER_SIZE);
 			
-			byte bytes[];
-			if(type == Type.WRITE)
+			int length = payloadLength(header);
+			byte bytes[] = null;
+			if(length > 0 && length <= maxPayload)
 			{
-				bytes = new byte[length];
-				int result = IOUtil.ensureRead(in, bytes);
+				bytes = (pool == null) ? new byte[length] : pool.lease(length);
+				int result = IOUtil.ensureRead(in, bytes, 0, length);
 				if(result != length)
 					throw new RuntimeException(
 						String.format("incomplete read from network; got %d bytes, expected %d", result, length));
 			}
-			else
-			{
-				bytes = null;
-			}
 			
-			return new Request(type, handle, offset, length, bytes);
+			return from(header, bytes);
+		}
+		
+		
+		/**
+		 * parse a request from a complete header that has already been received, e.g. by a non-blocking reader
+		 * @param header buffer positioned at the start of a {@link #HEADER_SIZE}-byte header; position is advanced past it
+		 * @param bytes payload, already received, if a {@link Type#WRITE} command, else null
+		 * @return the request
+		 * @throws IllegalArgumentException if junk in the header
+		 */
+		public static Request from(ByteBuffer header, byte bytes[])
+		{
+			int magic = header.getInt();
+			if(magic != REQUEST_MAGIC)
+				throw new IllegalArgumentException(String.format("bad request magic 0x%08x", magic));
+			int flags = header.getShort() & 0xffff;
+			Type type = Type.forCode(header.getShort() & 0xffff);
+			long handle = header.getLong();
+			long offset = header.getLong();
+			int length = header.getInt();
+			return new Request(type, flags, handle, offset, length, bytes);
+		}
+		
+		
+		/**
+		 * @param header buffer positioned at the start of a complete {@link #HEADER_SIZE}-byte header; not modified
+		 * @return number of payload bytes that follow this header on the wire
+		 * @throws IllegalArgumentException if junk in the header
+		 */
+		public static int payloadLength(ByteBuffer header)
+		{
+			int start = header.position();
+			Type type = Type.forCode(header.getShort(start + 6) & 0xffff);
+			return (type == Type.WRITE) ? header.getInt(start + 24) : 0;
 		}
 		
 		
@@ -246,12 +715,13 @@ public class NBDUtil
 			DataOutputStream data = new DataOutputStream(buffer);
 			
 			data.writeInt(REQUEST_MAGIC);
-			data.writeInt(type.code);
+			data.writeShort(flags);
+			data.writeShort(type.code);
 			data.writeLong(handle);
 			data.writeLong(offset);
 			data.writeInt(length);  // even if not a write packet TODO verify this!
 			if(type == Type.WRITE)
-				data.write(bytes);
+				data.write(bytes, 0, length);
 			
 			out.write(buffer.toByteArray());
 			out.flush();
@@ -267,6 +737,18 @@ public class NBDUtil
 	 */
 	public static class Response
 	{
+		/** size of the fixed part of a (simple) response packet: magic, error, handle */
+		public static final int HEADER_SIZE = 16;
+		
+		
+		/** size of the fixed part of a structured reply chunk: magic, flags, type, handle, length */
+		public static final int STRUCTURED_HEADER_SIZE = 20;
+		
+		
+		/** largest payload that {@link #write(DataOutputStream)} copies in with the header to send in one go */
+		private static final int SELF_NAGLE_LIMIT = 4096;
+		
+		
 		/** handle (string identifier); corresponds to the one from the client's request that this response is for */
 		public final long handle;
 
@@ -275,8 +757,28 @@ public class NBDUtil
 		public final int error;
 
 		
-		/** bytes for the response, if the client requested a read */
+		/** bytes for the response, if the client requested a read; for a structured reply chunk, its whole payload.  May be longer than {@link #payloadLength} */
 		public final byte[] payload;
+		
+		
+		/** number of bytes of {@link #payload} to send */
+		public final int payloadLength;
+		
+		
+		/** whether {@link #payload} was leased from a {@link BufferPool}, and goes back there once sent; see {@link #release(BufferPool)} */
+		private final boolean leased;
+		
+		
+		/** structured reply type (e.g. {@link NBDUtil#REPLY_TYPE_OFFSET_DATA}), or -1 if this is a simple reply */
+		public final int chunkType;
+		
+		
+		/** structured reply flags (e.g. {@link NBDUtil#REPLY_FLAG_DONE}) */
+		public final int chunkFlags;
+		
+		
+		/** number of bytes of the structured reply chunk's payload which follow {@link #payload} but aren't in it, because the server sends them itself (e.g. straight from a file) */
+		public final int trailingLength;
 
 		
 		/**
@@ -295,75 +797,129 @@ public class NBDUtil
 		 * @param payload bytes (only if this response was for a read command)
 		 */
 		public Response(long handle, int error, byte payload[])
+		{
+			this(handle, error, payload, (payload == null ? 0 : payload.length), false, -1, 0, 0);
+		}
+		
+		
+		/**
+		 * @param handle the handle sent by the client
+		 * @param error error code; 0 is OK
+		 * @param payload bytes
+		 * @param payloadLength number of bytes of payload to send
+		 * @param leased whether the payload goes back to a pool once sent
+		 * @param chunkType structured reply type, or -1 for a simple reply
+		 * @param chunkFlags structured reply flags
+		 * @param trailingLength structured reply payload bytes that the server sends after this
+		 */
+		private Response(long handle, int error, byte payload[], int payloadLength, boolean leased, int chunkType, int chunkFlags, int trailingLength)
 		{
 			this.handle = handle;
 			this.error = error;
 			// findbugs complains about storing an externally mutable object in this object's state; but for performance let this slide (don't require byte array copying)
 			this.payload = payload;
+			this.payloadLength = payloadLength;
+			this.leased = leased;
+			this.chunkType = chunkType;
+			this.chunkFlags = chunkFlags;
+			this.trailingLength = trailingLength;
 		}
 		
 		
-		@Override
-		public String toString()
+		/**
+		 * a successful simple reply whose payload was leased from a {@link BufferPool}
+		 * @param handle the handle sent by the client
+		 * @param payload bytes; goes back to the pool once sent
+		 * @param payloadLength number of bytes of payload to send
+		 * @return the reply
+		 */
+		public static Response leased(long handle, byte payload[], int payloadLength)
 		{
-			return String.format("[response handle=%016x error=%08x payload=%4d]", handle, error, (payload == null ? null : payload.length));
+			return new Response(handle, 0, payload, payloadLength, true, -1, 0, 0);
 		}
 		
 		
 		/**
-		 * TODO allow asynchronous results coming back (e.g. request A, B, C, get B, C, A back)
-		 * @param session remote server session
-		 * @param handleExpected expected long identifier
-		 * @param dataBytesExpected how many data byte should be coming back
-		 * @return a response instance, possibly with payload (if this is in response to a read)
-		 * @throws IOException if network I/O problems
+		 * a structured reply chunk, for clients which negotiated {@link NBDUtil#OPT_STRUCTURED_REPLY}
+		 * @param handle the handle sent by the client
+		 * @param chunkFlags e.g. {@link NBDUtil#REPLY_FLAG_DONE}
+		 * @param chunkType e.g. {@link NBDUtil#REPLY_TYPE_OFFSET_DATA}
+		 * @param payload the chunk's payload, laid out as its type requires
+		 * @param trailingLength further payload bytes that the server will send itself after this chunk's header and {@code payload}; usually 0
+		 * @return the chunk
 		 */
-		public static Response from(NBDSession session, long handleExpected, int dataBytesExpected) throws IOException
+		public static Response chunk(long handle, int chunkFlags, int chunkType, byte payload[], int trailingLength)
 		{
-			DataInputStream in = session.getDataIn();
-
-			boolean retryAfterNextFail = true;
-			while(true)
+			return new Response(handle, 0, payload, payload.length, false, chunkType, chunkFlags, trailingLength);
+		}
+		
+		
+		/**
+		 * a structured reply chunk whose payload was leased from a {@link BufferPool}
+		 * @param handle the handle sent by the client
+		 * @param chunkFlags e.g. {@link NBDUtil#REPLY_FLAG_DONE}
+		 * @param chunkType e.g. {@link NBDUtil#REPLY_TYPE_OFFSET_DATA}
+		 * @param payload the chunk's payload, laid out as its type requires; goes back to the pool once sent
+		 * @param payloadLength number of bytes of payload to send
+		 * @return the chunk
+		 */
+		public static Response leasedChunk(long handle, int chunkFlags, int chunkType, byte payload[], int payloadLength)
+		{
+			return new Response(handle, 0, payload, payloadLength, true, chunkType, chunkFlags, 0);
+		}
+		
+		
+		/**
+		 * a final {@link NBDUtil#REPLY_TYPE_ERROR} chunk, for clients which negotiated {@link NBDUtil#OPT_STRUCTURED_REPLY}
+		 * @param handle the handle sent by the client
+		 * @param error error code; not 0
+		 * @param message human-readable explanation; may be empty
+		 * @return the chunk
+		 */
+		public static Response errorChunk(long handle, int error, String message)
+		{
+			byte messageBytes[];
+			try
 			{
-				try
-				{
-					int magic = in.readInt();
-					if(magic != RESPONSE_MAGIC)
-						throw new RuntimeException("bad magic " + magic);
-				
-					int error = in.readInt();
-				
-					long handle = in.readLong();
-					if(handle != handleExpected)
-						throw new RuntimeException("got response for different request");
-				
-					byte payload[] = new byte[dataBytesExpected];
-					if(error == 0 && dataBytesExpected > 0)
-					{
-						int result = IOUtil.ensureRead(in, payload);
-						if(result < dataBytesExpected)
-							throw new RuntimeException(String.format("couldn't write %d bytes; only received %d from client", dataBytesExpected, result));
-					}
-				
-					Response ret = new Response(handleExpected, error, payload);
-					return ret;
-				}
-				catch(SocketException e)
-				{
-					if(!retryAfterNextFail)
-					{
-						break;
-					}
-					
-					if(! e.getMessage().contains("reset"))   // XXX need better way to detect connection reset (on an idle connection)
-					{
-						retryAfterNextFail = false;
-					}
-				}
+				messageBytes = message.getBytes("UTF-8");
+			}
+			catch(UnsupportedEncodingException e)
+			{
+				throw new RuntimeException(e);
 			}
 			
-			// if here, we got no response; fail
-			throw new RuntimeException("no response, failing");
+			ByteBuffer payload = ByteBuffer.allocate(6 + messageBytes.length);
+			payload.putInt(error);
+			payload.putShort((short) messageBytes.length);
+			payload.put(messageBytes);
+			return new Response(handle, error, payload.array(), payload.capacity(), false, REPLY_TYPE_ERROR, REPLY_FLAG_DONE, 0);
+		}
+		
+		
+		/**
+		 * @return true if this is a structured reply chunk rather than a simple reply
+		 */
+		public boolean isStructured()
+		{
+			return chunkType >= 0;
+		}
+		
+		
+		/**
+		 * @return size of this response's header on the wire
+		 */
+		public int headerSize()
+		{
+			return this.isStructured() ? STRUCTURED_HEADER_SIZE : HEADER_SIZE;
+		}
+		
+		
+		@Override
+		public String toString()
+		{
+			if(this.isStructured())
+				return String.format("[response handle=%016x chunk type=%d flags=%d payload=%4d+%d]", handle, chunkType, chunkFlags, payloadLength, trailingLength);
+			return String.format("[response handle=%016x error=%08x payload=%4d]", handle, error, payloadLength);
 		}
 		
 
@@ -374,18 +930,88 @@ public class NBDUtil
 		 */
 		public void write(DataOutputStream out) throws IOException
 		{
-			// self-nagling the response bytes; do a little byte-copying for the benefit of less network latency, in case TCP_NODELAY is set
-			ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + (payload == null ? 0 : payload.length));
-			DataOutputStream data = new DataOutputStream(bytes);
-			
-			data.writeInt(RESPONSE_MAGIC);
-			data.writeInt(0);
-			data.writeLong(handle);
-			if(payload != null)
-				data.write(payload);
-			
-			out.write(bytes.toByteArray());
+			if(this.payloadLength <= SELF_NAGLE_LIMIT)
+			{
+				// self-nagling the response bytes; do a little byte-copying for the benefit of less network latency, in case TCP_NODELAY is set
+				out.write(this.toByteBuffer().array());
+			}
+			else
+			{
+				// too big to be worth copying; the header goes in a segment of its own
+				out.write(this.header().array());
+				out.write(payload, 0, payloadLength);
+			}
 			out.flush();
 		}
+		
+		
+		/**
+		 * @return this response as it would go on the wire (less any {@link #trailingLength} bytes), ready for writing to a channel
+		 */
+		public ByteBuffer toByteBuffer()
+		{
+			ByteBuffer ret = ByteBuffer.allocate(this.headerSize() + payloadLength);
+			this.putHeader(ret);
+			if(payload != null)
+				ret.put(payload, 0, payloadLength);
+			ret.flip();
+			return ret;
+		}
+		
+		
+		/**
+		 * @return this response as it would go on the wire, as the header and then the payload (which is not copied), for a gathering write
+		 */
+		public ByteBuffer[] toByteBuffers()
+		{
+			if(payloadLength == 0)
+				return new ByteBuffer[] { this.header() };
+			return new ByteBuffer[] { this.header(), ByteBuffer.wrap(payload, 0, payloadLength) };
+		}
+		
+		
+		/**
+		 * @return just the header, ready for writing
+		 */
+		private ByteBuffer header()
+		{
+			ByteBuffer ret = ByteBuffer.allocate(this.headerSize());
+			this.putHeader(ret);
+			ret.flip();
+			return ret;
+		}
+		
+		
+		/**
+		 * @param buffer receives the header
+		 */
+		private void putHeader(ByteBuffer buffer)
+		{
+			if(this.isStructured())
+			{
+				buffer.putInt(STRUCTURED_REPLY_MAGIC);
+				buffer.putShort((short) chunkFlags);
+				buffer.putShort((short) chunkType);
+				buffer.putLong(handle);
+				buffer.putInt(payloadLength + trailingLength);
+			}
+			else
+			{
+				buffer.putInt(RESPONSE_MAGIC);
+				buffer.putInt(error);
+				buffer.putLong(handle);
+			}
+		}
+		
+		
+		/**
+		 * once this response has been sent, give its payload back to the pool it was leased from, if it was
+		 * @param pool the pool
+		 */
+		public void release(BufferPool pool)
+		{
+			if(this.leased)
+				pool.release(this.payload);
+		}
 	}
 }
@@ -0,0 +1,117 @@
+/*
+ * (C) 2012 Steve O'Brien.  BSD licensed.
+ * see http://www.opensource.org/licenses/BSD-2-Clause
+ * and see LICENSE in the root of this project.
+ */
+
+
+package cc.obrien.lbd.util;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Striped locks over block ranges: the device is cut into regions of {@link #REGION_BLOCKS} blocks,
+ * and each region is guarded by one of a fixed number of stripes (region number modulo the stripe count).
+ * Locking a range locks the stripes of every region it touches, always in stripe order, so callers can't deadlock
+ * one another however their ranges overlap.  Ranges touching different stripes are locked independently.
+ * Uses locks rather than monitors, so virtual threads waiting here don't pin their carrier thread.
+ * @author sobrien
+ */
+public final class RangeLocks
+{
+	/** blocks in one region; 64KB */
+	public static final int REGION_BLOCKS = 128;
+
+
+	/** the stripes; their number is a power of two */
+	private final ReentrantLock stripes[];
+
+
+	/**
+	 * @param stripeCount number of stripes; rounded up to a power of two
+	 */
+	public RangeLocks(int stripeCount)
+	{
+		if(stripeCount < 1)
+			throw new IllegalArgumentException("need at least one stripe");
+
+		int count = Integer.highestOneBit(stripeCount);
+		if(count < stripeCount)
+			count <<= 1;
+
+		this.stripes = new ReentrantLock[count];
+		for(int i=0; i<count; i++)
+			this.stripes[i] = new ReentrantLock();
+	}
+
+
+	/**
+	 * wait for, and take, the stripes covering a range
+	 * @param startBlock first block
+	 * @param blockCount number of blocks; at least 1
+	 */
+	public void lock(long startBlock, long blockCount)
+	{
+		boolean held[] = this.stripesFor(startBlock, blockCount);
+		for(int i=0; i<this.stripes.length; i++)
+		{
+			if(held[i])
+				this.stripes[i].lock();
+		}
+	}
+
+
+	/**
+	 * release the stripes taken by {@link #lock(long, long)} for the same range
+	 * @param startBlock first block
+	 * @param blockCount number of blocks
+	 */
+	public void unlock(long startBlock, long blockCount)
+	{
+		boolean held[] = this.stripesFor(startBlock, blockCount);
+		for(int i=this.stripes.length-1; i>=0; i--)
+		{
+			if(held[i])
+				this.stripes[i].unlock();
+		}
+	}
+
+
+	/**
+	 * Wait until every range locked now has been unlocked, without holding anyone up meanwhile:
+	 * each stripe is taken and let go in turn, so others waiting for it get it straight after.
+	 * Whoever locks a range after this starts may or may not be waited for.
+	 */
+	public void awaitUnlocked()
+	{
+		for(ReentrantLock stripe : this.stripes)
+		{
+			stripe.lock();
+			stripe.unlock();
+		}
+	}
+
+
+	/**
+	 * @param startBlock first block
+	 * @param blockCount number of blocks
+	 * @return which stripes cover the range, by stripe number
+	 */
+	private boolean[] stripesFor(long startBlock, long blockCount)
+	{
+		boolean ret[] = new boolean[this.stripes.length];
+		long first = startBlock / REGION_BLOCKS;
+		long last = (startBlock + Math.max(blockCount, 1) - 1) / REGION_BLOCKS;
+		if(last - first + 1 >= this.stripes.length)
+		{
+			for(int i=0; i<ret.length; i++)
+				ret[i] = true;
+			return ret;
+		}
+
+		for(long region=first; region<=last; region++)
+			ret[(int) (region & (this.stripes.length - 1))] = true;
+		return ret;
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * (C) 2012 Steve O'Brien.  BSD licensed.
+ * see http://www.opensource.org/licenses/BSD-2-Clause
+ * and see LICENSE in the root of this project.
+ */
+
+
+package cc.obrien.lbd.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Makes the threads that handlers and workers run on: either ordinary (platform) daemon threads,
+ * or virtual threads where the runtime has them (Java 21 and up).
+ * Virtual threads are looked up reflectively so this still builds and runs on older JDKs.
+ * @author sobrien
+ */
+public final class Threads
+{
+	/**
+	 * @param prefix thread names are this followed by a counter
+	 * @return a factory of platform daemon threads
+	 */
+	public static ThreadFactory daemonFactory(final String prefix)
+	{
+		return new ThreadFactory() {
+			private final AtomicInteger counter = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, prefix + counter.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+
+	/**
+	 * @return true iff this runtime supports virtual threads
+	 */
+	public static boolean virtualThreadsSupported()
+	{
+		try
+		{
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		}
+		catch(NoSuchMethodException e)
+		{
+			return false;
+		}
+	}
+
+
+	/**
+	 * Virtual threads are always daemon threads.
+	 * @param prefix thread names are this followed by a counter
+	 * @return a factory of virtual threads, i.e. {@code Thread.ofVirtual().name(prefix, 0).factory()}
+	 * @throws UnsupportedOperationException if this runtime has no virtual threads
+	 */
+	public static ThreadFactory virtualFactory(String prefix)
+	{
+		try
+		{
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		}
+		catch(NoSuchMethodException e)
+		{
+			throw new UnsupportedOperationException("virtual threads need Java 21 or later; this is " + System.getProperty("java.version"));
+		}
+		catch(ClassNotFoundException e)
+		{
+			throw new UnsupportedOperationException("virtual threads need Java 21 or later; this is " + System.getProperty("java.version"));
+		}
+		catch(IllegalAccessException e)
+		{
+			throw new RuntimeException(e);
+		}
+		catch(InvocationTargetException e)
+		{
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+
+	/**
+	 * @param factory makes the thread for each task
+	 * @return an executor that starts a new thread for every task, i.e. {@code Executors.newThreadPerTaskExecutor(factory)};
+	 *   for use with virtual threads, which are cheap enough not to pool
+	 * @throws UnsupportedOperationException if this runtime has no thread-per-task executor (Java 21 and up)
+	 */
+	public static ExecutorService threadPerTaskExecutor(ThreadFactory factory)
+	{
+		try
+		{
+			Method method = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			return (ExecutorService) method.invoke(null, factory);
+		}
+		catch(NoSuchMethodException e)
+		{
+			throw new UnsupportedOperationException("thread-per-task executors need Java 21 or later; this is " + System.getProperty("java.version"));
+		}
+		catch(IllegalAccessException e)
+		{
+			throw new RuntimeException(e);
+		}
+		catch(InvocationTargetException e)
+		{
+			throw new RuntimeException(e.getCause());
+		}
+	}
+}
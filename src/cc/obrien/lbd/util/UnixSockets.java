@@ -0,0 +1,99 @@
+/*
+ * (C) 2012 Steve O'Brien.  BSD licensed.
+ * see http://www.opensource.org/licenses/BSD-2-Clause
+ * and see LICENSE in the root of this project.
+ */
+
+
+package cc.obrien.lbd.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.ConnectException;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+
+/**
+ * Opens Unix domain socket listeners, where the runtime has them (Java 16 and up),
+ * for clients on the same machine that would rather not go through the loopback TCP stack.
+ * The Java 16 API is looked up reflectively so this still builds and runs on older JDKs, like {@link Threads}.
+ * @author sobrien
+ */
+public final class UnixSockets
+{
+	/**
+	 * Open a listening channel on a socket file.  A socket file left over from an earlier run (one nothing answers on any more) is replaced;
+	 * a socket something is still listening on, or any other kind of file in the way, is an error.
+	 * The channel supports the same non-blocking operations as a TCP one, but has no {@link ServerSocketChannel#socket()}.
+	 * @param path where to put the socket file
+	 * @return a bound channel, in blocking mode
+	 * @throws IOException if the socket could not be bound, or something other than a stale socket is in the way
+	 * @throws UnsupportedOperationException if this runtime has no Unix domain sockets
+	 */
+	public static ServerSocketChannel bind(String path) throws IOException
+	{
+		File file = new File(path);
+		ProtocolFamily unix;
+		SocketAddress address;
+		ServerSocketChannel channel;
+		try
+		{
+			unix = Enum.valueOf(java.net.StandardProtocolFamily.class, "UNIX");
+			address = (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class).invoke(null, path);
+			if(file.exists())
+			{
+				// sockets are neither files nor directories
+				if(file.isFile() || file.isDirectory())
+					throw new IOException(String.format("%s exists and is not a socket", path));
+				
+				// only a socket nobody answers on is left over; taking over a live one would steal another server's clients
+				SocketChannel probe = (SocketChannel) SocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, unix);
+				try
+				{
+					probe.connect(address);
+					throw new IOException(String.format("another server is listening on %s", path));
+				}
+				catch(ConnectException e)
+				{
+					if(! file.delete())
+						throw new IOException(String.format("couldn't remove old socket %s", path));
+				}
+				finally
+				{
+					probe.close();
+				}
+			}
+			channel = (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, unix);
+		}
+		catch(IllegalArgumentException e)
+		{
+			throw new UnsupportedOperationException("Unix domain sockets need Java 16 or later; this is " + System.getProperty("java.version"));
+		}
+		catch(ClassNotFoundException e)
+		{
+			throw new UnsupportedOperationException("Unix domain sockets need Java 16 or later; this is " + System.getProperty("java.version"));
+		}
+		catch(NoSuchMethodException e)
+		{
+			throw new UnsupportedOperationException("Unix domain sockets need Java 16 or later; this is " + System.getProperty("java.version"));
+		}
+		catch(IllegalAccessException e)
+		{
+			throw new RuntimeException(e);
+		}
+		catch(InvocationTargetException e)
+		{
+			if(e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+
+		channel.bind(address);
+		file.deleteOnExit();
+		return channel;
+	}
+}